@@ -0,0 +1,152 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sits in front of the {@link BlockChain}'s store while {@link BlockChain#addAll(List)} runs. Between
+ * {@link #begin()} and {@link #commit()} new blocks and the chain head are held in memory and answered from there,
+ * then written to the store with a single {@link BlockStore#putAll(List, StoredBlock)}, so a batch costs one commit
+ * however many blocks it holds. Outside of a batch every call goes straight through to the store.<p>
+ *
+ * Unlike other stores this one is not thread safe. It's only used under the chain lock.
+ */
+class BatchingBlockStore implements BlockStore {
+    private final BlockStore store;
+
+    // The blocks put since begin(), in order and by hash. Null outside of a batch.
+    private List<StoredBlock> blocks;
+    private Map<Sha256Hash, StoredBlock> blocksByHash;
+    // The chain head set since begin(), or null if it hasn't changed.
+    private StoredBlock chainHead;
+    // The buffered blocks at the top of the best chain, lowest first. The block below the first of them is on the
+    // store's best chain, so heights below it are looked up in the store. Null if the head can't be reached that way,
+    // eg after re-organizing onto a side chain that was already stored, and then ancestors are found by skip pointer.
+    private List<StoredBlock> bestChainTop;
+
+    BatchingBlockStore(BlockStore store) {
+        this.store = store;
+    }
+
+    /** Starts holding blocks and chain head changes back from the store. */
+    void begin() {
+        blocks = new ArrayList<StoredBlock>();
+        blocksByHash = new HashMap<Sha256Hash, StoredBlock>();
+        chainHead = null;
+        bestChainTop = null;
+    }
+
+    /** Writes the blocks and chain head held since {@link #begin()} to the store and goes back to passing calls on. */
+    void commit() throws BlockStoreException {
+        List<StoredBlock> batch = blocks;
+        StoredBlock head = chainHead;
+        blocks = null;
+        blocksByHash = null;
+        chainHead = null;
+        bestChainTop = null;
+        if (batch == null || (batch.isEmpty() && head == null))
+            return;
+        store.putAll(batch, head != null ? head : store.getChainHead());
+    }
+
+    private boolean inBatch() {
+        return blocks != null;
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        if (!inBatch()) {
+            store.put(block);
+            return;
+        }
+        blocks.add(block);
+        blocksByHash.put(new Sha256Hash(block.getHeader().getHash()), block);
+    }
+
+    public StoredBlock get(byte[] hash) throws BlockStoreException {
+        if (inBatch()) {
+            StoredBlock block = blocksByHash.get(new Sha256Hash(hash));
+            if (block != null)
+                return block;
+        }
+        return store.get(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        if (chainHead != null)
+            return chainHead;
+        return store.getChainHead();
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        if (!inBatch()) {
+            store.setChainHead(chainHead);
+            return;
+        }
+        if (bestChainTop != null && !bestChainTop.isEmpty() && Arrays.equals(chainHead.getHeader().getPrevBlockHash(),
+                bestChainTop.get(bestChainTop.size() - 1).getHeader().getHash())) {
+            // The usual case, the head moved up by one.
+            bestChainTop.add(chainHead);
+        } else {
+            bestChainTop = findBestChainTop(chainHead);
+        }
+        this.chainHead = chainHead;
+    }
+
+    // Walks down from the given head through the buffered blocks, returning them lowest first if the block they rest
+    // on is on the store's best chain, otherwise null.
+    private List<StoredBlock> findBestChainTop(StoredBlock head) throws BlockStoreException {
+        List<StoredBlock> top = new ArrayList<StoredBlock>();
+        StoredBlock cursor = head;
+        while (cursor != null && blocksByHash.containsKey(new Sha256Hash(cursor.getHeader().getHash()))) {
+            top.add(cursor);
+            cursor = cursor.getPrev(this);
+        }
+        if (cursor == null || !cursor.equals(store.getByHeight(cursor.getHeight())))
+            return null;
+        Collections.reverse(top);
+        return top;
+    }
+
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        if (chainHead == null)
+            return store.getByHeight(height);
+        if (height < 0 || height > chainHead.getHeight())
+            return null;
+        if (bestChainTop == null)
+            return chainHead.getAncestor(this, height);
+        int bottom = chainHead.getHeight() - bestChainTop.size() + 1;
+        if (height >= bottom)
+            return bestChainTop.get(height - bottom);
+        return store.getByHeight(height);
+    }
+
+    public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        if (!inBatch()) {
+            store.putAll(blocks, chainHead);
+            return;
+        }
+        for (StoredBlock block : blocks)
+            put(block);
+        setChainHead(chainHead);
+    }
+}
@@ -162,9 +162,32 @@ public class Block extends Message {
      * target that covers 5% of all possible hash values. Then the work of the block will be 20. As the target gets
      * lower, the amount of work goes up.
      */
-    public BigInteger getWork() throws VerificationException {
+    public ChainWork getWork() throws VerificationException {
+        // The target only changes once per difficulty period, so nearly every block has the same one as the last
+        // block we looked at and the 256 bit division can be skipped.
+        CachedWork cached = lastWork;
+        if (cached != null && cached.difficultyTarget == difficultyTarget && cached.proofOfWorkLimit == params.proofOfWorkLimit)
+            return cached.work;
         BigInteger target = getDifficultyTargetAsInteger();
-        return LARGEST_HASH.divide(target.add(BigInteger.ONE));
+        ChainWork work = ChainWork.valueOf(LARGEST_HASH.divide(target.add(BigInteger.ONE)));
+        lastWork = new CachedWork(params.proofOfWorkLimit, difficultyTarget, work);
+        return work;
+    }
+
+    // The work of the last valid difficulty target seen, shared by all blocks. The proof of work limit is part of the
+    // key as it decides whether a target is valid.
+    private static volatile CachedWork lastWork;
+
+    private static class CachedWork {
+        final BigInteger proofOfWorkLimit;
+        final long difficultyTarget;
+        final ChainWork work;
+
+        CachedWork(BigInteger proofOfWorkLimit, long difficultyTarget, ChainWork work) {
+            this.proofOfWorkLimit = proofOfWorkLimit;
+            this.difficultyTarget = difficultyTarget;
+            this.work = work;
+        }
     }
 
     /** Returns a copy of the block, but without any transactions. */
@@ -0,0 +1,341 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append only archive of full blocks, so blocks we have already downloaded can be read back from disk rather than
+ * fetched from a peer again. The block stores only keep headers; this is an optional addition to them, see
+ * {@link BlockChain#setBlockArchive(BlockArchive)}.<p>
+ *
+ * Blocks are appended in their wire format to a series of data files in a directory (blk00000.dat, blk00001.dat
+ * and so on), each preceded by its length. A new file is started once the current one would grow beyond
+ * {@link #MAX_FILE_BYTES}. A {@link BlockHashIndex} in the same directory maps each block hash to the file, offset
+ * and length of the block, so reading a block back is a single positional read. The raw bytes can also be copied
+ * straight to a channel without passing through the heap, see {@link #transferTo(byte[], WritableByteChannel)}.<p>
+ *
+ * The index is derived data. When the archive is opened, any blocks written after the point the index covers are
+ * indexed, and a partially written block at the end of the last file is cut off. Damage found anywhere else is
+ * logged and the affected blocks are left out of the index, the data files themselves are never cut. If the index
+ * claims to cover more than the data files hold, as it can after a crash if the data never reached the disk, it is
+ * rebuilt from scratch.<p>
+ *
+ * Reads may run concurrently, they only wait while a block is being added.
+ */
+public class BlockArchive {
+    private static final Logger log = LoggerFactory.getLogger(BlockArchive.class);
+
+    /** Data files are not grown beyond this size, unless a single block needs more. */
+    public static final int MAX_FILE_BYTES = 128 * 1024 * 1024;
+
+    // Index values pack the file number, the offset of the block in that file and its length into one positive
+    // long. The offset always counts the length prefix, so a value is never zero.
+    private static final int OFFSET_BITS = 28;
+    private static final int LENGTH_BITS = 24;
+    private static final int FILE_BITS = 63 - OFFSET_BITS - LENGTH_BITS;
+    private static final int LENGTH_PREFIX_BYTES = 4;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+    private BlockHashIndex index;
+    // Reads hold the read lock, add() the write lock.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Opens the archive in the given directory, creating the directory and an empty archive if they don't exist.
+     */
+    public BlockArchive(NetworkParameters params, File directory) throws BlockStoreException {
+        this.params = params;
+        this.directory = directory;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Could not create " + directory);
+            for (int fileNo = 0; dataFile(fileNo).exists(); fileNo++)
+                files.add(new RandomAccessFile(dataFile(fileNo), "rw"));
+            if (files.isEmpty())
+                files.add(new RandomAccessFile(dataFile(0), "rw"));
+            index = new BlockHashIndex(new File(directory, "blocks.index"));
+            updateIndex();
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not open block archive in " + directory, e);
+        }
+    }
+
+    private File dataFile(int fileNo) {
+        return new File(directory, String.format("blk%05d.dat", fileNo));
+    }
+
+    // The covered length of the index is the position of the next block to index, packed as (file << 32 | offset).
+    private static long position(int fileNo, long offset) {
+        return ((long) fileNo << 32) | offset;
+    }
+
+    private static long pack(int fileNo, long offset, int length) {
+        return ((long) fileNo << (OFFSET_BITS + LENGTH_BITS)) | (offset << LENGTH_BITS) | length;
+    }
+
+    private static int fileOf(long value) {
+        return (int) (value >>> (OFFSET_BITS + LENGTH_BITS));
+    }
+
+    private static long offsetOf(long value) {
+        return (value >>> LENGTH_BITS) & ((1L << OFFSET_BITS) - 1);
+    }
+
+    private static int lengthOf(long value) {
+        return (int) (value & ((1L << LENGTH_BITS) - 1));
+    }
+
+    /** Indexes any blocks the index does not cover yet, rebuilding it if it is ahead of the data files. */
+    private void updateIndex() throws IOException {
+        long covered = index.getCoveredLength();
+        int fileNo = (int) (covered >>> 32);
+        long offset = covered & 0xFFFFFFFFL;
+        if (fileNo >= files.size() || offset > files.get(fileNo).length()) {
+            log.warn("Block archive index is ahead of the data files, rebuilding it");
+            index.clear();
+            fileNo = 0;
+            offset = 0;
+        }
+        int indexed = 0;
+        ByteBuffer prefix = ByteBuffer.allocate(LENGTH_PREFIX_BYTES);
+        for (; fileNo < files.size(); fileNo++, offset = 0) {
+            FileChannel channel = files.get(fileNo).getChannel();
+            boolean lastFile = fileNo == files.size() - 1;
+            long size = channel.size();
+            while (offset < size) {
+                int length = -1;
+                prefix.clear();
+                if (size - offset >= LENGTH_PREFIX_BYTES) {
+                    readFully(channel, prefix, offset);
+                    length = prefix.getInt(0);
+                }
+                if (length <= 0 || length >= (1 << LENGTH_BITS) || size - offset - LENGTH_PREFIX_BYTES < length) {
+                    // The record doesn't fit, so there's no telling where the next one starts.
+                    if (lastFile) {
+                        // A block that was being appended when we crashed. Only the tail of the newest file is cut.
+                        log.warn("Cutting off partially written block at offset {} of {}", offset, dataFile(fileNo));
+                        channel.truncate(offset);
+                        size = offset;
+                    } else {
+                        // Older files are never written to again, so this is damage rather than a torn write. Keep
+                        // the file as it is and carry on with the next one.
+                        log.error("Damaged record at offset {} of {}, blocks after it in this file are not indexed",
+                                offset, dataFile(fileNo));
+                    }
+                    break;
+                }
+                ByteBuffer bytes = ByteBuffer.allocate(length);
+                readFully(channel, bytes, offset + LENGTH_PREFIX_BYTES);
+                try {
+                    byte[] hash = new Block(params, bytes.array()).getHash();
+                    index.put(hash, pack(fileNo, offset + LENGTH_PREFIX_BYTES, length));
+                    indexed++;
+                } catch (Exception e) {
+                    // The framing is intact, so skip just this block rather than anything after it. Besides
+                    // ProtocolException the parser throws runtime exceptions for short input.
+                    log.error("Skipping block at offset {} of {} that does not parse: {}",
+                            new Object[] { offset, dataFile(fileNo), e.toString() });
+                }
+                offset += LENGTH_PREFIX_BYTES + length;
+            }
+            if (lastFile)
+                index.setCoveredLength(position(fileNo, offset));
+        }
+        if (indexed > 0)
+            log.info("Indexed {} archived blocks", indexed);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of block archive");
+        }
+        buf.flip();
+    }
+
+    /**
+     * Appends the given block to the archive, unless it is already there. The block must have its transactions,
+     * headers alone are not archived.
+     */
+    public void add(Block block) throws BlockStoreException {
+        if (block.transactions == null)
+            throw new IllegalArgumentException("Only full blocks can be archived: " + block.getHashAsString());
+        byte[] hash = block.getHash();
+        byte[] bytes = block.bitcoinSerialize();
+        if (bytes.length >= (1 << LENGTH_BITS))
+            throw new BlockStoreException("Block " + block.getHashAsString() + " is too large to archive");
+        lock.writeLock().lock();
+        try {
+            if (index.get(hash) >= 0)
+                return;
+            int fileNo = files.size() - 1;
+            FileChannel channel = files.get(fileNo).getChannel();
+            long offset = channel.size();
+            if (offset > 0 && offset + LENGTH_PREFIX_BYTES + bytes.length > MAX_FILE_BYTES) {
+                if (fileNo + 1 >= (1 << FILE_BITS))
+                    throw new BlockStoreException("Block archive is full");
+                fileNo++;
+                files.add(new RandomAccessFile(dataFile(fileNo), "rw"));
+                channel = files.get(fileNo).getChannel();
+                offset = 0;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(LENGTH_PREFIX_BYTES + bytes.length);
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write(buf, offset + buf.position());
+            index.put(hash, pack(fileNo, offset + LENGTH_PREFIX_BYTES, bytes.length));
+            index.setCoveredLength(position(fileNo, offset + LENGTH_PREFIX_BYTES + bytes.length));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Returns true if the block with the given hash is in the archive. */
+    public boolean contains(byte[] hash) throws BlockStoreException {
+        return lookup(hash) >= 0;
+    }
+
+    private long lookup(byte[] hash) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            return index.get(hash);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the size in bytes of the block with the given hash, or -1 if it is not archived. */
+    public int getBlockSize(byte[] hash) throws BlockStoreException {
+        long value = lookup(hash);
+        return value < 0 ? -1 : lengthOf(value);
+    }
+
+    /**
+     * Returns the wire format of the block with the given hash, or null if it is not archived. The buffer is
+     * positioned at the start of the block and its limit is the end.
+     */
+    public ByteBuffer getRawBlock(byte[] hash) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            long value = index.get(hash);
+            if (value < 0)
+                return null;
+            ByteBuffer buf = ByteBuffer.allocate(lengthOf(value));
+            readFully(files.get(fileOf(value)).getChannel(), buf, offsetOf(value));
+            return buf;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the block with the given hash, including its transactions, or null if it is not archived. */
+    public Block getBlock(byte[] hash) throws BlockStoreException {
+        ByteBuffer raw = getRawBlock(hash);
+        if (raw == null)
+            return null;
+        try {
+            Block block = new Block(params, raw.array());
+            if (!Arrays.equals(block.getHash(), hash))
+                throw new BlockStoreException("Block archive index is corrupt, " + Utils.bytesToHexString(hash) +
+                        " points at the wrong block");
+            return block;
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Copies the wire format of the block with the given hash to the given channel, for example a socket, using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so the operating system can move the bytes
+     * without them entering the heap. The target must be in blocking mode. Returns the number of bytes written, or -1
+     * if the block is not archived.
+     */
+    public long transferTo(byte[] hash, WritableByteChannel target) throws BlockStoreException, IOException {
+        lock.readLock().lock();
+        try {
+            long value;
+            try {
+                value = index.get(hash);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+            if (value < 0)
+                return -1;
+            FileChannel channel = files.get(fileOf(value)).getChannel();
+            long position = offsetOf(value);
+            long remaining = lengthOf(value);
+            while (remaining > 0) {
+                long n = channel.transferTo(position, remaining, target);
+                position += n;
+                remaining -= n;
+            }
+            return lengthOf(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Forces the archived blocks to the storage device. */
+    public void sync() throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            files.get(files.size() - 1).getChannel().force(false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Closes the data files and the index. The archive cannot be used afterwards. */
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            for (RandomAccessFile file : files)
+                file.close();
+            index.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
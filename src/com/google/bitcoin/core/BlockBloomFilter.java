@@ -0,0 +1,230 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent Bloom filter over the hashes of the blocks in a store. Block stores consult it before touching the
+ * disk, so lookups of blocks that were never stored, which happen for every orphan block during chain download,
+ * are answered from memory.<p>
+ *
+ * The filter never gives false negatives, and false positives just fall through to the real lookup. Because the
+ * number of blocks isn't known up front the filter is scalable: once the newest layer has taken as many hashes as it
+ * was sized for, a new layer of twice the size is added after it. A hash might be present if every bit for it is set
+ * in any one layer. The file is memory mapped, so setting bits is a plain memory write.<p>
+ *
+ * The bit positions come straight from the block hash using double hashing, it is already uniformly distributed
+ * apart from the leading zero bytes, which are not used.<p>
+ *
+ * Like {@link BlockHashIndex} the header records how much of the block file has been added to the filter, so owners
+ * can tell when it is stale. Lookups may run concurrently with each other but not with changes to the filter,
+ * callers must provide their own locking.
+ */
+class BlockBloomFilter {
+    private static final Logger log = LoggerFactory.getLogger(BlockBloomFilter.class);
+
+    private static final int MAGIC = 0x62626c6d;  // "bblm"
+    private static final int VERSION = 1;
+    // magic, version, layer count, spare, hash count, covered length.
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+    // 16 bits per hash with 8 probes gives about a 0.06% false positive rate per layer.
+    private static final int BITS_PER_HASH = 16;
+    private static final int NUM_PROBES = 8;
+    // The first layer has room for 64k hashes, 128KB.
+    private static final long FIRST_LAYER_BITS = 1 << 20;
+    // Layers are mapped in one piece, so must stay below 2GB.
+    private static final int MAX_LAYERS = 14;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private final List<MappedByteBuffer> layers = new ArrayList<MappedByteBuffer>();
+    private long count;
+    private long coveredLength;
+
+    /**
+     * Opens the filter stored in the given file, creating an empty one if the file does not exist or does not
+     * contain a valid filter.
+     */
+    BlockBloomFilter(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (!readHeader()) {
+            log.info("Bloom filter {} is missing or unreadable, starting with an empty one", file);
+            clear();
+        }
+    }
+
+    private static long layerBits(int layer) {
+        return FIRST_LAYER_BITS << layer;
+    }
+
+    // Each layer is twice the size of the one before, so all the layers before this one add up to its size less
+    // the size of the first.
+    private static long bitsBefore(int layer) {
+        return layerBits(layer) - FIRST_LAYER_BITS;
+    }
+
+    private static long layerPosition(int layer) {
+        return HEADER_SIZE + bitsBefore(layer) / 8;
+    }
+
+    private boolean readHeader() throws IOException {
+        if (channel.size() < HEADER_SIZE)
+            return false;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            return false;
+        int numLayers = header.getInt(8);
+        long cnt = header.getLong(16);
+        long covered = header.getLong(24);
+        if (numLayers <= 0 || numLayers > MAX_LAYERS || cnt < 0 || covered < 0)
+            return false;
+        if (channel.size() < layerPosition(numLayers))
+            return false;
+        layers.clear();
+        for (int i = 0; i < numLayers; i++)
+            mapLayer(i);
+        count = cnt;
+        coveredLength = covered;
+        return true;
+    }
+
+    private void writeHeader() {
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, layers.size());
+        header.putInt(12, 0);
+        header.putLong(16, count);
+        header.putLong(24, coveredLength);
+    }
+
+    private void mapLayer(int layer) throws IOException {
+        long start = layerPosition(layer);
+        long size = layerBits(layer) / 8;
+        // Growing the file fills the new layer with zeros.
+        if (channel.size() < start + size)
+            raf.setLength(start + size);
+        layers.add(channel.map(FileChannel.MapMode.READ_WRITE, start, size));
+    }
+
+    /** Returns false if the given hash was definitely never added, true if it might have been. */
+    boolean mightContain(byte[] hash) {
+        long h1 = firstHash(hash);
+        long h2 = secondHash(hash);
+        for (int i = 0; i < layers.size(); i++) {
+            if (allBitsSet(layers.get(i), layerBits(i), h1, h2))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean allBitsSet(ByteBuffer layer, long bits, long h1, long h2) {
+        for (int probe = 0; probe < NUM_PROBES; probe++) {
+            long bit = (h1 + probe * h2) & (bits - 1);
+            if ((layer.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the given hash to the filter. The header is not rewritten, callers are expected to follow an add or a
+     * batch of adds with {@link #setCoveredLength(long)}.
+     */
+    void add(byte[] hash) throws IOException {
+        int last = layers.size() - 1;
+        if (count - bitsBefore(last) / BITS_PER_HASH >= layerBits(last) / BITS_PER_HASH && layers.size() < MAX_LAYERS) {
+            mapLayer(layers.size());
+            last++;
+            writeHeader();
+        }
+        ByteBuffer layer = layers.get(last);
+        long bits = layerBits(last);
+        long h1 = firstHash(hash);
+        long h2 = secondHash(hash);
+        for (int probe = 0; probe < NUM_PROBES; probe++) {
+            long bit = (h1 + probe * h2) & (bits - 1);
+            int pos = (int) (bit >>> 3);
+            layer.put(pos, (byte) (layer.get(pos) | (1 << (bit & 7))));
+        }
+        count++;
+    }
+
+    // Block hashes are big endian with leading zero bytes, so the bit positions are taken from the end.
+    private static long firstHash(byte[] hash) {
+        return readLong(hash, 24);
+    }
+
+    private static long secondHash(byte[] hash) {
+        // Odd, so stepping by it visits different bits of the power of two sized layer.
+        return readLong(hash, 16) | 1;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        return result;
+    }
+
+    /** Removes every hash and resets the covered length to zero. */
+    void clear() throws IOException {
+        layers.clear();
+        raf.setLength(0);
+        raf.setLength(HEADER_SIZE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        mapLayer(0);
+        count = 0;
+        coveredLength = 0;
+        writeHeader();
+    }
+
+    /** Returns how many bytes of the indexed file are reflected in this filter. */
+    long getCoveredLength() {
+        return coveredLength;
+    }
+
+    /** Records how many bytes of the indexed file are reflected in this filter and updates the header. */
+    void setCoveredLength(long coveredLength) {
+        this.coveredLength = coveredLength;
+        writeHeader();
+    }
+
+    /** Forces changes made so far out to the storage device. */
+    void force() {
+        for (MappedByteBuffer layer : layers)
+            layer.force();
+        header.force();
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+}
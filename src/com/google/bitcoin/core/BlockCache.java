@@ -0,0 +1,214 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of {@link StoredBlock}s keyed by hash, for block stores to put in front of slower storage.<p>
+ *
+ * The size is given as a memory budget in bytes, which is turned into a number of entries using a rough estimate of
+ * what a cached header costs on the heap ({@link #ESTIMATED_ENTRY_BYTES}).<p>
+ *
+ * Eviction uses segmented LRU. New entries go into a probationary segment and are only promoted to the protected
+ * segment, which takes up most of the cache, when they are requested again. A single pass over many blocks that are
+ * never looked at again, such as a re-org or a rescan, therefore only cycles the probationary segment and does not
+ * push out the blocks that are used repeatedly, like those near the chain head.<p>
+ *
+ * Hits, misses and evictions are counted so the cache can be sized by looking at how it performs. The cache is
+ * thread safe. Larger caches are split by hash into shards, each with its own lock and its own share of the entries,
+ * so lookups from several threads, such as readers of a {@link BoundedOverheadBlockStore}, rarely wait for each
+ * other. Recency is then tracked per shard rather than across the whole cache.
+ */
+public class BlockCache {
+    /**
+     * Rough heap cost of one cached entry: the StoredBlock, its header Block with the hash arrays, the chain work
+     * and the map entries pointing at them.
+     */
+    public static final int ESTIMATED_ENTRY_BYTES = 512;
+    /** Share of the entries given to the protected segment, in percent. */
+    private static final int PROTECTED_PERCENT = 80;
+    // Shards are only used once each can hold this many entries, so small caches keep exact LRU order.
+    private static final int MIN_SHARD_ENTRIES = 256;
+    private static final int MAX_SHARDS = 16;
+
+    private final int maxEntries;
+    private final Shard[] shards;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache that holds about as many blocks as fit in the given number of bytes, and at least one.
+     */
+    public BlockCache(long memoryBudgetBytes) {
+        maxEntries = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudgetBytes / ESTIMATED_ENTRY_BYTES));
+        // A power of two, so a shard can be picked with a mask.
+        int count = 1;
+        while (count < MAX_SHARDS && (long) count * 2 * MIN_SHARD_ENTRIES <= maxEntries)
+            count *= 2;
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            // Spread the remainder so the shards add up to maxEntries.
+            shards[i] = new Shard(maxEntries / count + (i < maxEntries % count ? 1 : 0));
+        }
+    }
+
+    private Shard shardFor(Sha256Hash hash) {
+        if (shards.length == 1)
+            return shards[0];
+        // Arrays.hashCode weights the last bytes least, so mix the bits before masking.
+        int h = hash.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return shards[h & (shards.length - 1)];
+    }
+
+    /** Returns the cached block with the given hash, or null if it is not cached. */
+    public StoredBlock get(Sha256Hash hash) {
+        StoredBlock block = shardFor(hash).get(hash);
+        if (block == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return block;
+    }
+
+    /** Adds the given block to the cache, or replaces the cached copy if there is one. */
+    public void put(Sha256Hash hash, StoredBlock block) {
+        int evicted = shardFor(hash).put(hash, block);
+        if (evicted > 0)
+            evictions.addAndGet(evicted);
+    }
+
+    /** Removes the block with the given hash from the cache, if present. */
+    public void remove(Sha256Hash hash) {
+        shardFor(hash).remove(hash);
+    }
+
+    /** Empties the cache. The counters are not reset. */
+    public void clear() {
+        for (Shard shard : shards)
+            shard.clear();
+    }
+
+    /** Returns the number of blocks currently cached. */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards)
+            size += shard.size();
+        return size;
+    }
+
+    /** Returns the most blocks the cache will hold. */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /** Returns how many calls to {@link #get(Sha256Hash)} found the block. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many calls to {@link #get(Sha256Hash)} did not find the block. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns how many blocks have been dropped to make room for others. */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BlockCache: %d/%d entries, %d hits, %d misses, %d evictions",
+                size(), maxEntries, getHits(), getMisses(), getEvictions());
+    }
+
+    /** One independently locked part of the cache, with its own probationary and protected segments. */
+    private static class Shard {
+        private final int maxEntries;
+        private final int maxProtected;
+        // Both maps are access ordered, so iteration starts at the least recently used entry.
+        private final LinkedHashMap<Sha256Hash, StoredBlock> probation =
+                new LinkedHashMap<Sha256Hash, StoredBlock>(16, 0.75f, true);
+        private final LinkedHashMap<Sha256Hash, StoredBlock> protectedSegment =
+                new LinkedHashMap<Sha256Hash, StoredBlock>(16, 0.75f, true);
+
+        Shard(int maxEntries) {
+            this.maxEntries = maxEntries;
+            this.maxProtected = (int) ((long) maxEntries * PROTECTED_PERCENT / 100);
+        }
+
+        synchronized StoredBlock get(Sha256Hash hash) {
+            StoredBlock block = protectedSegment.get(hash);
+            if (block != null)
+                return block;
+            block = probation.remove(hash);
+            if (block == null)
+                return null;
+            // Second request, promote it. The least recently used protected entry gets another chance in probation.
+            protectedSegment.put(hash, block);
+            if (protectedSegment.size() > maxProtected) {
+                Iterator<Map.Entry<Sha256Hash, StoredBlock>> it = protectedSegment.entrySet().iterator();
+                Map.Entry<Sha256Hash, StoredBlock> eldest = it.next();
+                it.remove();
+                probation.put(eldest.getKey(), eldest.getValue());
+            }
+            return block;
+        }
+
+        // Returns how many entries were evicted to make room.
+        synchronized int put(Sha256Hash hash, StoredBlock block) {
+            if (protectedSegment.containsKey(hash)) {
+                protectedSegment.put(hash, block);
+                return 0;
+            }
+            probation.put(hash, block);
+            int evicted = 0;
+            while (probation.size() + protectedSegment.size() > maxEntries) {
+                // Evict from probation first, only dip into the protected segment if probation is empty, which can
+                // happen when the cache is too small to have a probationary segment at all.
+                LinkedHashMap<Sha256Hash, StoredBlock> victims = probation.isEmpty() ? protectedSegment : probation;
+                Iterator<Sha256Hash> it = victims.keySet().iterator();
+                it.next();
+                it.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized void remove(Sha256Hash hash) {
+            if (probation.remove(hash) == null)
+                protectedSegment.remove(hash);
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protectedSegment.clear();
+        }
+
+        synchronized int size() {
+            return probation.size() + protectedSegment.size();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.google.bitcoin.core;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,8 +27,10 @@ import org.slf4j.LoggerFactory;
  * A BlockChain holds a series of {@link Block} objects, links them together, and knows how to verify that the
  * chain follows the rules of the {@link NetworkParameters} for this chain.<p>
  *
- * A BlockChain requires a {@link Wallet} to receive transactions that it finds during the initial download. However,
- * if you don't care about this, you can just pass in an empty wallet and nothing bad will happen.<p>
+ * A BlockChain passes the transactions it finds, including during the initial download, to any number of
+ * {@link Wallet}s. Each transaction is matched against the keys of every wallet with a single lookup and only handed
+ * to the wallets it concerns, so one chain can serve many wallets. If you don't care about transactions you can
+ * construct a chain without any.<p>
  *
  * A newly constructed BlockChain is empty. To fill it up, use a {@link Peer} object to download the chain from the
  * network.<p>
@@ -51,6 +54,8 @@ public class BlockChain {
 
     /** Keeps a map of block hashes to StoredBlocks. */
     protected BlockStore blockStore;
+    // Fronts blockStore for everything the chain does, so a batch of blocks can be written to it in one go.
+    private final BatchingBlockStore store;
 
     /**
      * Tracks the top of the best known chain.<p>
@@ -63,11 +68,36 @@ public class BlockChain {
     protected StoredBlock chainHead;
 
     protected final NetworkParameters params;
-    protected final Wallet wallet;
 
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
     // were downloading the block chain.
-    private final ArrayList<Block> unconnectedBlocks = new ArrayList<Block>();
+    private final OrphanBlockPool unconnectedBlocks = new OrphanBlockPool();
+
+    private final ChainMetrics metrics = new ChainMetrics();
+    // Finds the transactions of new blocks that the wallet needs to see.
+    private final RelevanceScanner relevanceScanner;
+
+    // The head as last written to the store, published for readers that shouldn't wait for the chain lock.
+    private volatile ChainHeadSnapshot snapshot;
+    private final CopyOnWriteArrayList<ChainHeadListener> chainHeadListeners =
+            new CopyOnWriteArrayList<ChainHeadListener>();
+    // The newest block in unconnectedBlocks, published for the same reason.
+    private volatile Block newestUnconnected;
+
+    // Knows the start of the current difficulty interval, so retargets on the best chain don't need a lookup.
+    private final RetargetTracker retargets;
+
+    // How many blocks of the new branch are read from the store at once during a re-org.
+    private static final int REORG_WINDOW = 100;
+
+    // Set while addAll() runs, when new blocks and the chain head are only written to the store at the end.
+    private boolean inBatch;
+    private boolean batchHeadDirty;
+
+    // Where full blocks are kept once connected, or null. Volatile so peers can read it without waiting for add().
+    private volatile BlockArchive blockArchive;
+    // Blocks connected under the chain lock that are archived once it has been released. Guarded by this.
+    private final List<Block> toArchive = new ArrayList<Block>();
 
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
@@ -78,82 +108,281 @@ public class BlockChain {
      * {@link BoundedOverheadBlockStore} if you'd like to ensure fast startup the next time you run the program.
      */
     public BlockChain(NetworkParameters params, Wallet wallet, BlockStore blockStore) {
+        this(params, blockStore);
+        addWallet(wallet);
+    }
+
+    /**
+     * Constructs a BlockChain connected to the given store but to no wallets. Wallets can be added later with
+     * {@link #addWallet(Wallet)}.
+     */
+    public BlockChain(NetworkParameters params, BlockStore blockStore) {
         try {
             this.blockStore = blockStore;
+            store = new BatchingBlockStore(blockStore);
             chainHead = blockStore.getChainHead();
             log.info("chain head is:\n{}", chainHead.getHeader());
+            retargets = new RetargetTracker(params, store);
+            retargets.setChainHead(chainHead);
+            snapshot = ChainHeadSnapshot.create(chainHead, null, blockStore);
         } catch (BlockStoreException e) {
             throw new RuntimeException(e);
         }
 
         this.params = params;
-        this.wallet = wallet;
+        this.relevanceScanner = new RelevanceScanner(SharedWorkers.getThreads());
+    }
+
+    /**
+     * Starts passing the transactions of new blocks that concern the given wallet to it. Only blocks connected from
+     * now on are scanned, so a wallet with keys that have been used before should be added before the chain is
+     * downloaded. Adding a wallet twice does nothing.
+     */
+    public synchronized void addWallet(Wallet wallet) {
+        relevanceScanner.addWallet(wallet);
+    }
+
+    /** Stops passing transactions to the given wallet. */
+    public synchronized void removeWallet(Wallet wallet) {
+        relevanceScanner.removeWallet(wallet);
     }
 
     /**
      * Processes a received block and tries to add it to the chain. If there's something wrong with the block an
      * exception is thrown. If the block is OK but cannot be connected to the chain at this time, returns false.
-     * If the block can be connected to the chain, returns true.
+     * If the block can be connected to the chain, returns true.<p>
+     *
+     * The checks that don't depend on the chain are made before taking the chain lock, so several threads adding
+     * blocks at once only queue up for the part that does. To spread those checks over a pool of threads, see
+     * {@link BlockVerifier}.
+     */
+    public boolean add(Block block) throws VerificationException, ScriptException {
+        verify(block);
+        return addVerified(block);
+    }
+
+    /**
+     * Proves the block is internally valid: hash is lower than target, merkle root is correct and so on. This does
+     * not touch the chain so may be called from any thread.
+     */
+    void verify(Block block) throws VerificationException {
+        long start = System.nanoTime();
+        try {
+            block.verify();
+            metrics.verifyTime.record(System.nanoTime() - start);
+        } catch (VerificationException e) {
+            log.error("Failed to verify block:", e);
+            log.error(block.toString());
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a run of blocks under a single acquisition of the chain lock, as if by calling {@link #add(Block)} on each
+     * in turn. The blocks are verified on several threads before the lock is taken, the new blocks and chain head
+     * are written to the store in one {@link BlockStore#putAll(List, StoredBlock)} after the last block, and
+     * unconnected blocks waiting for any of them are connected in one pass at the end, which makes this much cheaper
+     * than separate calls when importing or catching up. Returns how many of the blocks could be connected, the rest
+     * are held back as unconnected.<p>
+     *
+     * If a block is invalid the exception is thrown once the blocks before it have been committed: they stay in the
+     * chain, and neither the invalid block nor any after it are added.
+     */
+    public int addAll(List<Block> blocks) throws VerificationException, ScriptException {
+        try {
+            return addAllUnarchived(blocks);
+        } finally {
+            archiveConnected();
+        }
+    }
+
+    private int addAllUnarchived(List<Block> blocks) throws VerificationException, ScriptException {
+        VerificationException[] errors;
+        try {
+            errors = verifyAll(blocks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        int valid = 0;
+        while (valid < blocks.size() && errors[valid] == null)
+            valid++;
+        // Throws straight away if connecting fails, as that block comes before any that failed verification.
+        int connected = addAllVerified(blocks.subList(0, valid));
+        if (valid < blocks.size())
+            throw errors[valid];
+        return connected;
+    }
+
+    /**
+     * Verifies the given blocks on the shared worker threads. Returns the exception each block failed with, or null
+     * for blocks that passed. Blocks after the first failure may be left unchecked.
      */
-    public synchronized boolean add(Block block) throws VerificationException, ScriptException {
+    private VerificationException[] verifyAll(List<Block> blocks) throws InterruptedException {
+        VerificationException[] errors = new VerificationException[blocks.size()];
+        if (blocks.size() <= 1 || SharedWorkers.getThreads() <= 1) {
+            for (int i = 0; i < blocks.size(); i++) {
+                try {
+                    verify(blocks.get(i));
+                } catch (VerificationException e) {
+                    errors[i] = e;
+                    break;
+                }
+            }
+            return errors;
+        }
+        ExecutorService executor = SharedWorkers.get();
+        List<Future<?>> futures = new ArrayList<Future<?>>(blocks.size());
+        try {
+            for (final Block block : blocks) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws VerificationException {
+                        verify(block);
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof VerificationException))
+                        throw new RuntimeException(e.getCause());
+                    errors[i] = (VerificationException) e.getCause();
+                    break;
+                }
+            }
+            return errors;
+        } finally {
+            // Nothing after a failed block is needed.
+            for (Future<?> future : futures)
+                future.cancel(false);
+        }
+    }
+
+    // Connects blocks that have passed verify(), keeping the blocks before a failure in the chain.
+    private synchronized int addAllVerified(List<Block> blocks) throws VerificationException, ScriptException {
+        List<Block> connected = new ArrayList<Block>(blocks.size());
+        Exception failure = null;
+        inBatch = true;
+        store.begin();
+        try {
+            try {
+                for (Block block : blocks) {
+                    if (add(block, false))
+                        connected.add(block);
+                }
+            } catch (VerificationException e) {
+                failure = e;
+            } catch (ScriptException e) {
+                failure = e;
+            }
+            tryConnectingUnconnected(connected);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            inBatch = false;
+            try {
+                // Everything the batch connected reaches the store in one write.
+                store.commit();
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+            if (batchHeadDirty) {
+                batchHeadDirty = false;
+                publishChainHead();
+                log.info("Chain is now {} blocks high", chainHead.getHeight());
+            }
+        }
+        if (failure instanceof VerificationException)
+            throw (VerificationException) failure;
+        if (failure instanceof ScriptException)
+            throw (ScriptException) failure;
+        return connected.size();
+    }
+
+    /** Like {@link #add(Block)}, for a block that has already passed {@link #verify(Block)}. */
+    boolean addVerified(Block block) throws VerificationException, ScriptException {
         try {
-            return add(block, true);
+            synchronized (this) {
+                return add(block, true);
+            }
         } catch (BlockStoreException e) {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
+        } finally {
+            archiveConnected();
         }
     }
 
-    // Stat counters.
-    private long statsLastTime = System.currentTimeMillis();
-    private long statsBlocksAdded;
+    /**
+     * Appends the blocks connected since the last call to the archive, if there is one. This runs after the chain
+     * lock is released, so writing to the archive doesn't hold up other threads adding blocks, and a failure to
+     * archive a block is only logged: the block is in the chain whether or not the archive has it.
+     */
+    private void archiveConnected() {
+        List<Block> blocks;
+        synchronized (this) {
+            if (toArchive.isEmpty())
+                return;
+            blocks = new ArrayList<Block>(toArchive);
+            toArchive.clear();
+        }
+        BlockArchive archive = blockArchive;
+        if (archive == null)
+            return;
+        for (Block block : blocks) {
+            try {
+                archive.add(block);
+            } catch (BlockStoreException e) {
+                log.error("Failed to archive block " + block.getHashAsString(), e);
+            }
+        }
+    }
 
     private synchronized boolean add(Block block, boolean tryConnecting)
             throws BlockStoreException, VerificationException, ScriptException {
-        if (System.currentTimeMillis() - statsLastTime > 1000) {
-            // More than a second passed since last stats logging.
-            log.info("{} blocks per second", statsBlocksAdded);
-            statsLastTime = System.currentTimeMillis();
-            statsBlocksAdded = 0;
-        }
+        long start = System.nanoTime();
         // We don't check for double adds here to avoid potentially expensive block chain misses.
-
-        // Prove the block is internally valid: hash is lower than target, merkle root is correct and so on.
-        try {
-            block.verify();
-        } catch (VerificationException e) {
-            log.error("Failed to verify block:", e);
-            log.error(block.toString());
-            throw e;
-        }
+        //
+        // The block has already been verified, either just now or before it was put aside as unconnected.
 
         // Try linking it to a place in the currently known blocks.
-        StoredBlock storedPrev = blockStore.get(block.getPrevBlockHash());
+        StoredBlock storedPrev = store.get(block.getPrevBlockHash());
+        metrics.storeGetTime.record(System.nanoTime() - start);
 
         if (storedPrev == null) {
             // We can't find the previous block. Probably we are still in the process of downloading the chain and a
             // block was solved whilst we were doing it. We put it to one side and try to connect it later when we
             // have more blocks.
             log.warn("Block does not connect: {}", block.getHashAsString());
-            unconnectedBlocks.add(block);
+            unconnectedBlocks.add(block, System.currentTimeMillis());
+            newestUnconnected = unconnectedBlocks.getNewest();
+            metrics.setUnconnectedBlocks(unconnectedBlocks.size());
             return false;
         } else {
             // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
             //
             // Create a new StoredBlock from this block. It will throw away the transaction data so when block goes
             // out of scope we will reclaim the used memory.
-            StoredBlock newStoredBlock = storedPrev.build(block);
+            StoredBlock skip = getAncestor(storedPrev, StoredBlock.getSkipHeight(storedPrev.getHeight() + 1));
+            StoredBlock newStoredBlock = storedPrev.build(block, skip);
             checkDifficultyTransitions(storedPrev, newStoredBlock);
-            blockStore.put(newStoredBlock);
+            long putStart = System.nanoTime();
+            store.put(newStoredBlock);
+            metrics.storePutTime.record(System.nanoTime() - putStart);
             // block.transactions may be null here if we received only a header and not a full block. This does not
             // happen currently but might in future if getheaders is implemented.
             connectBlock(newStoredBlock, storedPrev, block.transactions);
+            if (blockArchive != null && block.transactions != null)
+                toArchive.add(block);
         }
+        metrics.connectTime.record(System.nanoTime() - start);
+        metrics.blockConnected();
 
         if (tryConnecting)
-            tryConnectingUnconnected();
+            tryConnectingUnconnected(Collections.singletonList(block));
 
-        statsBlocksAdded++;
         return true;
     }
 
@@ -162,7 +391,8 @@ public class BlockChain {
         if (storedPrev.equals(chainHead)) {
             // This block connects to the best known block, it is a normal continuation of the system.
             setChainHead(newStoredBlock);
-            log.info("Chain is now {} blocks high", chainHead.getHeight());
+            if (!inBatch)
+                log.info("Chain is now {} blocks high", chainHead.getHeight());
             if (newTransactions != null)
                 sendTransactionsToWallet(newStoredBlock, NewBlockType.BEST_CHAIN, newTransactions);
         } else {
@@ -201,31 +431,43 @@ public class BlockChain {
         log.info("Old chain head: {}", chainHead.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
         log.info("Split at block: {}", splitPoint.getHeader().getHashAsString());
-        // Then build a list of all blocks in the old part of the chain and the new part.
-        List<StoredBlock> oldBlocks = getPartialChain(chainHead, splitPoint);
-        List<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint);
-        // Now inform the wallet. This is necessary so the set of currently active transactions (that we can spend)
+        metrics.reorganized(chainHead.getHeight() - splitPoint.getHeight());
+        // Now inform the wallets. This is necessary so the set of currently active transactions (that we can spend)
         // can be updated to take into account the re-organize. We might also have received new coins we didn't have
         // before and our previous spends might have been undone.
-        wallet.reorganize(oldBlocks, newBlocks);
-        // Update the pointer to the best known block.
-        setChainHead(newChainHead);
-    }
-
-    /**
-     * Returns the set of contiguous blocks between 'higher' and 'lower'. Higher is included, lower is not.
-     */
-    private List<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower) throws BlockStoreException {
-        assert higher.getHeight() > lower.getHeight();
-        LinkedList<StoredBlock> results = new LinkedList<StoredBlock>();
-        StoredBlock cursor = higher;
-        while (true) {
-            results.add(cursor);
-            cursor = cursor.getPrev(blockStore);
+        //
+        // The branches are walked one block at a time rather than collected first, so the memory used doesn't depend
+        // on how deep the re-org is and each wallet is only locked for one block at a time. The old branch is taken
+        // off from the top down.
+        List<Wallet> wallets = relevanceScanner.getWallets();
+        StoredBlock cursor = chainHead;
+        while (!cursor.equals(splitPoint)) {
+            for (Wallet wallet : wallets)
+                wallet.disconnectBlock(cursor);
+            cursor = cursor.getPrev(store);
             assert cursor != null : "Ran off the end of the chain";
-            if (cursor.equals(lower)) break;
         }
-        return results;
+        // The new branch goes on from the bottom up. Blocks only point at their parents, so it is read a window at a
+        // time: find the block at the top of the window and follow the prev pointers down to the bottom of it.
+        int depth = newChainHead.getHeight() - splitPoint.getHeight();
+        StoredBlock[] window = new StoredBlock[Math.min(depth, REORG_WINDOW)];
+        for (int bottom = splitPoint.getHeight() + 1; bottom <= newChainHead.getHeight(); bottom += window.length) {
+            int size = Math.min(window.length, newChainHead.getHeight() - bottom + 1);
+            cursor = getAncestor(newChainHead, bottom + size - 1);
+            for (int i = size - 1; i >= 0; i--) {
+                window[i] = cursor;
+                if (i > 0)
+                    cursor = cursor.getPrev(store);
+            }
+            for (int i = 0; i < size; i++) {
+                for (Wallet wallet : wallets)
+                    wallet.connectBlock(window[i]);
+            }
+        }
+        for (Wallet wallet : wallets)
+            wallet.endReorganize();
+        // Update the pointer to the best known block.
+        setChainHead(newChainHead);
     }
 
     /**
@@ -233,24 +475,70 @@ public class BlockChain {
      * found (ie they are part of the same chain).
      */
     private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock chainHead) throws BlockStoreException {
-        StoredBlock currentChainCursor = chainHead;
-        StoredBlock newChainCursor = newChainHead;
-        // Loop until we find the block both chains have in common. Example:
+        // Find the block both chains have in common. Example:
         //
         //    A -> B -> C -> D
         //         \--> E -> F -> G
         //
         // findSplit will return block B. chainHead = D and newChainHead = G.
-        while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(blockStore);
-                assert currentChainCursor != null : "Attempt to follow an orphan chain";
+        //
+        // Once both chains share an ancestor at some height they share every block below it, so rather than walking
+        // back one block at a time we search over heights, looking ancestors up via skip pointers or by height. The
+        // search steps down in growing strides until the chains agree and then bisects the last stride, which takes
+        // a logarithmic number of lookups in the depth of the fork.
+        int height = Math.min(newChainHead.getHeight(), chainHead.getHeight());
+        StoredBlock common = commonAncestor(newChainHead, chainHead, height);
+        if (common != null)
+            return common;
+        int high = height;  // Known to differ.
+        int low;            // Known to agree once the loop exits.
+        int stride = 1;
+        while (true) {
+            low = Math.max(high - stride, 0);
+            common = commonAncestor(newChainHead, chainHead, low);
+            if (common != null)
+                break;
+            assert low > 0 : "Chains do not share a genesis block";
+            high = low;
+            stride *= 2;
+        }
+        while (high - low > 1) {
+            int mid = (low + high) >>> 1;
+            StoredBlock ancestor = commonAncestor(newChainHead, chainHead, mid);
+            if (ancestor != null) {
+                low = mid;
+                common = ancestor;
             } else {
-                newChainCursor = newChainCursor.getPrev(blockStore);
-                assert newChainCursor != null : "Attempt to follow an orphan chain";
+                high = mid;
             }
         }
-        return currentChainCursor;
+        return common;
+    }
+
+    // Returns the ancestor of a and b at the given height if they have the same one, otherwise null.
+    private StoredBlock commonAncestor(StoredBlock a, StoredBlock b, int height) throws BlockStoreException {
+        StoredBlock ancestorOfA = getAncestor(a, height);
+        StoredBlock ancestorOfB = getAncestor(b, height);
+        assert ancestorOfA != null && ancestorOfB != null : "Attempt to follow an orphan chain";
+        return ancestorOfA.equals(ancestorOfB) ? ancestorOfA : null;
+    }
+
+    /** Returns true if the given block is part of the chain that ends at the stores chain head. */
+    private boolean isOnBestChain(StoredBlock block) throws BlockStoreException {
+        // Our chain head is always the store's, which saves a lookup for new blocks that extend it.
+        if (block.equals(chainHead))
+            return true;
+        return block.equals(store.getByHeight(block.getHeight()));
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height. Ancestors of blocks on the best chain are looked up
+     * by height directly, others are found by following skip pointers.
+     */
+    private StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        if (height <= block.getHeight() && isOnBestChain(block))
+            return store.getByHeight(height);
+        return block.getAncestor(store, height);
     }
 
     enum NewBlockType {
@@ -260,56 +548,82 @@ public class BlockChain {
 
     private void sendTransactionsToWallet(StoredBlock block, NewBlockType blockType,
                                           List<Transaction> newTransactions) throws VerificationException {
-        // Scan the transactions to find out if any mention addresses we own.
-        for (Transaction tx : newTransactions) {
-            try {
-                scanTransaction(block, tx, blockType);
-            } catch (ScriptException e) {
-                // We don't want scripts we don't understand to break the block chain,
-                // so just note that this tx was not scanned here and continue.
-                log.warn("Failed to parse a script: " + e.toString());
+        long start = System.nanoTime();
+        // Find out which transactions mention addresses our wallets own. This is not thread safe as a key could be
+        // removed between the scan and receive.
+        Wallet[][] relevant;
+        try {
+            relevant = relevanceScanner.scan(newTransactions);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        // Hand them over in block order, so each wallet sees the same thing however the scan was split up.
+        for (int i = 0; i < relevant.length; i++) {
+            if (relevant[i] == null)
+                continue;
+            for (Wallet wallet : relevant[i]) {
+                try {
+                    wallet.receive(newTransactions.get(i), block, blockType);
+                } catch (ScriptException e) {
+                    // We don't want scripts we don't understand to break the block chain,
+                    // so just note that this tx was not scanned here and continue.
+                    log.warn("Failed to parse a script: " + e.toString());
+                }
             }
         }
+        metrics.walletScanTime.record(System.nanoTime() - start);
     }
 
     private void setChainHead(StoredBlock chainHead) {
         this.chainHead = chainHead;
         try {
-            blockStore.setChainHead(chainHead);
+            retargets.setChainHead(chainHead);
+            store.setChainHead(chainHead);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        if (inBatch) {
+            // Readers are told once the batch has been written to the store.
+            batchHeadDirty = true;
+            return;
+        }
+        publishChainHead();
+    }
+
+    // Publishes the chain head, which must have been written to the store, to readers that don't take the lock.
+    private void publishChainHead() {
+        try {
+            snapshot = ChainHeadSnapshot.create(chainHead, snapshot, blockStore);
         } catch (BlockStoreException e) {
             throw new RuntimeException(e);
         }
+        for (ChainHeadListener listener : chainHeadListeners)
+            listener.onChainHeadChanged(snapshot);
     }
 
     /**
-     * For each block in unconnectedBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects any unconnected blocks that were waiting for the given blocks, then any waiting for those and so on.
      */
-    private void tryConnectingUnconnected() throws VerificationException, ScriptException, BlockStoreException {
-        // For each block in our unconnected list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<Block> iter = unconnectedBlocks.iterator();
-            while (iter.hasNext()) {
-                Block block = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = blockStore.get(block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    continue;
-                }
-                // Otherwise we can connect it now.
+    private void tryConnectingUnconnected(List<Block> connected)
+            throws VerificationException, ScriptException, BlockStoreException {
+        // Only orphans whose parent has just been connected can connect now, and the pool finds those directly.
+        // Connecting them may release their own children in turn, so work through them breadth first.
+        LinkedList<Block> parents = new LinkedList<Block>(connected);
+        int blocksConnected = 0;
+        while (!parents.isEmpty()) {
+            for (Block child : unconnectedBlocks.removeChildren(parents.removeFirst().getHash())) {
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                add(block, false);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} floating blocks.", blocksConnectedThisRound);
+                add(child, false);
+                parents.add(child);
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} floating blocks.", blocksConnected);
+            newestUnconnected = unconnectedBlocks.getNewest();
+            metrics.setUnconnectedBlocks(unconnectedBlocks.size());
+        }
     }
 
     /**
@@ -329,19 +643,19 @@ public class BlockChain {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.interval - 1; i++) {
+        // We need the block at the start of the interval. Normally storedPrev is the chain head and the tracker
+        // already has it, otherwise we are on a side chain and look it up.
+        StoredBlock cursor = retargets.getWindowStart(storedPrev);
+        if (cursor == null) {
+            long now = System.currentTimeMillis();
+            cursor = getAncestor(storedPrev, storedPrev.getHeight() - (params.interval - 1));
             if (cursor == null) {
                 // This should never happen. If it does, it means we are following an incorrect or busted chain.
                 throw new VerificationException(
                         "Difficulty transition point but we did not find a way back to the genesis block.");
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            log.info("Difficulty transition traversal took {}msec", System.currentTimeMillis() - now);
         }
-        log.info("Difficulty transition traversal took {}msec", System.currentTimeMillis() - now);
 
         Block blockIntervalAgo = cursor.getHeader();
         int timespan = (int) (prev.getTime() - blockIntervalAgo.getTime());
@@ -372,48 +686,63 @@ public class BlockChain {
                     receivedDifficulty.toString(16) + " vs " + newDifficulty.toString(16));
     }
 
-    private void scanTransaction(StoredBlock block, Transaction tx, NewBlockType blockType)
-            throws ScriptException, VerificationException {
-        boolean shouldReceive = false;
-        for (TransactionOutput output : tx.outputs) {
-            // TODO: Handle more types of outputs, not just regular to address outputs.
-            if (output.getScriptPubKey().isSentToIP()) return;
-            // This is not thread safe as a key could be removed between the call to isMine and receive.
-            if (output.isMine(wallet)) {
-                shouldReceive = true;
-            }
-        }
+    /**
+     * Returns the block at the head of the current best chain. This is the block which represents the greatest
+     * amount of cumulative work done. This doesn't wait for a block that is being added, see {@link #getSnapshot()}.
+     */
+    public StoredBlock getChainHead() {
+        return snapshot.getHead();
+    }
 
-        // Coinbase transactions don't have anything useful in their inputs (as they create coins out of thin air).
-        if (!tx.isCoinBase()) {
-            for (TransactionInput i : tx.inputs) {
-                byte[] pubkey = i.getScriptSig().getPubKey();
-                // This is not thread safe as a key could be removed between the call to isPubKeyMine and receive.
-                if (wallet.isPubKeyMine(pubkey)) {
-                    shouldReceive = true;
-                }
-            }
-        }
+    /**
+     * Returns the state of the chain as of the last time its head changed. This doesn't lock the chain, so it never
+     * waits for a block that is being added, re-organizes included, and everything in the snapshot describes the same
+     * head.
+     */
+    public ChainHeadSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Adds a listener that is told about every new chain head. During {@link #addAll(List)} it is only told about the
+     * head at the end.
+     */
+    public void addChainHeadListener(ChainHeadListener listener) {
+        chainHeadListeners.add(listener);
+    }
 
-        if (shouldReceive)
-            wallet.receive(tx, block, blockType);
+    /** Removes a listener added by {@link #addChainHeadListener(ChainHeadListener)}. */
+    public void removeChainHeadListener(ChainHeadListener listener) {
+        chainHeadListeners.remove(listener);
     }
 
+
     /**
-     * Returns the block at the head of the current best chain. This is the block which represents the greatest
-     * amount of cumulative work done.
+     * Returns the counters and timings of the work this chain does. To log them periodically, as the chain used to,
+     * pass a {@link ChainMetrics.LoggingReporter} to {@link ChainMetrics#startReporting}.
      */
-    public synchronized StoredBlock getChainHead() {
-        return chainHead;
+    public ChainMetrics getMetrics() {
+        return metrics;
     }
 
+    /**
+     * Makes the chain append every full block it connects to the given archive, so it can be read back later without
+     * asking a peer for it again. Blocks are written once the chain lock is released, and a block that fails to archive
+     * is logged and stays connected. Pass null to stop archiving.
+     */
+    public void setBlockArchive(BlockArchive blockArchive) {
+        this.blockArchive = blockArchive;
+    }
+
+    /** Returns the archive connected blocks are appended to, or null if there is none. */
+    public BlockArchive getBlockArchive() {
+        return blockArchive;
+    }
 
     /**
      * Returns the most recent unconnected block or null if there are none. This will all have to change.
      */
-    public synchronized Block getUnconnectedBlock() {
-        if (unconnectedBlocks.size() == 0)
-            return null;
-        return unconnectedBlocks.get(unconnectedBlocks.size() - 1);
+    public Block getUnconnectedBlock() {
+        return newestUnconnected;
     }
 }
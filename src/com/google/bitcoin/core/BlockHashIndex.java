@@ -0,0 +1,290 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent hash table that maps 32 byte block hashes to positive long values, typically the offset of a record
+ * in some other file. It is used by the disk based block stores so a lookup costs a constant number of reads rather
+ * than a scan over the whole chain.<p>
+ *
+ * The table uses open addressing with linear probing. Each slot holds the full hash followed by the value, so no
+ * access to the indexed file is needed to resolve collisions. A value of zero marks an empty slot. When the table
+ * becomes more than 60% full it is rehashed into a new file of twice the size, which is then renamed over the old
+ * one.<p>
+ *
+ * The header records how many bytes of the indexed file have been indexed so far (the "covered length"). Owners use
+ * this on startup to decide whether the index is stale and needs to be extended or rebuilt.<p>
+ *
+ * Lookups may run concurrently with each other but not with changes to the index, callers must provide their own
+ * locking.
+ */
+class BlockHashIndex {
+    private static final Logger log = LoggerFactory.getLogger(BlockHashIndex.class);
+
+    private static final int MAGIC = 0x62686978;  // "bhix"
+    private static final int VERSION = 1;
+    // magic, version, capacity, count, covered length, spare.
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+    private static final int SLOT_SIZE = 32 + 8;
+    private static final int DEFAULT_CAPACITY = 1 << 12;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private int capacity;
+    private int count;
+    private long coveredLength;
+
+    // Reused for every slot read/write made while changing the index. Lookups use their own, as several may run at
+    // once.
+    private final ByteBuffer slotBuf = ByteBuffer.allocateDirect(SLOT_SIZE);
+    private final byte[] slotHash = new byte[32];
+    private final ByteBuffer headerBuf = ByteBuffer.allocateDirect(HEADER_SIZE);
+
+    /**
+     * Opens the index stored in the given file, creating an empty one if the file does not exist or does not
+     * contain a valid index.
+     */
+    BlockHashIndex(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (!readHeader()) {
+            log.info("Index {} is missing or unreadable, starting with an empty one", file);
+            initialize(channel, DEFAULT_CAPACITY);
+            capacity = DEFAULT_CAPACITY;
+            count = 0;
+            coveredLength = 0;
+        }
+    }
+
+    private boolean readHeader() throws IOException {
+        if (channel.size() < HEADER_SIZE)
+            return false;
+        headerBuf.clear();
+        channel.read(headerBuf, 0);
+        headerBuf.flip();
+        if (headerBuf.getInt() != MAGIC || headerBuf.getInt() != VERSION)
+            return false;
+        int cap = headerBuf.getInt();
+        int cnt = headerBuf.getInt();
+        long covered = headerBuf.getLong();
+        // The capacity must be a power of two and the file must be long enough to hold every slot.
+        if (cap <= 0 || (cap & (cap - 1)) != 0 || cnt < 0 || cnt > cap || covered < 0)
+            return false;
+        if (channel.size() < HEADER_SIZE + (long) cap * SLOT_SIZE)
+            return false;
+        capacity = cap;
+        count = cnt;
+        coveredLength = covered;
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        writeHeader(channel, capacity, count, coveredLength);
+    }
+
+    private void writeHeader(FileChannel ch, int cap, int cnt, long covered) throws IOException {
+        headerBuf.clear();
+        headerBuf.putInt(MAGIC);
+        headerBuf.putInt(VERSION);
+        headerBuf.putInt(cap);
+        headerBuf.putInt(cnt);
+        headerBuf.putLong(covered);
+        headerBuf.putLong(0);
+        headerBuf.flip();
+        ch.write(headerBuf, 0);
+    }
+
+    // Writes an empty table of the given capacity into the channel.
+    private void initialize(FileChannel ch, int cap) throws IOException {
+        ch.truncate(0);
+        writeHeader(ch, cap, 0, 0);
+        // Zero fill the slots in reasonably large chunks.
+        ByteBuffer zeros = ByteBuffer.allocate(SLOT_SIZE * 1024);
+        long end = HEADER_SIZE + (long) cap * SLOT_SIZE;
+        long pos = HEADER_SIZE;
+        while (pos < end) {
+            zeros.clear();
+            if (end - pos < zeros.capacity())
+                zeros.limit((int) (end - pos));
+            pos += ch.write(zeros, pos);
+        }
+    }
+
+    /**
+     * Returns the slot a hash starts probing from. Block hashes are big endian with the leading bytes being zero
+     * due to the proof of work, so the randomness is taken from the end of the array.
+     */
+    private static int startSlot(byte[] hash, int cap) {
+        int h = ((hash[28] & 0xFF) << 24) | ((hash[29] & 0xFF) << 16) | ((hash[30] & 0xFF) << 8) | (hash[31] & 0xFF);
+        return h & (cap - 1);
+    }
+
+    private static long slotPosition(int slot) {
+        return HEADER_SIZE + (long) slot * SLOT_SIZE;
+    }
+
+    // Reads the given slot into slotHash and returns its value, or zero if the slot is empty.
+    private long readSlot(FileChannel ch, int slot) throws IOException {
+        return readSlot(ch, slot, slotBuf, slotHash);
+    }
+
+    // Reads the given slot using the given buffers, copying the hash it holds into hash.
+    private static long readSlot(FileChannel ch, int slot, ByteBuffer buf, byte[] hash) throws IOException {
+        buf.clear();
+        long pos = slotPosition(slot);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0)
+                throw new IOException("Unexpected end of index file at slot " + slot);
+        }
+        buf.flip();
+        buf.get(hash);
+        return buf.getLong();
+    }
+
+    private void writeSlot(FileChannel ch, int slot, byte[] hash, long value) throws IOException {
+        slotBuf.clear();
+        slotBuf.put(hash);
+        slotBuf.putLong(value);
+        slotBuf.flip();
+        ch.write(slotBuf, slotPosition(slot));
+    }
+
+    /**
+     * Returns the value stored for the given hash, or -1 if there is none.
+     */
+    long get(byte[] hash) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(SLOT_SIZE);
+        byte[] found = new byte[32];
+        int slot = startSlot(hash, capacity);
+        for (int probes = 0; probes < capacity; probes++) {
+            long value = readSlot(channel, slot, buf, found);
+            if (value == 0)
+                return -1;
+            if (Arrays.equals(found, hash))
+                return value;
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Associates the given hash with the given value, replacing any previous value. Values must be positive. The
+     * header is not rewritten, callers are expected to follow a put or a batch of puts with
+     * {@link #setCoveredLength(long)}.
+     */
+    void put(byte[] hash, long value) throws IOException {
+        assert value > 0 : value;
+        if ((count + 1) * 10L > capacity * 6L)
+            grow();
+        if (insert(channel, capacity, hash, value))
+            count++;
+    }
+
+    // Returns true if a new slot was used, false if an existing entry was overwritten.
+    private boolean insert(FileChannel ch, int cap, byte[] hash, long value) throws IOException {
+        int slot = startSlot(hash, cap);
+        while (true) {
+            long existing = readSlot(ch, slot);
+            if (existing == 0) {
+                writeSlot(ch, slot, hash, value);
+                return true;
+            }
+            if (Arrays.equals(slotHash, hash)) {
+                writeSlot(ch, slot, hash, value);
+                return false;
+            }
+            slot = (slot + 1) & (cap - 1);
+        }
+    }
+
+    /** Rehashes every entry into a table twice the size. */
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile newRaf = new RandomAccessFile(tmp, "rw");
+        FileChannel newChannel = newRaf.getChannel();
+        try {
+            initialize(newChannel, newCapacity);
+            byte[] hash = new byte[32];
+            for (int slot = 0; slot < capacity; slot++) {
+                long value = readSlot(channel, slot);
+                if (value == 0) continue;
+                System.arraycopy(slotHash, 0, hash, 0, 32);
+                insert(newChannel, newCapacity, hash, value);
+            }
+            writeHeader(newChannel, newCapacity, count, coveredLength);
+        } finally {
+            newRaf.close();
+        }
+        raf.close();
+        // Some platforms refuse to rename over an existing file.
+        if (!file.delete() || !tmp.renameTo(file))
+            throw new IOException("Could not replace " + file + " with resized index");
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        capacity = newCapacity;
+    }
+
+    /** Removes every entry and resets the covered length to zero. */
+    void clear() throws IOException {
+        initialize(channel, DEFAULT_CAPACITY);
+        capacity = DEFAULT_CAPACITY;
+        count = 0;
+        coveredLength = 0;
+    }
+
+    /** Returns the number of entries in the index. */
+    int size() {
+        return count;
+    }
+
+    /** Returns how many bytes of the indexed file are reflected in this index. */
+    long getCoveredLength() {
+        return coveredLength;
+    }
+
+    /** Records how many bytes of the indexed file are reflected in this index and writes out the header. */
+    void setCoveredLength(long coveredLength) throws IOException {
+        this.coveredLength = coveredLength;
+        writeHeader();
+    }
+
+    /** Forces changes made so far out to the storage device. */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A persistent array of longs indexed by block height. The disk based block stores use it to map each height on the
+ * best chain to the offset of the record holding that block, which makes finding an ancestor of the chain head a
+ * single lookup rather than a walk back through the prev pointers.<p>
+ *
+ * The file is just the raw big endian values, so its length determines the size of the array. Owners are
+ * responsible for keeping it consistent with the chain head, see {@link #update(BlockStore, Offsets, StoredBlock)}.
+ * <p>
+ *
+ * Lookups may run concurrently with each other but not with changes to the index, callers must provide their own
+ * locking.
+ */
+class BlockHeightIndex {
+    private static final int ENTRY_SIZE = 8;
+
+    /** Tells the height index where a block lives in the store that owns it. */
+    interface Offsets {
+        /** Returns the offset of the record for the given block, or -1 if it is not stored. */
+        long offsetOf(StoredBlock block) throws BlockStoreException;
+    }
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private int size;
+    // Used when writing entries. Lookups use their own buffer, as several may run at once.
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(ENTRY_SIZE);
+
+    BlockHeightIndex(File file) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        // Ignore any partially written entry at the end.
+        size = (int) (channel.size() / ENTRY_SIZE);
+    }
+
+    /** Returns the number of heights in the index, ie the height of the chain head plus one. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the value stored for the given height, or -1 if the height is outside the index. */
+    long get(int height) throws IOException {
+        if (height < 0 || height >= size)
+            return -1;
+        ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE);
+        long pos = (long) height * ENTRY_SIZE;
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new IOException("Unexpected end of height index at height " + height);
+        }
+        buf.flip();
+        return buf.getLong();
+    }
+
+    /** Stores a value for the given height, growing the index if the height is beyond the end. */
+    void set(int height, long value) throws IOException {
+        buf.clear();
+        buf.putLong(value);
+        buf.flip();
+        channel.write(buf, (long) height * ENTRY_SIZE);
+        if (height >= size)
+            size = height + 1;
+    }
+
+    /** Discards every entry at or above the given height. */
+    void truncate(int newSize) throws IOException {
+        if (newSize >= size)
+            return;
+        channel.truncate((long) newSize * ENTRY_SIZE);
+        size = newSize;
+    }
+
+    /**
+     * Makes the index describe the chain ending at newHead. Entries above the new head are dropped first, then the
+     * new chain is walked backwards from the head overwriting entries until one is found that already agrees, which
+     * is the point the new chain forks from the old one. Extending the chain by one block therefore costs a single
+     * write, and a re-org costs one write per block replaced.<p>
+     *
+     * Because entries are only ever dropped from the top and rewritten top down, an interrupted update always leaves
+     * the entry at the old chain head's height either missing or disagreeing with the old head, which
+     * {@link #isConsistent(long, int)} detects.
+     */
+    void update(BlockStore store, Offsets offsets, StoredBlock newHead) throws IOException, BlockStoreException {
+        truncate(newHead.getHeight() + 1);
+        StoredBlock cursor = newHead;
+        while (cursor != null) {
+            long offset = offsets.offsetOf(cursor);
+            int height = cursor.getHeight();
+            if (get(height) == offset)
+                break;
+            set(height, offset);
+            cursor = cursor.getPrev(store);
+        }
+    }
+
+    /** Returns true if the index ends at the given height with the given offset. */
+    boolean isConsistent(long headOffset, int headHeight) throws IOException {
+        return size == headHeight + 1 && get(headHeight) == headOffset;
+    }
+
+    /** Discards the whole index and rebuilds it by walking back from the chain head. */
+    void rebuild(BlockStore store, Offsets offsets, StoredBlock head) throws IOException, BlockStoreException {
+        truncate(0);
+        update(store, offsets, head);
+    }
+
+    /** Forces changes made so far out to the storage device. */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.google.bitcoin.core;
 
+import java.util.List;
+
 /**
  * An implementor of BlockStore saves StoredBlock objects to disk. Different implementations store them in
  * different ways. An in-memory implementation (MemoryBlockStore) exists for unit testing but real apps will want to
@@ -49,4 +51,21 @@ public interface BlockStore {
      * Sets the {@link StoredBlock} that represents the top of the chain of greatest total work.
      */
     void setChainHead(StoredBlock chainHead) throws BlockStoreException;
+
+    /**
+     * Saves the given blocks in order and then sets the chain head, with the same result as calling
+     * {@link #put(StoredBlock)} on each block followed by {@link #setChainHead(StoredBlock)}. Implementations that
+     * write to disk do so once for the whole list, so adding a batch of blocks costs a single commit rather than one
+     * per block.
+     */
+    void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException;
+
+    /**
+     * Returns the block at the given height on the chain that ends at the current chain head, or null if the height
+     * is negative or above the chain head. The genesis block has a height of zero. Implementations keep an index
+     * from height to block that is updated by {@link #setChainHead(StoredBlock)}, so unlike walking back through
+     * {@link StoredBlock#getPrev(BlockStore)} this does not get slower the further back you go. Blocks on side
+     * chains can only be reached by hash.
+     */
+    StoredBlock getByHeight(int height) throws BlockStoreException;
 }
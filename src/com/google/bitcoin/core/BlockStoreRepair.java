@@ -0,0 +1,219 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks, and optionally repairs, a {@link BoundedOverheadBlockStore} file without opening it as a store. Run it
+ * from the command line against a file the store refused to load:<p>
+ *
+ * <pre>java com.google.bitcoin.core.BlockStoreRepair [--testnet] [--repair] file</pre><p>
+ *
+ * Every record is checked against its checksum, parsed, and must connect to a block earlier in the file at the
+ * height below it. Repairing truncates the file just before the first record that fails, moves the chain head to the
+ * best remaining block if it was lost, and deletes the index files next to the block file so the store rebuilds
+ * them. Everything up to the first bad record is kept, so only the blocks after it have to be downloaded again.
+ */
+public class BlockStoreRepair {
+    /** What {@link BlockStoreRepair#check(NetworkParameters, File, boolean)} found. */
+    public static class Report {
+        /** The file format version. */
+        public int version;
+        /** The length of the file when it was checked. */
+        public long fileLength;
+        /** How many records passed, from the start of the file. */
+        public int goodRecords;
+        /** How many bytes of the file hold the prologue and good records. */
+        public long goodLength;
+        /** What is wrong with the first bad record, or null if every record is fine. */
+        public String problem;
+        /** Whether the chain head is one of the good records. */
+        public boolean chainHeadFound;
+        /** Whether the file was changed. */
+        public boolean repaired;
+
+        /** Returns true if the file needs no repair. */
+        public boolean isHealthy() {
+            return problem == null && chainHeadFound && goodLength == fileLength;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            b.append(String.format("Format version %d, %d bytes, %d good records covering %d bytes%n", version,
+                    fileLength, goodRecords, goodLength));
+            if (problem != null)
+                b.append("First problem: ").append(problem).append(String.format("%n"));
+            if (!chainHeadFound)
+                b.append(String.format("Chain head is not among the good records%n"));
+            b.append(isHealthy() ? "File is healthy" : repaired ? "File was repaired" : "File needs repair");
+            return b.toString();
+        }
+    }
+
+    /**
+     * Checks the given block store file, repairing it if asked to and needed. The store must not be open while this
+     * runs.
+     */
+    public static Report check(NetworkParameters params, File file, boolean repair) throws IOException {
+        Report report = new Report();
+        RandomAccessFile raf = new RandomAccessFile(file, repair ? "rw" : "r");
+        try {
+            report.fileLength = raf.length();
+            if (report.fileLength < BoundedOverheadBlockStore.FILE_PROLOGUE_BYTES)
+                throw new IOException(file + " is too short to be a block store");
+            report.version = raf.read();
+            // Version 1 records have no checksum and version 2 records no skip hash. The checksum follows the
+            // payload, so a payload size of zero means there is none to check.
+            int recordSize, payloadSize;
+            switch (report.version) {
+                case 1:
+                    recordSize = BoundedOverheadBlockStore.Record.LEGACY_PAYLOAD_SIZE;
+                    payloadSize = 0;
+                    break;
+                case 2:
+                    recordSize = BoundedOverheadBlockStore.Record.LEGACY_PAYLOAD_SIZE + 4;
+                    payloadSize = BoundedOverheadBlockStore.Record.LEGACY_PAYLOAD_SIZE;
+                    break;
+                case 3:
+                    recordSize = BoundedOverheadBlockStore.Record.SIZE;
+                    payloadSize = BoundedOverheadBlockStore.Record.PAYLOAD_SIZE;
+                    break;
+                default:
+                    throw new IOException("Unknown file format version " + report.version);
+            }
+            byte[] chainHead = new byte[32];
+            raf.readFully(chainHead);
+
+            Map<Sha256Hash, Integer> heights = new HashMap<Sha256Hash, Integer>();
+            byte[] bestHash = null;
+            ChainWork bestWork = null;
+            InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                input.skip(BoundedOverheadBlockStore.FILE_PROLOGUE_BYTES);
+                byte[] record = new byte[recordSize];
+                long pos = BoundedOverheadBlockStore.FILE_PROLOGUE_BYTES;
+                report.goodLength = pos;
+                while (pos < report.fileLength) {
+                    int read = 0;
+                    while (read < recordSize) {
+                        int n = input.read(record, read, recordSize - read);
+                        if (n < 0) break;
+                        read += n;
+                    }
+                    String problem = read < recordSize ? "partial record" : checkRecord(params, record, payloadSize,
+                            heights);
+                    if (problem != null) {
+                        report.problem = "record " + report.goodRecords + " at offset " + pos + ": " + problem;
+                        break;
+                    }
+                    ByteBuffer buf = ByteBuffer.wrap(record);
+                    buf.getInt();
+                    ChainWork work = ChainWork.read(buf);
+                    if (bestWork == null || work.compareTo(bestWork) > 0) {
+                        bestWork = work;
+                        bestHash = new Block(params, headerOf(record)).getHash();
+                    }
+                    report.goodRecords++;
+                    pos += recordSize;
+                    report.goodLength = pos;
+                }
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, checkRecord parsed it already.
+            } finally {
+                input.close();
+            }
+            report.chainHeadFound = heights.containsKey(new Sha256Hash(chainHead));
+
+            if (!repair || report.isHealthy())
+                return report;
+            if (report.goodRecords == 0)
+                throw new IOException("No good records left, the file cannot be repaired");
+            raf.setLength(report.goodLength);
+            if (!report.chainHeadFound) {
+                raf.seek(1);
+                raf.write(bestHash);
+            }
+            for (String suffix : new String[] {".index", ".bloom", ".heights"})
+                new File(file.getPath() + suffix).delete();
+            report.repaired = true;
+            return report;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] headerOf(byte[] record) {
+        byte[] header = new byte[Block.HEADER_SIZE];
+        System.arraycopy(record, 4 + BoundedOverheadBlockStore.Record.CHAIN_WORK_BYTES, header, 0, Block.HEADER_SIZE);
+        return header;
+    }
+
+    // Returns what is wrong with the given record, or null if it is fine. Good records are added to heights.
+    private static String checkRecord(NetworkParameters params, byte[] record, int payloadSize,
+                                      Map<Sha256Hash, Integer> heights) {
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        if (payloadSize > 0) {
+            buf.position(payloadSize);
+            if (buf.getInt() != BoundedOverheadBlockStore.Record.checksum(record, payloadSize))
+                return "checksum does not match";
+            buf.position(0);
+        }
+        int height = buf.getInt();
+        Block header;
+        try {
+            header = new Block(params, headerOf(record));
+        } catch (ProtocolException e) {
+            return "header does not parse: " + e.getMessage();
+        }
+        Integer prevHeight = heights.get(new Sha256Hash(header.getPrevBlockHash()));
+        if (prevHeight == null) {
+            if (!heights.isEmpty() || !header.equals(params.genesisBlock))
+                return "does not connect to an earlier block";
+            if (height != 0)
+                return "genesis block at height " + height;
+        } else if (height != prevHeight + 1) {
+            return "height " + height + " does not follow " + prevHeight;
+        }
+        heights.put(new Sha256Hash(header.getHash()), height);
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        boolean repair = false;
+        File file = null;
+        for (String arg : args) {
+            if (arg.equals("--testnet"))
+                params = NetworkParameters.testNet();
+            else if (arg.equals("--repair"))
+                repair = true;
+            else
+                file = new File(arg);
+        }
+        if (file == null) {
+            System.err.println("Usage: BlockStoreRepair [--testnet] [--repair] file");
+            System.exit(1);
+        }
+        Report report = check(params, file, repair);
+        System.out.println(report);
+        System.exit(report.isHealthy() || report.repaired ? 0 : 2);
+    }
+}
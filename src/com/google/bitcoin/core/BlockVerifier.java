@@ -0,0 +1,181 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.LinkedList;
+import java.util.concurrent.*;
+
+/**
+ * Runs the checks in {@link Block#verify()} on the worker threads shared by every chain before blocks reach the
+ * {@link BlockChain}. Proof of work, the timestamp, the coinbase and the merkle root only depend on the block itself,
+ * and rebuilding the merkle tree is the most expensive part of adding a block, so doing it here leaves the chain lock
+ * held only for the work that does depend on the chain.<p>
+ *
+ * Blocks are connected one at a time in the order they were submitted, whatever order their verification finishes
+ * in. The verifier has no threads of its own: connecting happens on the threads that use it. Each call to
+ * {@link #submit(Block)} connects the blocks at the front of the queue that have been verified, and waiting for a
+ * result or calling {@link #awaitTermination(long, TimeUnit)} connects every block up to the one waited for. A block
+ * that fails verification is dropped and the blocks after it are still connected. Blocks already in the chain's
+ * store are skipped, so several peers can feed the same verifier without a block being connected twice.
+ */
+public class BlockVerifier {
+    /** Blocks that may be submitted but not yet connected before {@link #submit(Block)} connects one itself. */
+    public static final int MAX_PENDING = 256;
+
+    private final BlockChain chain;
+    // Submitted blocks not yet connected, in submission order. Guarded by this.
+    private final LinkedList<Entry> queue = new LinkedList<Entry>();
+    private boolean shutdown;
+    // Held while connecting, so only one thread connects at a time and blocks go in in order.
+    private final Object connectLock = new Object();
+
+    /** Creates a verifier for the given chain. */
+    public BlockVerifier(BlockChain chain) {
+        this.chain = chain;
+    }
+
+    // A submitted block. Running it waits for the verification and connects the block, getting the result of it
+    // connects the blocks in front of it first.
+    private class Entry extends FutureTask<Boolean> {
+        final Future<?> verified;
+
+        Entry(final Block block, final Future<?> verified) {
+            super(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    try {
+                        verified.get();
+                    } catch (ExecutionException e) {
+                        throw (Exception) e.getCause();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                    if (chain.blockStore.get(block.getHash()) != null)
+                        return true;
+                    return chain.addVerified(block);
+                }
+            });
+            this.verified = verified;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            connect(this);
+            return super.get();
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            // Only the verification can take long, so that is what the timeout applies to.
+            verified.get(timeout, unit);
+            connect(this);
+            return super.get();
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled())
+                verified.cancel(false);
+        }
+    }
+
+    /**
+     * Queues a block to be verified and then added to the chain. If {@link #MAX_PENDING} blocks are already queued,
+     * the oldest is connected on this thread first. The returned future gives the result of
+     * {@link BlockChain#add(Block)}, or fails with the {@link VerificationException} or {@link ScriptException} that
+     * stopped the block being added.
+     *
+     * @throws RejectedExecutionException if the verifier has been shut down.
+     */
+    public Future<Boolean> submit(final Block block) {
+        Entry oldest = null;
+        synchronized (this) {
+            if (shutdown)
+                throw new RejectedExecutionException("Verifier has been shut down");
+            if (queue.size() >= MAX_PENDING)
+                oldest = queue.getFirst();
+        }
+        if (oldest != null)
+            connect(oldest);
+        Future<?> verified = SharedWorkers.get().submit(new Callable<Void>() {
+            public Void call() throws VerificationException {
+                chain.verify(block);
+                return null;
+            }
+        });
+        Entry entry = new Entry(block, verified);
+        synchronized (this) {
+            queue.add(entry);
+        }
+        connect(null);
+        return entry;
+    }
+
+    /**
+     * Connects queued blocks in submission order on the calling thread: those at the front of the queue that have
+     * been verified, or if target isn't null, every block up to and including it, waiting for their verification.
+     */
+    private void connect(Entry target) {
+        synchronized (connectLock) {
+            while (target == null || !target.isDone()) {
+                Entry head;
+                synchronized (this) {
+                    head = queue.peek();
+                    if (head == null || (target == null && !head.verified.isDone()))
+                        return;
+                    queue.removeFirst();
+                }
+                head.run();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting blocks. Blocks already submitted are still verified and connected, use
+     * {@link #awaitTermination(long, TimeUnit)} to wait for them.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * Connects every block submitted before {@link #shutdown()} on the calling thread, returning false if their
+     * verification doesn't finish before the timeout.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            Entry head;
+            synchronized (this) {
+                head = queue.peek();
+            }
+            if (head == null)
+                return true;
+            try {
+                head.verified.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                // Reported through the block's own future.
+            } catch (CancellationException e) {
+                // Likewise.
+            } catch (TimeoutException e) {
+                return false;
+            }
+            connect(null);
+        }
+    }
+}
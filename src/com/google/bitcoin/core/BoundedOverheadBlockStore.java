@@ -17,10 +17,12 @@
 package com.google.bitcoin.core;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,28 +34,36 @@ import org.slf4j.LoggerFactory;
  * stored. It exploits operating system level buffering and the fact that get() requests are, in normal usage,
  * localized in chain space.<p>
  *
- * Blocks are stored sequentially. Most blocks are fetched out of a small in-memory cache. The slowest part is
- * traversing difficulty transition points, which requires seeking backwards over around 2000 blocks. On a Google
- * Nexus S phone this takes a couple of seconds. On a MacBook Pro it takes around 50msec.<p>
+ * Blocks are stored sequentially. Most blocks are fetched out of a small in-memory cache. Blocks that miss the cache
+ * are located via a hash index kept in a second file next to the block file (the same name with ".index" appended),
+ * so a lookup costs a constant number of reads no matter how long the chain is. The index is derived data: if it is
+ * missing or does not match the block file it is rebuilt from the block file when the store is opened. A Bloom
+ * filter over the stored hashes (".bloom") is checked first, so looking up a block we don't have usually costs no
+ * disk access at all.<p>
  *
- * The store has much room for optimization. Expanding the size of the cache will likely allow us to traverse
- * difficulty transitions without using too much memory and without hitting the disk at all, for the case of initial
- * block chain download. Storing the hashes on disk would allow us to avoid deserialization and hashing which is
- * expensive on Android.
+ * Each record carries a checksum. If the store is opened after a crash left a partial or corrupt record at the end
+ * of the file, the file is cut back to the last good record and the chain head falls back to the best block still
+ * stored, rather than starting again from the genesis block. Files that fail to load for any other reason are left
+ * alone so they can be examined with {@link BlockStoreRepair}.<p>
+ *
+ * The size of the block cache can be chosen by passing in a {@link BlockCache}. Making it large enough to hold a
+ * difficulty period lets us traverse difficulty transitions without hitting the disk at all.<p>
+ *
+ * Lookups only take a shared lock, so threads reading the chain do not queue behind each other. They still wait
+ * while a block is being stored or the chain head moved.
  */
 public class BoundedOverheadBlockStore implements BlockStore {
 	private static final Logger log = LoggerFactory.getLogger(BoundedOverheadBlockStore.class);
-    private static final byte FILE_FORMAT_VERSION = 1;
+    // Version 1 records had no checksum and version 2 records no skip hash. Older files are upgraded when opened.
+    private static final byte FILE_FORMAT_VERSION = 3;
 
     private RandomAccessFile file;
+    /** Memory budget of the block cache when none is given to the constructor. */
+    public static final long DEFAULT_CACHE_BYTES = 1024 * 1024;
+
     // We keep some recently found blocks in the blockCache. It can help to optimize some cases where we are
-    // looking up blocks we recently stored or requested. When the cache gets too big older entries are deleted.
-    private LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    // looking up blocks we recently stored or requested.
+    private final BlockCache blockCache;
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
@@ -61,47 +71,111 @@ public class BoundedOverheadBlockStore implements BlockStore {
     // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
     // provide the removeEldestEntry control.
     private StoredBlock notFoundMarker;
-    private LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+    private LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache =
+            new LinkedHashMap<Sha256Hash, StoredBlock>(16, 0.75f, true) {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
             return size() > 100;  // This was chosen arbitrarily.
         }
     };
 
+    // Lookups hold the read lock, put() and setChainHead() the write lock.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private Sha256Hash chainHead;
     private NetworkParameters params;
     private FileChannel channel;
+    // Maps block hashes to the offset of their record in the file.
+    private BlockHashIndex index;
+    // Answers most lookups of blocks we don't have without touching the index.
+    private BlockBloomFilter filter;
+    // Maps heights on the best chain to the offset of their record in the file.
+    private BlockHeightIndex heights;
+    private final BlockHeightIndex.Offsets offsets = new BlockHeightIndex.Offsets() {
+        public long offsetOf(StoredBlock block) throws BlockStoreException {
+            try {
+                return index.get(block.getHeader().getHash());
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    };
+
+    // The version byte and chain head hash come before the first record.
+    static final int FILE_PROLOGUE_BYTES = 1 + 32;
 
-    private class Record {
-        // A BigInteger representing the total amount of work done so far on this chain. As of May 2011 it takes 8
-        // bytes to represent this field, so 16 bytes should be plenty for a long time.
-        private static final int CHAIN_WORK_BYTES = 16;
-        private final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
+    /**
+     * The on-disk form of a {@link StoredBlock}: height, chain work, the block header and the hash of the skip
+     * ancestor (all zeros if unknown) followed by a CRC32 of those 132 bytes, 136 bytes in total. The static methods
+     * encode and decode records in a buffer so other stores can share the layout.
+     */
+    static class Record {
+        // The total amount of work done so far on this chain. As of May 2011 it takes 8 bytes to represent this
+        // field, so 16 bytes should be plenty for a long time.
+        static final int CHAIN_WORK_BYTES = ChainWork.BYTES;
+        private static final byte[] NO_SKIP_HASH = new byte[32];
 
         private int height;           // 4 bytes
-        private byte[] chainWork;     // 16 bytes
+        private ChainWork chainWork;  // 16 bytes
         private byte[] blockHeader;   // 80 bytes
+        private byte[] skipHash;      // 32 bytes
+        // Followed by a 4 byte checksum of the above.
 
-        public static final int SIZE = 4 + Record.CHAIN_WORK_BYTES + Block.HEADER_SIZE;
+        /** The size of the height, chain work and header, which is all that records in older files hold. */
+        static final int LEGACY_PAYLOAD_SIZE = 4 + Record.CHAIN_WORK_BYTES + Block.HEADER_SIZE;
+        /** The size of the record without the checksum. */
+        static final int PAYLOAD_SIZE = LEGACY_PAYLOAD_SIZE + 32;
+        public static final int SIZE = PAYLOAD_SIZE + 4;
 
         public Record() {
             height = 0;
-            chainWork = new byte[CHAIN_WORK_BYTES];
+            chainWork = ChainWork.ZERO;
             blockHeader = new byte[Block.HEADER_SIZE];
+            skipHash = new byte[32];
+        }
+
+        /** Writes the record form of the given block at the current position of the buffer. */
+        static void encode(ByteBuffer buf, StoredBlock block) {
+            byte[] payload = new byte[PAYLOAD_SIZE];
+            ByteBuffer payloadBuf = ByteBuffer.wrap(payload);
+            payloadBuf.putInt(block.getHeight());
+            block.getChainWork().write(payloadBuf);
+            payloadBuf.put(block.getHeader().bitcoinSerialize());
+            payloadBuf.put(block.getSkipHash() != null ? block.getSkipHash() : NO_SKIP_HASH);
+            buf.put(payload);
+            buf.putInt(checksum(payload, PAYLOAD_SIZE));
+        }
+
+        /** Reads a record from the current position of the buffer, checking its checksum. */
+        static StoredBlock decode(NetworkParameters params, ByteBuffer buf) throws ProtocolException {
+            Record record = new Record();
+            if (!record.parse(buf))
+                throw new ProtocolException("Record checksum does not match");
+            return record.toStoredBlock(params);
+        }
+
+        // Reads the fields from the current position of the buffer, returning false if they fail the checksum.
+        private boolean parse(ByteBuffer buf) {
+            byte[] payload = new byte[PAYLOAD_SIZE];
+            buf.get(payload);
+            int storedChecksum = buf.getInt();
+            ByteBuffer payloadBuf = ByteBuffer.wrap(payload);
+            height = payloadBuf.getInt();
+            chainWork = ChainWork.read(payloadBuf);
+            payloadBuf.get(blockHeader);
+            payloadBuf.get(skipHash);
+            return storedChecksum == checksum(payload, PAYLOAD_SIZE);
+        }
+
+        /** Returns the CRC32 of the first length bytes of the given array, as stored after a record. */
+        static int checksum(byte[] payload, int length) {
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            return (int) crc.getValue();
         }
 
-        // This should be static but the language does not allow for it.
         public void write(FileChannel channel, StoredBlock block) throws IOException {
             ByteBuffer buf = ByteBuffer.allocate(Record.SIZE);
-            buf.putInt(block.getHeight());
-            byte[] chainWorkBytes = block.getChainWork().toByteArray();
-            assert chainWorkBytes.length <= CHAIN_WORK_BYTES : "Ran out of space to store chain work!";
-            if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
-                // Pad to the right size.
-                buf.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
-            }
-            buf.put(chainWorkBytes);
-            buf.put(block.getHeader().bitcoinSerialize());
+            encode(buf, block);
             buf.position(0);
             channel.position(channel.size());
             if (channel.write(buf) < Record.SIZE)
@@ -109,20 +183,21 @@ public class BoundedOverheadBlockStore implements BlockStore {
             channel.position(channel.size() - Record.SIZE);
         }
 
+        /**
+         * Reads the record at the given position. Returns false if the file ends before the record does, or the
+         * record does not match its checksum.
+         */
         public boolean read(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
             buffer.position(0);
             long bytesRead = channel.read(buffer, position);
             if (bytesRead < Record.SIZE)
                 return false;
             buffer.position(0);
-            height = buffer.getInt();
-            buffer.get(chainWork);
-            buffer.get(blockHeader);
-            return true;
+            return parse(buffer);
         }
 
-        public BigInteger getChainWork() {
-            return new BigInteger(1, chainWork);
+        public ChainWork getChainWork() {
+            return chainWork;
         }
 
         public Block getHeader(NetworkParameters params) throws ProtocolException {
@@ -134,25 +209,52 @@ public class BoundedOverheadBlockStore implements BlockStore {
         }
 
         public StoredBlock toStoredBlock(NetworkParameters params) throws ProtocolException {
-            return new StoredBlock(getHeader(params), getChainWork(), getHeight());
+            byte[] skip = Arrays.equals(skipHash, NO_SKIP_HASH) ? null : skipHash.clone();
+            return new StoredBlock(getHeader(params), getChainWork(), getHeight(), skip);
         }
     }
 
     public BoundedOverheadBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, new BlockCache(DEFAULT_CACHE_BYTES));
+    }
+
+    /**
+     * Opens the store in the given file, using the given cache to hold recently used blocks. The cache should not be
+     * shared with other stores.
+     */
+    public BoundedOverheadBlockStore(NetworkParameters params, File file, BlockCache blockCache)
+            throws BlockStoreException {
         this.params = params;
+        this.blockCache = blockCache;
         notFoundMarker = new StoredBlock(null, null, -1);
+        try {
+            index = new BlockHashIndex(new File(file.getPath() + ".index"));
+            filter = new BlockBloomFilter(new File(file.getPath() + ".bloom"));
+            heights = new BlockHeightIndex(new File(file.getPath() + ".heights"));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
         try {
             load(file);
-        } catch (Exception e) {
-            log.error("failed to load block store from file", e);
+        } catch (FileNotFoundException e) {
+            log.info("No block store in {}, creating a new one", file);
             createNewStore(params, file);
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not load block store from " + file +
+                    ", BlockStoreRepair can check and repair it", e);
         }
     }
 
     private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
-        // Create a new block store if the file wasn't found or anything went wrong whilst reading.
+        // Create a new block store if the file wasn't found or was empty.
         blockCache.clear();
+        notFoundCache.clear();
         try {
+            if (this.file != null)
+                this.file.close();
+            index.clear();
+            filter.clear();
+            heights.truncate(0);
             file.delete();
             this.file = new RandomAccessFile(file, "rw");  // Create fresh.
             this.channel = this.file.getChannel();
@@ -168,6 +270,7 @@ public class BoundedOverheadBlockStore implements BlockStore {
             this.chainHead = new Sha256Hash(storedGenesis.getHeader().getHash());
             this.file.write(this.chainHead.hash);
             put(storedGenesis);
+            heights.update(this, offsets, storedGenesis);
         } catch (VerificationException e1) {
             throw new RuntimeException(e1);  // Cannot happen.
         } catch (IOException e) {
@@ -185,47 +288,252 @@ public class BoundedOverheadBlockStore implements BlockStore {
             // No such file or the file was empty.
             throw new FileNotFoundException(file.getName() + " does not exist or is empty");
         }
-        if (version != FILE_FORMAT_VERSION) {
+        if (version == 1 || version == 2) {
+            upgrade(file, version);
+        } else if (version != FILE_FORMAT_VERSION) {
             throw new BlockStoreException("Bad version number: " + version);
         }
         // Chain head pointer is the first thing in the file.
         byte[] chainHeadHash = new byte[32];
-        this.file.read(chainHeadHash);
+        this.file.seek(1);
+        if (this.file.read(chainHeadHash) < chainHeadHash.length)
+            throw new BlockStoreException("File is too short to hold a chain head");
         this.chainHead = new Sha256Hash(chainHeadHash);
         log.info("Read chain head from disk: {}", this.chainHead);
+        updateIndex();
         channel.position(channel.size() - Record.SIZE);
+        updateHeights();
+    }
+
+    /**
+     * Rewrites a file in an older format in the current one. Records from version 1 files gain a checksum, and all
+     * upgraded records have no skip hash, so ancestor lookups from them step back one block at a time. The new file
+     * is written next to the old one and renamed over it once complete. Record positions change, so the indexes are
+     * rebuilt.
+     */
+    private void upgrade(File file, int version) throws IOException, BlockStoreException {
+        log.info("Upgrading {} from file format version {} to {}", new Object[] {file, version, FILE_FORMAT_VERSION});
+        File tmp = new File(file.getPath() + ".upgrade");
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(tmp));
+        int records = 0;
+        try {
+            // Skip the version byte and copy the chain head.
+            byte[] prologue = new byte[FILE_PROLOGUE_BYTES];
+            if (input.read(prologue) < FILE_PROLOGUE_BYTES)
+                throw new BlockStoreException("File is too short to hold a chain head");
+            prologue[0] = FILE_FORMAT_VERSION;
+            output.write(prologue);
+            boolean checksummed = version >= 2;
+            byte[] oldRecord = new byte[Record.LEGACY_PAYLOAD_SIZE + (checksummed ? 4 : 0)];
+            byte[] payload = new byte[Record.PAYLOAD_SIZE];
+            ByteBuffer checksum = ByteBuffer.allocate(4);
+            while (readFully(input, oldRecord) == oldRecord.length) {
+                if (checksummed && ByteBuffer.wrap(oldRecord, Record.LEGACY_PAYLOAD_SIZE, 4).getInt() !=
+                        Record.checksum(oldRecord, Record.LEGACY_PAYLOAD_SIZE)) {
+                    log.warn("Record {} is corrupt, discarding it and any records after it", records);
+                    break;
+                }
+                // The skip hash stays all zeros.
+                System.arraycopy(oldRecord, 0, payload, 0, Record.LEGACY_PAYLOAD_SIZE);
+                output.write(payload);
+                checksum.clear();
+                checksum.putInt(Record.checksum(payload, Record.PAYLOAD_SIZE));
+                output.write(checksum.array());
+                records++;
+            }
+        } finally {
+            input.close();
+            output.close();
+        }
+        this.file.close();
+        // Some platforms refuse to rename over an existing file.
+        if (!file.delete() || !tmp.renameTo(file))
+            throw new IOException("Could not replace " + file + " with " + tmp);
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        index.clear();
+        filter.clear();
+        heights.truncate(0);
+        log.info("Upgraded {} records", records);
+    }
+
+    // Reads until the buffer is full or the stream ends, returning the number of bytes read.
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = input.read(buffer, total, buffer.length - total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Rebuilds the height index if it does not end at the chain head, eg because it is missing. If the chain head is
+     * not in the file at all, because the records leading up to it were lost in a crash, the store falls back to
+     * the stored block with the most work.
+     */
+    private void updateHeights() throws IOException, BlockStoreException {
+        StoredBlock head = get(chainHead.hash);
+        if (head == null) {
+            head = findMostWork();
+            log.warn("Chain head {} is not in the block file, falling back to {}", chainHead, head);
+            this.chainHead = new Sha256Hash(head.getHeader().getHash());
+            channel.write(ByteBuffer.wrap(chainHead.hash), 1);
+        }
+        if (heights.isConsistent(index.get(chainHead.hash), head.getHeight()))
+            return;
+        log.warn("Height index does not match the chain head, rebuilding");
+        long now = System.currentTimeMillis();
+        heights.rebuild(this, offsets, head);
+        log.info("Height index rebuilt in {}ms", System.currentTimeMillis() - now);
+    }
+
+    // Returns the stored block with the most chain work. Only used for recovery so it just reads every record.
+    private StoredBlock findMostWork() throws IOException, BlockStoreException {
+        Record record = new Record();
+        ByteBuffer recordBuf = ByteBuffer.allocate(Record.SIZE);
+        StoredBlock best = null;
+        try {
+            for (long pos = FILE_PROLOGUE_BYTES; pos < channel.size(); pos += Record.SIZE) {
+                if (!record.read(channel, pos, recordBuf))
+                    throw new BlockStoreException("Failed to read record at " + pos);
+                StoredBlock block = record.toStoredBlock(params);
+                if (best == null || block.moreWorkThan(best))
+                    best = block;
+            }
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+        if (best == null)
+            throw new BlockStoreException("Block file contains no records");
+        return best;
+    }
+
+    /**
+     * Brings the hash index up to date with the block file. Records appended since the index was last written are
+     * added to it. If the index claims to cover more than the file contains, or its last entry does not point at the
+     * record it should, it is thrown away and rebuilt from scratch.<p>
+     *
+     * Records are checked against their checksums as they are indexed. A partial or corrupt record means the file was
+     * torn by a crash, so the file is truncated back to the last good record before it.
+     */
+    private void updateIndex() throws IOException, BlockStoreException {
+        long fileSize = channel.size();
+        if ((fileSize - FILE_PROLOGUE_BYTES) % Record.SIZE != 0) {
+            long wholeRecords = (fileSize - FILE_PROLOGUE_BYTES) / Record.SIZE;
+            log.warn("Block file has a partial record at the end, discarding it");
+            fileSize = FILE_PROLOGUE_BYTES + wholeRecords * Record.SIZE;
+            channel.truncate(fileSize);
+        }
+        if (filter.getCoveredLength() != index.getCoveredLength()) {
+            // The Bloom filter is built alongside the index, so if they disagree rebuild both.
+            log.warn("Bloom filter does not match the block index, rebuilding both");
+            index.clear();
+            filter.clear();
+        }
+        long covered = index.getCoveredLength();
+        if (covered == 0)
+            covered = FILE_PROLOGUE_BYTES;
+        long now = System.currentTimeMillis();
+        Record record = new Record();
+        ByteBuffer recordBuf = ByteBuffer.allocate(Record.SIZE);
+        int added = 0;
+        try {
+            if (covered != FILE_PROLOGUE_BYTES && !indexIsConsistent(covered, fileSize)) {
+                log.warn("Block index is stale, rebuilding");
+                index.clear();
+                filter.clear();
+                covered = FILE_PROLOGUE_BYTES;
+            }
+            for (long pos = covered; pos < fileSize; pos += Record.SIZE) {
+                if (!record.read(channel, pos, recordBuf)) {
+                    log.warn("Record at {} is corrupt, discarding it and the {} records after it", pos,
+                            (fileSize - pos) / Record.SIZE - 1);
+                    fileSize = pos;
+                    channel.truncate(fileSize);
+                    break;
+                }
+                byte[] hash = record.getHeader(params).getHash();
+                index.put(hash, pos);
+                filter.add(hash);
+                added++;
+            }
+        } catch (ProtocolException e) {
+            // Corrupted file.
+            throw new BlockStoreException(e);
+        }
+        index.setCoveredLength(fileSize);
+        filter.setCoveredLength(fileSize);
+        log.info("Indexed {} blocks in {}ms", added, System.currentTimeMillis() - now);
+    }
+
+    // Checks that the index covers a sane prefix of the file and that the last record it covers is found where the
+    // index says it is.
+    private boolean indexIsConsistent(long covered, long fileSize)
+            throws IOException, ProtocolException {
+        if (covered > fileSize || covered < FILE_PROLOGUE_BYTES + Record.SIZE ||
+                (covered - FILE_PROLOGUE_BYTES) % Record.SIZE != 0)
+            return false;
+        Record record = new Record();
+        long lastPos = covered - Record.SIZE;
+        if (!record.read(channel, lastPos, ByteBuffer.allocate(Record.SIZE)))
+            return false;
+        return index.get(record.getHeader(params).getHash()) == lastPos;
     }
 
     // TODO: This is ugly, fixinate!
     private Record dummyRecord = new Record();
 
-    public synchronized void put(StoredBlock block) throws BlockStoreException {
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.writeLock().lock();
         try {
             Sha256Hash hash = new Sha256Hash(block.getHeader().getHash());
-            // Append to the end of the file.
+            // Append to the end of the file, then make the index point at the new record.
+            long pos = channel.size();
             dummyRecord.write(channel, block);
+            index.put(hash.hash, pos);
+            index.setCoveredLength(pos + Record.SIZE);
+            filter.add(hash.hash);
+            filter.setCoveredLength(pos + Record.SIZE);
             blockCache.put(hash, block);
+            synchronized (notFoundCache) {
+                notFoundCache.remove(hash);
+            }
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized StoredBlock get(byte[] hashBytes) throws BlockStoreException {
-        // Check the memory cache first.
-        Sha256Hash hash = new Sha256Hash(hashBytes);
-        StoredBlock fromMem = blockCache.get(hash);
-        if (fromMem != null) {
-            return fromMem;
-        }
-        if (notFoundCache.get(hash) == notFoundMarker) {
-            return null;
-        }
-
+    public StoredBlock get(byte[] hashBytes) throws BlockStoreException {
+        lock.readLock().lock();
         try {
+            // Check the memory cache first.
+            Sha256Hash hash = new Sha256Hash(hashBytes);
+            StoredBlock fromMem = blockCache.get(hash);
+            if (fromMem != null) {
+                return fromMem;
+            }
+            synchronized (notFoundCache) {
+                if (notFoundCache.get(hash) == notFoundMarker) {
+                    return null;
+                }
+            }
+            // Definitely not stored, no need to look on disk.
+            if (!filter.mightContain(hashBytes)) {
+                return null;
+            }
+
             Record fromDisk = getRecord(hash);
             StoredBlock block = null;
             if (fromDisk == null) {
-                notFoundCache.put(hash, notFoundMarker);
+                synchronized (notFoundCache) {
+                    notFoundCache.put(hash, notFoundMarker);
+                }
             } else {
                 block = fromDisk.toStoredBlock(params);
                 blockCache.put(hash, block);
@@ -235,50 +543,102 @@ public class BoundedOverheadBlockStore implements BlockStore {
             throw new BlockStoreException(e);
         } catch (ProtocolException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
-    private ByteBuffer buf = ByteBuffer.allocateDirect(Record.SIZE);
     private Record getRecord(Sha256Hash hash) throws BlockStoreException, IOException, ProtocolException {
-        long startPos = channel.position();
-        // Use our own file pointer within the tight loop as updating channel positions is really expensive.
-        long pos = startPos;
+        long pos = index.get(hash.hash);
+        if (pos < 0)
+            return null;
         Record record = new Record();
-        do {
-            if (!record.read(channel, pos, buf))
-                throw new IOException("Failed to read buffer");
-            if (Arrays.equals(record.getHeader(params).getHash(), hash.hash)) {
-                // Found it. Update file position for next time.
-                channel.position(pos);
-                return record;
-            }
-            // Did not find it.
-            if (pos == 1 + 32) {
-                // At the start so wrap around to the end.
-                pos = channel.size() - Record.SIZE;
-            } else {
-                // Move backwards.
-                pos = pos - Record.SIZE;
-                assert pos >= 1 + 32 : pos;
-            }
-        } while (pos != startPos);
-        // Was never stored.
-        channel.position(pos);
-        return null;
+        if (!record.read(channel, pos, ByteBuffer.allocate(Record.SIZE)))
+            throw new IOException("Failed to read buffer");
+        if (!Arrays.equals(record.getHeader(params).getHash(), hash.hash))
+            throw new BlockStoreException("Block index is corrupt, " + hash + " points at the wrong record");
+        return record;
+    }
+
+    /** Returns the cache of recently used blocks, eg to read its counters. */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            return get(chainHead.hash);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    public synchronized StoredBlock getChainHead() throws BlockStoreException {
-        return get(chainHead.hash);
+    public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            // All the records go to the end of the file in one write, then the index is pointed at them.
+            long start = channel.size();
+            ByteBuffer buf = ByteBuffer.allocate(blocks.size() * Record.SIZE);
+            for (StoredBlock block : blocks)
+                Record.encode(buf, block);
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write(buf, start + buf.position());
+            long pos = start;
+            for (StoredBlock block : blocks) {
+                Sha256Hash hash = new Sha256Hash(block.getHeader().getHash());
+                index.put(hash.hash, pos);
+                filter.add(hash.hash);
+                blockCache.put(hash, block);
+                synchronized (notFoundCache) {
+                    notFoundCache.remove(hash);
+                }
+                pos += Record.SIZE;
+            }
+            index.setCoveredLength(pos);
+            filter.setCoveredLength(pos);
+            setChainHead(chainHead);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.writeLock().lock();
         try {
             byte[] hash = chainHead.getHeader().getHash();
+            // Bring the height index in line first. If we crash before the hash below is written, the index will no
+            // longer end at the old chain head and will be rebuilt when the store is next opened.
+            heights.update(this, offsets, chainHead);
             this.chainHead = new Sha256Hash(hash);
             // Write out new hash to the first 32 bytes of the file past one (first byte is version number).
             channel.write(ByteBuffer.wrap(hash), 1);
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            long pos = heights.get(height);
+            if (pos < 0)
+                return null;
+            Record record = new Record();
+            if (!record.read(channel, pos, ByteBuffer.allocate(Record.SIZE)))
+                throw new IOException("Failed to read buffer");
+            return record.toStoredBlock(params);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 }
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.List;
+
+/**
+ * Wraps another {@link BlockStore} and answers lookups from a {@link BlockCache} where it can, so any store can be
+ * given a header cache. Blocks are written through to the underlying store.
+ */
+public class CachingBlockStore implements BlockStore {
+    private final BlockStore store;
+    private final BlockCache cache;
+
+    public CachingBlockStore(BlockStore store, BlockCache cache) {
+        this.store = store;
+        this.cache = cache;
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+        cache.put(new Sha256Hash(block.getHeader().getHash()), block);
+    }
+
+    public StoredBlock get(byte[] hashBytes) throws BlockStoreException {
+        Sha256Hash hash = new Sha256Hash(hashBytes);
+        StoredBlock block = cache.get(hash);
+        if (block != null)
+            return block;
+        block = store.get(hashBytes);
+        if (block != null)
+            cache.put(hash, block);
+        return block;
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        store.putAll(blocks, chainHead);
+        for (StoredBlock block : blocks)
+            cache.put(new Sha256Hash(block.getHeader().getHash()), block);
+    }
+
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        return store.getByHeight(height);
+    }
+
+    /** Returns the cache in front of the underlying store, eg to read its counters. */
+    public BlockCache getCache() {
+        return cache;
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports the best chain to a bootstrap file and imports it again, so a new node can be seeded from a local file
+ * instead of downloading the chain from peers.<p>
+ *
+ * The file has the same format as the reference client's bootstrap.dat: each block is preceded by the network packet
+ * magic and its length as a little endian 32 bit integer, then follows in wire format. The genesis block is left
+ * out, as every chain already has it. Blocks are taken from a {@link BlockArchive}, since the block stores only hold
+ * headers.<p>
+ *
+ * Importing reads blocks in batches and hands each batch to {@link BlockChain#addAll(List)}, which verifies the
+ * blocks on several threads and then connects them under a single acquisition of the chain lock, writing them to the
+ * store once per batch. The next batch is read and parsed on a separate thread while the current one is connected.
+ */
+public class ChainBootstrap {
+    private static final Logger log = LoggerFactory.getLogger(ChainBootstrap.class);
+
+    // Blocks are well under this, anything bigger means the file is corrupt.
+    private static final int MAX_BLOCK_BYTES = 1 << 24;
+
+    // Limits on the blocks held in memory and passed to addAll at once.
+    private static final int IMPORT_BATCH_BLOCKS = 500;
+    private static final int IMPORT_BATCH_BYTES = 32 << 20;
+    // Queued by the reader thread after the last batch.
+    private static final List<Block> END_OF_BATCHES = Collections.emptyList();
+
+    /**
+     * Writes the best chain of the given store, from height 1 up to its chain head, to the given channel. The blocks
+     * are copied with {@link BlockArchive#transferTo(byte[], WritableByteChannel)}, so when the channel is a file or
+     * socket they don't pass through the heap. Returns the number of blocks written.
+     *
+     * @throws BlockStoreException if a block of the best chain is missing from the archive.
+     */
+    public static int export(NetworkParameters params, BlockStore store, BlockArchive archive,
+                             WritableByteChannel out) throws BlockStoreException, IOException {
+        int headHeight = store.getChainHead().getHeight();
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        for (int height = 1; height <= headHeight; height++) {
+            byte[] hash = store.getByHeight(height).getHeader().getHash();
+            int size = archive.getBlockSize(hash);
+            if (size < 0)
+                throw new BlockStoreException("Block " + Utils.bytesToHexString(hash) + " at height " + height +
+                        " is not in the archive");
+            prefix.clear();
+            prefix.order(ByteOrder.BIG_ENDIAN).putInt((int) params.packetMagic);
+            prefix.order(ByteOrder.LITTLE_ENDIAN).putInt(size);
+            prefix.flip();
+            while (prefix.hasRemaining())
+                out.write(prefix);
+            archive.transferTo(hash, out);
+        }
+        log.info("Exported {} blocks", headHeight);
+        return headHeight;
+    }
+
+    /**
+     * Reads blocks from the given stream, as written by
+     * {@link #export(NetworkParameters, BlockStore, BlockArchive, WritableByteChannel)}, and adds them to the chain.
+     * Blocks the chain already has are skipped, so an import can be resumed or run against a partly synced chain. A
+     * truncated block at the end of the stream is ignored, as a partly copied file is still useful. Returns the
+     * number of blocks added.
+     *
+     * @throws IOException if the stream can't be read or is not a bootstrap file for the chain's network.
+     * @throws VerificationException if a block is invalid. Blocks before it stay in the chain.
+     */
+    public static int importBlocks(BlockChain chain, InputStream in)
+            throws IOException, BlockStoreException, VerificationException, ScriptException {
+        return importBlocks(chain, in, IMPORT_BATCH_BLOCKS);
+    }
+
+    static int importBlocks(final BlockChain chain, InputStream in, final int batchBlocks)
+            throws IOException, BlockStoreException, VerificationException, ScriptException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(in, 1 << 20));
+        // Holds one batch, so with the batch being read and the one being connected at most three are in memory.
+        final BlockingQueue<List<Block>> batches = new ArrayBlockingQueue<List<Block>>(1);
+        // Why the reader stopped early, published to this thread by queueing END_OF_BATCHES after it.
+        final Exception[] readFailure = new Exception[1];
+        Thread reader = new Thread("Bootstrap reader") {
+            @Override
+            public void run() {
+                try {
+                    readBatches(chain, input, batchBlocks, batches);
+                } catch (InterruptedException e) {
+                    return;  // The import has stopped and wants no more blocks.
+                } catch (Exception e) {
+                    readFailure[0] = e;
+                }
+                try {
+                    batches.put(END_OF_BATCHES);
+                } catch (InterruptedException e) {
+                    // The import has stopped.
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+        int added = 0;
+        long start = System.currentTimeMillis();
+        try {
+            List<Block> batch;
+            while ((batch = batches.take()) != END_OF_BATCHES)
+                added += chain.addAll(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while importing blocks");
+        } finally {
+            // Only does anything if we are stopping early, eg because a block failed to verify.
+            reader.interrupt();
+            joinUninterruptibly(reader);
+        }
+        if (readFailure[0] instanceof ProtocolException)
+            throw new IOException("Bootstrap file holds a block that does not parse", readFailure[0]);
+        if (readFailure[0] instanceof IOException)
+            throw (IOException) readFailure[0];
+        if (readFailure[0] instanceof BlockStoreException)
+            throw (BlockStoreException) readFailure[0];
+        if (readFailure[0] != null)
+            throw new RuntimeException(readFailure[0]);
+        log.info("Imported {} blocks in {}ms", added, System.currentTimeMillis() - start);
+        return added;
+    }
+
+    // Reads the stream into batches, leaving out blocks the chain already has, and queues them for importBlocks.
+    private static void readBatches(BlockChain chain, DataInputStream input, int batchBlocks,
+                                    BlockingQueue<List<Block>> batches)
+            throws IOException, ProtocolException, BlockStoreException, InterruptedException {
+        List<Block> batch = new ArrayList<Block>(batchBlocks);
+        int batchBytes = 0;
+        Block block;
+        while ((block = readBlock(chain.params, input)) != null) {
+            if (chain.blockStore.get(block.getHash()) != null)
+                continue;
+            batch.add(block);
+            batchBytes += block.getMessageSize();
+            if (batch.size() >= batchBlocks || batchBytes >= IMPORT_BATCH_BYTES) {
+                batches.put(batch);
+                batch = new ArrayList<Block>(batchBlocks);
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty())
+            batches.put(batch);
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // Returns the next block in the stream, or null at the end.
+    private static Block readBlock(NetworkParameters params, DataInputStream input)
+            throws IOException, ProtocolException {
+        int magic;
+        try {
+            magic = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if ((magic & 0xFFFFFFFFL) != params.packetMagic)
+            throw new IOException("Bootstrap file is not for this network, or is corrupt");
+        byte[] bytes;
+        try {
+            int length = Integer.reverseBytes(input.readInt());
+            if (length <= 0 || length > MAX_BLOCK_BYTES)
+                throw new IOException("Bootstrap file holds a block of " + length + " bytes");
+            bytes = new byte[length];
+            input.readFully(bytes);
+        } catch (EOFException e) {
+            log.warn("Bootstrap file ends part way through a block, ignoring it");
+            return null;
+        }
+        return new Block(params, bytes);
+    }
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = NetworkParameters.prodNet();
+        String[] rest = args;
+        if (args.length > 0 && args[0].equals("--testnet")) {
+            params = NetworkParameters.testNet();
+            rest = new String[args.length - 1];
+            System.arraycopy(args, 1, rest, 0, rest.length);
+        }
+        if (rest.length != 4 || !(rest[0].equals("export") || rest[0].equals("import"))) {
+            System.err.println("Usage: ChainBootstrap [--testnet] export|import store-file archive-dir bootstrap-file");
+            System.exit(1);
+        }
+        BlockStore store = new BoundedOverheadBlockStore(params, new File(rest[1]));
+        BlockArchive archive = new BlockArchive(params, new File(rest[2]));
+        File file = new File(rest[3]);
+        if (rest[0].equals("export")) {
+            FileChannel out = new FileOutputStream(file).getChannel();
+            try {
+                export(params, store, archive, out);
+            } finally {
+                out.close();
+            }
+        } else {
+            BlockChain chain = new BlockChain(params, store);
+            chain.setBlockArchive(archive);
+            InputStream in = new FileInputStream(file);
+            try {
+                importBlocks(chain, in);
+            } finally {
+                in.close();
+            }
+        }
+        archive.close();
+    }
+}
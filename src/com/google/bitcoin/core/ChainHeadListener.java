@@ -0,0 +1,32 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+/**
+ * Implementing this interface allows you to learn when the head of a {@link BlockChain} changes, see
+ * {@link BlockChain#addChainHeadListener(ChainHeadListener)}.
+ */
+public interface ChainHeadListener {
+    /**
+     * Called on the thread that added the block, once the new head has been stored and published. The chain is
+     * locked while this runs, so implementations should be quick and must not wait for other threads that use the
+     * chain. Register through an {@link EventBus} to be called on another thread instead.
+     *
+     * @param snapshot The state of the chain with its new head.
+     */
+    void onChainHeadChanged(ChainHeadSnapshot snapshot);
+}
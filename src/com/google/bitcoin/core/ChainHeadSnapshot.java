@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable view of the head of a {@link BlockChain}: the head block, its height and chain work, and the headers of
+ * the last few blocks leading up to it. The chain publishes a new snapshot each time its head changes, so
+ * {@link BlockChain#getSnapshot()} gives a consistent view without waiting for a block that is being connected.<p>
+ *
+ * Blocks are mutable, so the head and headers are handed out as copies. Changing them affects neither the snapshot
+ * nor the chain.
+ */
+public final class ChainHeadSnapshot {
+    /** How many of the most recent headers a snapshot holds. */
+    public static final int RECENT_HEADERS = 16;
+
+    private final StoredBlock head;
+    // Oldest first, ending with the head.
+    private final List<Block> recentHeaders;
+
+    private ChainHeadSnapshot(StoredBlock head, List<Block> recentHeaders) {
+        this.head = head;
+        this.recentHeaders = Collections.unmodifiableList(recentHeaders);
+    }
+
+    /**
+     * Creates the snapshot for a new chain head. When the head extends the one the previous snapshot was taken of,
+     * the recent headers are carried over, otherwise they are read back from the store.
+     */
+    static ChainHeadSnapshot create(StoredBlock head, ChainHeadSnapshot previous, BlockStore store)
+            throws BlockStoreException {
+        int count = Math.min(RECENT_HEADERS, head.getHeight() + 1);
+        List<Block> headers = new ArrayList<Block>(count);
+        if (previous != null && head.getHeight() == previous.getHeight() + 1 &&
+                Arrays.equals(head.getHeader().getPrevBlockHash(), previous.head.getHeader().getHash())) {
+            List<Block> carried = previous.recentHeaders;
+            headers.addAll(carried.subList(carried.size() - (count - 1), carried.size()));
+            headers.add(head.getHeader());
+            return new ChainHeadSnapshot(head, headers);
+        }
+        StoredBlock cursor = head;
+        for (int i = 0; i < count; i++) {
+            headers.add(cursor.getHeader());
+            cursor = cursor.getPrev(store);
+        }
+        Collections.reverse(headers);
+        return new ChainHeadSnapshot(head, headers);
+    }
+
+    /** Returns a copy of the block at the head of the best chain. */
+    public StoredBlock getHead() {
+        byte[] skipHash = head.getSkipHash();
+        return new StoredBlock(head.getHeader().cloneAsHeader(), head.getChainWork(), head.getHeight(),
+                skipHash == null ? null : skipHash.clone());
+    }
+
+    /** Returns the height of the head, the genesis block having height zero. */
+    public int getHeight() {
+        return head.getHeight();
+    }
+
+    /** Returns the total work of the chain up to and including the head. */
+    public ChainWork getChainWork() {
+        return head.getChainWork();
+    }
+
+    /**
+     * Returns copies of the headers of up to {@link #RECENT_HEADERS} blocks ending with the head, oldest first. There
+     * are fewer only when the chain is shorter than that.
+     */
+    public List<Block> getRecentHeaders() {
+        List<Block> copies = new ArrayList<Block>(recentHeaders.size());
+        for (Block header : recentHeaders)
+            copies.add(header.cloneAsHeader());
+        return copies;
+    }
+}
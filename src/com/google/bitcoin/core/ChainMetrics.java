@@ -0,0 +1,314 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and histograms describing the work a {@link BlockChain} does, see {@link BlockChain#getMetrics()}.
+ * Recording a value only touches a few atomic longs, so the chain updates them on every block without allocating or
+ * locking.<p>
+ *
+ * The metrics can be read directly, exposed over JMX with {@link #registerMBeans(String)}, or handed to a
+ * {@link Reporter} at a fixed rate with {@link #startReporting(Reporter, long)}.
+ */
+public class ChainMetrics {
+    private static final Logger log = LoggerFactory.getLogger(ChainMetrics.class);
+
+    /** Receives the metrics periodically, see {@link ChainMetrics#startReporting(Reporter, long)}. */
+    public interface Reporter {
+        /** Called on the reporting thread. The metrics keep changing while this runs. */
+        void report(ChainMetrics metrics);
+    }
+
+    /** The JMX view of the counters. */
+    public interface CountersMBean {
+        long getBlocksConnected();
+        long getReorganizes();
+        int getUnconnectedBlocks();
+    }
+
+    /** The JMX view of a histogram. Durations are reported in microseconds. */
+    public interface HistogramMBean {
+        long getCount();
+        long getMean();
+        long getMax();
+        long get50thPercentile();
+        long get99thPercentile();
+    }
+
+    /**
+     * Records a distribution of non-negative values in logarithmic buckets, with eight buckets for each power of two,
+     * so percentiles are accurate to within an eighth. Values are usually durations in nanoseconds.
+     */
+    public static class Histogram {
+        // Values below this have a bucket each, above it each power of two is split into SUB_BUCKETS buckets.
+        private static final int SUB_BUCKETS = 8;
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+            buckets.incrementAndGet(bucketOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+                // Another thread raised it first, try again.
+            }
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // Returns the largest value that falls in the given bucket.
+        static long highestValueIn(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            long lowest = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /** Returns the mean of the recorded values, or zero if there are none. */
+        public long getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns a value that at least the given fraction of the recorded values are no larger than, rounded up to
+         * the top of its bucket. Returns zero if nothing has been recorded.
+         */
+        public long getPercentile(double fraction) {
+            long n = count.get();
+            if (n == 0)
+                return 0;
+            long wanted = Math.max(1, (long) Math.ceil(fraction * n));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= wanted)
+                    return Math.min(highestValueIn(bucket), getMax());
+            }
+            return getMax();
+        }
+    }
+
+    // Adapts a histogram to JMX, dividing its values by the given scale.
+    private static class HistogramView implements HistogramMBean {
+        private final Histogram histogram;
+        private final long scale;
+
+        HistogramView(Histogram histogram, long scale) {
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        public long getMean() {
+            return histogram.getMean() / scale;
+        }
+
+        public long getMax() {
+            return histogram.getMax() / scale;
+        }
+
+        public long get50thPercentile() {
+            return histogram.getPercentile(0.5) / scale;
+        }
+
+        public long get99thPercentile() {
+            return histogram.getPercentile(0.99) / scale;
+        }
+    }
+
+    /**
+     * Logs how many blocks were connected per second since the last report, and the median time taken to verify and
+     * connect them.
+     */
+    public static class LoggingReporter implements Reporter {
+        private long lastBlocks;
+        private long lastTime = System.currentTimeMillis();
+
+        public synchronized void report(ChainMetrics metrics) {
+            long now = System.currentTimeMillis();
+            long blocks = metrics.getBlocksConnected();
+            if (blocks != lastBlocks && now > lastTime) {
+                log.info("{} blocks per second, verify {}us, connect {}us, {} unconnected", new Object[] {
+                        (blocks - lastBlocks) * 1000 / (now - lastTime),
+                        metrics.verifyTime.getPercentile(0.5) / 1000,
+                        metrics.connectTime.getPercentile(0.5) / 1000,
+                        metrics.getUnconnectedBlocks()});
+            }
+            lastBlocks = blocks;
+            lastTime = now;
+        }
+    }
+
+    private final AtomicLong blocksConnected = new AtomicLong();
+    private final AtomicLong reorganizes = new AtomicLong();
+    private final AtomicInteger unconnectedBlocks = new AtomicInteger();
+
+    /** Nanoseconds taken by {@link Block#verify()}, the checks that don't need the chain. */
+    public final Histogram verifyTime = new Histogram();
+    /** Nanoseconds taken to look up a block's parent in the block store. */
+    public final Histogram storeGetTime = new Histogram();
+    /** Nanoseconds taken to put a new block in the block store. */
+    public final Histogram storePutTime = new Histogram();
+    /** Nanoseconds taken to connect a verified block, including the store and wallet work. */
+    public final Histogram connectTime = new Histogram();
+    /** Nanoseconds taken by the wallet to scan a block's transactions. */
+    public final Histogram walletScanTime = new Histogram();
+    /** Blocks taken off the best chain by each re-organize. */
+    public final Histogram reorganizeDepth = new Histogram();
+
+    private Timer reportTimer;
+
+    /** Returns how many blocks have been connected to the chain, whether on the best chain or a side chain. */
+    public long getBlocksConnected() {
+        return blocksConnected.get();
+    }
+
+    /** Returns how many times the best chain has been re-organized. */
+    public long getReorganizes() {
+        return reorganizes.get();
+    }
+
+    /** Returns how many blocks are waiting for their parent before they can be connected. */
+    public int getUnconnectedBlocks() {
+        return unconnectedBlocks.get();
+    }
+
+    void blockConnected() {
+        blocksConnected.incrementAndGet();
+    }
+
+    void reorganized(int depth) {
+        reorganizes.incrementAndGet();
+        reorganizeDepth.record(depth);
+    }
+
+    void setUnconnectedBlocks(int count) {
+        unconnectedBlocks.set(count);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under names of the form
+     * {@code com.google.bitcoin:type=BlockChain,name=<name>,metric=<metric>}.
+     */
+    public void registerMBeans(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new StandardMBean(new CountersMBean() {
+            public long getBlocksConnected() {
+                return ChainMetrics.this.getBlocksConnected();
+            }
+
+            public long getReorganizes() {
+                return ChainMetrics.this.getReorganizes();
+            }
+
+            public int getUnconnectedBlocks() {
+                return ChainMetrics.this.getUnconnectedBlocks();
+            }
+        }, CountersMBean.class), objectName(name, "counters"));
+        // Durations are recorded in nanoseconds and shown in microseconds.
+        register(server, name, "verifyTime", new HistogramView(verifyTime, 1000));
+        register(server, name, "storeGetTime", new HistogramView(storeGetTime, 1000));
+        register(server, name, "storePutTime", new HistogramView(storePutTime, 1000));
+        register(server, name, "connectTime", new HistogramView(connectTime, 1000));
+        register(server, name, "walletScanTime", new HistogramView(walletScanTime, 1000));
+        register(server, name, "reorganizeDepth", new HistogramView(reorganizeDepth, 1));
+    }
+
+    private static void register(MBeanServer server, String name, String metric, HistogramView view)
+            throws JMException {
+        server.registerMBean(new StandardMBean(view, HistogramMBean.class), objectName(name, metric));
+    }
+
+    /** Removes the MBeans added by {@link #registerMBeans(String)}. */
+    public void unregisterMBeans(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String metric : new String[] {"counters", "verifyTime", "storeGetTime", "storePutTime", "connectTime",
+                "walletScanTime", "reorganizeDepth"}) {
+            ObjectName objectName = objectName(name, metric);
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        }
+    }
+
+    private static ObjectName objectName(String name, String metric) throws JMException {
+        return new ObjectName("com.google.bitcoin:type=BlockChain,name=" + ObjectName.quote(name) + ",metric=" +
+                metric);
+    }
+
+    /**
+     * Calls the reporter with these metrics every periodMillis on a background thread, until
+     * {@link #stopReporting()}. Only one reporter runs at a time, starting another replaces it.
+     */
+    public synchronized void startReporting(final Reporter reporter, long periodMillis) {
+        stopReporting();
+        reportTimer = new Timer("Chain metrics reporter", true);
+        reportTimer.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                reporter.report(ChainMetrics.this);
+            }
+        }, periodMillis, periodMillis);
+    }
+
+    /** Stops the reporter started by {@link #startReporting(Reporter, long)}, if any. */
+    public synchronized void stopReporting() {
+        if (reportTimer != null) {
+            reportTimer.cancel();
+            reportTimer = null;
+        }
+    }
+}
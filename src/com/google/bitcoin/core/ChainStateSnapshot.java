@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The height and chain work of every block in a {@link DiskBlockStore} file, in file order, so the store can load
+ * without verifying and connecting every header again.<p>
+ *
+ * Besides the entries the snapshot records a CRC32 of the block file headers it describes, which the store checks
+ * while loading, and a CRC32 of its own contents. If either does not match the snapshot is ignored and the chain is
+ * verified from scratch, so a stale or damaged snapshot costs time but is never trusted.
+ */
+class ChainStateSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(ChainStateSnapshot.class);
+
+    private static final int MAGIC = 0x63737370;  // "cssp"
+    private static final int VERSION = 1;
+    // magic, version, number of entries, checksum of the block file headers.
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    private static final int CHAIN_WORK_BYTES = BoundedOverheadBlockStore.Record.CHAIN_WORK_BYTES;
+    private static final int ENTRY_SIZE = 4 + CHAIN_WORK_BYTES;
+
+    private final ByteBuffer entries;
+    private final int size;
+    private final long blockFileChecksum;
+
+    private ChainStateSnapshot(ByteBuffer entries, int size, long blockFileChecksum) {
+        this.entries = entries;
+        this.size = size;
+        this.blockFileChecksum = blockFileChecksum;
+    }
+
+    /** Returns how many blocks, from the start of the block file, the snapshot describes. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the CRC32 of the block headers the snapshot describes, as they appear in the block file. */
+    long getBlockFileChecksum() {
+        return blockFileChecksum;
+    }
+
+    int getHeight(int i) {
+        return entries.getInt(i * ENTRY_SIZE);
+    }
+
+    ChainWork getChainWork(int i) {
+        int pos = i * ENTRY_SIZE + 4;
+        return new ChainWork(entries.getLong(pos), entries.getLong(pos + 8));
+    }
+
+    /** Reads the snapshot in the given file, returning null if there is none or it fails its checksum. */
+    static ChainStateSnapshot read(File file) {
+        if (!file.exists())
+            return null;
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (file.length() < HEADER_SIZE + 8)
+                    throw new IOException("Snapshot is truncated");
+                byte[] bytes = new byte[(int) file.length() - 8];
+                input.readFully(bytes);
+                long checksum = input.readLong();
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (crc.getValue() != checksum)
+                    throw new IOException("Snapshot checksum does not match");
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                    throw new IOException("Not a snapshot file");
+                int size = buf.getInt();
+                long blockFileChecksum = buf.getLong();
+                if (size < 0 || bytes.length != HEADER_SIZE + (long) size * ENTRY_SIZE)
+                    throw new IOException("Snapshot has the wrong length for " + size + " entries");
+                return new ChainStateSnapshot(buf.slice(), size, blockFileChecksum);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            log.warn("Ignoring chain state snapshot " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given blocks, which must be in block file order, to the given file. It is written
+     * to a temporary file first and renamed into place, so an existing snapshot is only replaced by a complete one.
+     */
+    static void write(File file, List<StoredBlock> blocks, long blockFileChecksum) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + blocks.size() * ENTRY_SIZE);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(blocks.size());
+        output.writeLong(blockFileChecksum);
+        ByteBuffer chainWork = ByteBuffer.allocate(CHAIN_WORK_BYTES);
+        for (StoredBlock block : blocks) {
+            output.writeInt(block.getHeight());
+            chainWork.clear();
+            block.getChainWork().write(chainWork);
+            output.write(chainWork.array());
+        }
+        output.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        output.writeLong(crc.getValue());
+        output.close();
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            bytes.writeTo(stream);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        // Some platforms refuse to rename over an existing file.
+        if ((file.exists() && !file.delete()) || !tmp.renameTo(file))
+            throw new IOException("Could not replace " + file + " with a new snapshot");
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * An unsigned 128 bit amount of work, as used for the total work done on a chain. The block store records have
+ * always capped chain work at 16 bytes, so two longs are enough, and adding or comparing them avoids the allocations
+ * and copying that {@link BigInteger} arithmetic costs on every block accepted.<p>
+ *
+ * Objects of this class are immutable.
+ */
+public final class ChainWork implements Comparable<ChainWork>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The number of bytes {@link #write(ByteBuffer)} produces. */
+    public static final int BYTES = 16;
+
+    public static final ChainWork ZERO = new ChainWork(0, 0);
+
+    // Both halves are treated as unsigned.
+    private final long high;
+    private final long low;
+
+    public ChainWork(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Converts the given value, which must be positive or zero and fit in 128 bits.
+     *
+     * @throws IllegalArgumentException if the value is out of range.
+     */
+    public static ChainWork valueOf(BigInteger value) {
+        if (value.signum() < 0 || value.bitLength() > BYTES * 8)
+            throw new IllegalArgumentException("Work out of range: " + value);
+        return new ChainWork(value.shiftRight(64).longValue(), value.longValue());
+    }
+
+    /** Reads 16 big endian bytes as written by {@link #write(ByteBuffer)}. */
+    public static ChainWork read(ByteBuffer buf) {
+        long high = buf.getLong();
+        return new ChainWork(high, buf.getLong());
+    }
+
+    /** Writes the value as 16 big endian bytes. */
+    public void write(ByteBuffer buf) {
+        buf.putLong(high);
+        buf.putLong(low);
+    }
+
+    /**
+     * Returns the sum of this and the given amount of work.
+     *
+     * @throws ArithmeticException if the sum does not fit in 128 bits.
+     */
+    public ChainWork add(ChainWork other) {
+        long sumLow = low + other.low;
+        long carry = lessThanUnsigned(sumLow, low) ? 1 : 0;
+        long sumHigh = high + other.high + carry;
+        if (lessThanUnsigned(sumHigh, high) || (carry == 1 && sumHigh == high))
+            throw new ArithmeticException("Ran out of space to store chain work!");
+        return new ChainWork(sumHigh, sumLow);
+    }
+
+    public int compareTo(ChainWork other) {
+        if (high != other.high)
+            return lessThanUnsigned(high, other.high) ? -1 : 1;
+        if (low != other.low)
+            return lessThanUnsigned(low, other.low) ? -1 : 1;
+        return 0;
+    }
+
+    private static boolean lessThanUnsigned(long a, long b) {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+
+    public BigInteger toBigInteger() {
+        ByteBuffer buf = ByteBuffer.allocate(BYTES);
+        write(buf);
+        return new BigInteger(1, buf.array());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ChainWork)) return false;
+        ChainWork o = (ChainWork) other;
+        return o.high == high && o.low == low;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = high * 31 + low;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toBigInteger().toString();
+    }
+}
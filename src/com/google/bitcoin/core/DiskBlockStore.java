@@ -18,8 +18,15 @@ package com.google.bitcoin.core;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,33 +34,147 @@ import org.slf4j.LoggerFactory;
 /**
  * Stores the block chain to disk but still holds it in memory. This is intended for desktop apps and tests.
  * Constrained environments like mobile phones probably won't want to or be able to store all the block headers in RAM.
+ * <p>
+ *
+ * Writes can be batched: blocks and chain head changes are collected in memory and committed to the file together
+ * once enough blocks are waiting or enough time has passed, see
+ * {@link #DiskBlockStore(NetworkParameters, File, Durability, int, long)}. What a commit guarantees is chosen with
+ * {@link Durability}. A commit appends the blocks before it moves the chain head, so whatever is lost in a crash the
+ * file holds a prefix of the blocks that were put. On load a partially written or unconnectable tail is cut off, and
+ * if the chain head never made it to disk the store falls back to the block with the most work. Call {@link #sync()}
+ * to commit and force everything to disk, and {@link #close()} when done with the store.<p>
+ *
+ * Verifying every header and summing up the chain work makes loading slow for a long chain, so the store also keeps
+ * a {@link ChainStateSnapshot} next to the block file (the same name with ".snapshot" appended). It is written by
+ * close(), by sync() once many blocks have been added since the last one, and on load whenever many blocks had to be
+ * verified. Blocks covered by the snapshot are loaded
+ * without verification, as long as the checksum of their headers matches the one the snapshot recorded. The rest
+ * are verified on all available cores, see {@link HeaderVerifier}. Skip pointers (see {@link StoredBlock#getSkipHash()})
+ * are not stored in the file, they are worked out again as the blocks are read.<p>
+ *
+ * Changes are serialized, but reads never wait for them: get() and getChainHead() take no lock at all and
+ * getByHeight() only waits while the best chain is being updated in memory, never for disk writes.
  */
 public class DiskBlockStore implements BlockStore {
 	private static final Logger log = LoggerFactory.getLogger(DiskBlockStore.class);
-	
-    private FileOutputStream stream;
+
+    /** How hard a commit tries to get data onto the storage device. */
+    public enum Durability {
+        /**
+         * Changes are only committed by {@link DiskBlockStore#sync()} and {@link DiskBlockStore#close()}, or when the
+         * write buffer gets large. A crash loses everything since the last sync.
+         */
+        NONE,
+        /** Commits hand the data to the operating system. This survives the app crashing, but not the machine. */
+        FLUSH,
+        /** Commits also wait for the data to reach the storage device, which survives losing power. */
+        FSYNC
+    }
+
+    // The version byte and chain head hash come before the first block.
+    private static final int FILE_PROLOGUE_BYTES = 1 + 32;
+    // With Durability.NONE the pending writes are committed once they reach this size.
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+    // Headers read from the file and verified in parallel at a time when loading.
+    private static final int VERIFY_WINDOW_BLOCKS = 16 * HeaderVerifier.BATCH_SIZE;
+    // Write a fresh snapshot on load if at least this many blocks had to be verified, and on sync() once this many
+    // blocks have been added since the last one.
+    private static final int SNAPSHOT_REFRESH_BLOCKS = 1000;
+
+    private RandomAccessFile file;
     private Map<Sha256Hash, StoredBlock> blockMap;
-    private Sha256Hash chainHead;
+    // The blocks of the best chain, indexed by height. Guarded by bestChainLock rather than the store monitor.
+    private ArrayList<StoredBlock> bestChain;
+    private final ReadWriteLock bestChainLock = new ReentrantReadWriteLock();
+    // Every block in the order they appear in the file, and the CRC32 of their committed headers.
+    private ArrayList<StoredBlock> fileOrder;
+    private CRC32 fileChecksum;
+    private File snapshotFile;
+    // How many blocks the snapshot on disk covers.
+    private int snapshotBlocks;
+    // Only published once bestChain reaches it.
+    private volatile Sha256Hash chainHead;
     private NetworkParameters params;
 
+    private final Durability durability;
+    private final int commitBlocks;
+    // Serialized headers that have been put but not yet committed.
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingBlocks;
+    private boolean chainHeadDirty;
+    private Timer commitTimer;
+
+    /**
+     * Opens the store in the given file. Every change is written to the file as soon as it is made, but not forced
+     * to the storage device.
+     */
     public DiskBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, Durability.FLUSH, 1, 0);
+    }
+
+    /**
+     * Opens the store in the given file, committing changes in batches.
+     *
+     * @param durability what a commit guarantees
+     * @param commitBlocks commit once this many blocks have been put since the last commit. With 1 or less every
+     *                     put and chain head change is committed straight away.
+     * @param commitIntervalMillis if positive, also commit this often while there are changes waiting
+     */
+    public DiskBlockStore(NetworkParameters params, File file, final Durability durability, int commitBlocks,
+                          long commitIntervalMillis) throws BlockStoreException {
         this.params = params;
-        blockMap = new HashMap<Sha256Hash, StoredBlock>();
+        this.durability = durability;
+        this.commitBlocks = commitBlocks;
+        blockMap = new ConcurrentHashMap<Sha256Hash, StoredBlock>();
+        bestChain = new ArrayList<StoredBlock>();
+        fileOrder = new ArrayList<StoredBlock>();
+        fileChecksum = new CRC32();
+        snapshotFile = new File(file.getPath() + ".snapshot");
         try {
             load(file);
-            stream = new FileOutputStream(file, true);    // Do append.
-        } catch (IOException e) {
-            log.error("failed to load block store from file", e);
+            this.file = new RandomAccessFile(file, "rw");
+            this.file.seek(this.file.length());  // Do append.
+        } catch (FileNotFoundException e) {
+            log.info("No block store in {}, creating a new one", file);
             createNewStore(params, file);
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not load block store from " + file, e);
+        }
+        if (commitIntervalMillis > 0 && durability != Durability.NONE) {
+            commitTimer = new Timer("DiskBlockStore commit", true);
+            commitTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (DiskBlockStore.this) {
+                        if (DiskBlockStore.this.file == null)
+                            return;
+                        try {
+                            commit(durability == Durability.FSYNC);
+                        } catch (BlockStoreException e) {
+                            log.error("Failed to commit block store", e);
+                        }
+                    }
+                }
+            }, commitIntervalMillis, commitIntervalMillis);
         }
     }
 
     private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
-        // Create a new block store if the file wasn't found or anything went wrong whilst reading.
+        // Create a new block store if the file wasn't found or was empty.
         blockMap.clear();
+        bestChain.clear();
+        fileOrder.clear();
+        fileChecksum.reset();
+        snapshotFile.delete();
+        pending.reset();
+        pendingBlocks = 0;
+        chainHeadDirty = false;
         try {
-            stream = new FileOutputStream(file, false);  // Do not append, create fresh.
-            stream.write(1);  // Version.
+            if (this.file != null)
+                this.file.close();
+            this.file = new RandomAccessFile(file, "rw");
+            this.file.setLength(0);  // Create fresh.
+            this.file.write(1);  // Version.
         } catch (IOException e1) {
             // We could not load a block store nor could we create a new one!
             throw new BlockStoreException(e1);
@@ -63,8 +184,11 @@ public class DiskBlockStore implements BlockStore {
             Block genesis = params.genesisBlock.cloneAsHeader();
             StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
             this.chainHead = new Sha256Hash(storedGenesis.getHeader().getHash());
-            stream.write(this.chainHead.hash);
+            this.file.write(this.chainHead.hash);
             put(storedGenesis);
+            // Make sure a fresh store is always complete on disk.
+            commit(durability == Durability.FSYNC);
+            updateBestChain(storedGenesis);
         } catch (VerificationException e1) {
             throw new RuntimeException(e1);  // Cannot happen.
         } catch (IOException e) {
@@ -74,94 +198,375 @@ public class DiskBlockStore implements BlockStore {
 
     private void load(File file) throws IOException, BlockStoreException {
         log.info("Reading block store from {}", file);
+        ChainStateSnapshot snapshot = ChainStateSnapshot.read(snapshotFile);
+        long validLength = readBlocks(file, snapshot);
+        if (validLength < 0) {
+            log.warn("Chain state snapshot does not match the block file, verifying every block");
+            validLength = readBlocks(file, null);
+        }
+        if (blockMap.isEmpty())
+            throw new BlockStoreException("No blocks could be read from " + file);
+        if (file.length() > validLength) {
+            // Left behind by a crash during a commit. Drop it so new blocks are appended in the right place.
+            log.warn("Discarding {} bytes from the end of {}", file.length() - validLength, file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        StoredBlock head = blockMap.get(chainHead);
+        if (head == null) {
+            // The chain head was written but the blocks leading up to it were not. Blocks are only put once they
+            // connect, so every block we do have is valid and the one with the most work is a safe place to resume.
+            for (StoredBlock block : blockMap.values()) {
+                if (head == null || block.moreWorkThan(head))
+                    head = block;
+            }
+            log.warn("Chain head {} is not in the block file, falling back to {}", chainHead, head);
+            chainHead = new Sha256Hash(head.getHeader().getHash());
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(1);
+                raf.write(chainHead.hash);
+            } finally {
+                raf.close();
+            }
+        }
+        updateBestChain(head);
+    }
+
+    /**
+     * Reads the blocks from the file into memory. Blocks covered by the snapshot, if there is one, are taken on
+     * trust, the rest are verified and connected. Returns the length of the valid part of the file, or -1 if the
+     * blocks in the file don't match the snapshot.
+     */
+    private long readBlocks(File file, ChainStateSnapshot snapshot) throws IOException, BlockStoreException {
+        blockMap.clear();
+        fileOrder.clear();
+        fileChecksum.reset();
         InputStream input = new BufferedInputStream(new FileInputStream(file));
-        // Read a version byte.
-        int version = input.read();
-        if (version == -1) {
-            // No such file or the file was empty.
-            throw new FileNotFoundException(file.getName() + " does not exist or is empty");
-        }
-        if (version != 1) {
-            throw new BlockStoreException("Bad version number: " + version);
-        }
-        // Chain head pointer is the first thing in the file.
-        byte[] chainHeadHash = new byte[32];
-        input.read(chainHeadHash);
-        this.chainHead = new Sha256Hash(chainHeadHash);
-        log.info("Read chain head from disk: {}", this.chainHead);
-        long now = System.currentTimeMillis();
-        // Rest of file is raw block headers.
-        byte[] headerBytes = new byte[Block.HEADER_SIZE];
+        HeaderVerifier verifier = new HeaderVerifier(params);
+        // The chain of the last block read, by height, for finding skip ancestors.
+        ArrayList<StoredBlock> path = new ArrayList<StoredBlock>();
+        long validLength = FILE_PROLOGUE_BYTES;
         try {
-            while (true) {
+            // Read a version byte.
+            int version = input.read();
+            if (version == -1) {
+                // No such file or the file was empty.
+                throw new FileNotFoundException(file.getName() + " does not exist or is empty");
+            }
+            if (version != 1) {
+                throw new BlockStoreException("Bad version number: " + version);
+            }
+            // Chain head pointer is the first thing in the file.
+            byte[] chainHeadHash = new byte[32];
+            if (input.read(chainHeadHash) < 32)
+                throw new BlockStoreException("File is too short to hold a chain head");
+            this.chainHead = new Sha256Hash(chainHeadHash);
+            log.info("Read chain head from disk: {}", this.chainHead);
+            long now = System.currentTimeMillis();
+            int trusted = snapshot == null ? 0 : snapshot.size();
+            snapshotBlocks = trusted;
+            // Rest of file is raw block headers. First the ones covered by the snapshot.
+            byte[] headerBytes = new byte[Block.HEADER_SIZE];
+            while (fileOrder.size() < trusted) {
                 // Read a block from disk.
-                if (input.read(headerBytes) < 80) {
-                    // End of file.
-                    break;
+                if (readFully(input, headerBytes) < Block.HEADER_SIZE) {
+                    // The file ends before the snapshot does.
+                    return -1;
                 }
-                // Parse it.
-                Block b = new Block(params, headerBytes);
-                // Look up the previous block it connects to.
-                StoredBlock prev = get(b.getPrevBlockHash());
+                int n = fileOrder.size();
                 StoredBlock s;
-                if (prev == null) {
-                    // First block in the stored chain has to be treated specially.
-                    if (b.equals(params.genesisBlock)) {
-                        s = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
-                    } else {
-                        throw new BlockStoreException("Could not connect " + Utils.bytesToHexString(b.getHash()) + " to "
-                            + Utils.bytesToHexString(b.getPrevBlockHash()));
+                try {
+                    Block header = new Block(params, headerBytes);
+                    int height = snapshot.getHeight(n);
+                    StoredBlock skip = null;
+                    if (height > 0) {
+                        StoredBlock prev = blockMap.get(new Sha256Hash(header.getPrevBlockHash()));
+                        if (prev == null || prev.getHeight() != height - 1)
+                            return -1;
+                        skip = findSkip(prev, path);
                     }
-                } else {
-                    // Don't try to verify the genesis block to avoid upsetting the unit tests.
-                    b.verify();
-                    // Calculate its height and total chain work.
-                    s = prev.build(b);
+                    s = new StoredBlock(header, snapshot.getChainWork(n), height,
+                            skip == null ? null : skip.getHeader().getHash());
+                } catch (ProtocolException e) {
+                    return -1;
                 }
+                path.add(s);
                 // Save in memory.
-                blockMap.put(new Sha256Hash(b.getHash()), s);
+                blockMap.put(new Sha256Hash(s.getHeader().getHash()), s);
+                fileOrder.add(s);
+                fileChecksum.update(headerBytes, 0, Block.HEADER_SIZE);
+                validLength += Block.HEADER_SIZE;
             }
-        } catch (ProtocolException e) {
-            // Corrupted file.
-            throw new BlockStoreException(e);
-        } catch (VerificationException e) {
-            // Should not be able to happen unless the file contains bad blocks.
-            throw new BlockStoreException(e);
+            if (snapshot != null && fileChecksum.getValue() != snapshot.getBlockFileChecksum())
+                return -1;
+            // Then the rest, which are verified in parallel a window at a time and linked up in sequence.
+            byte[] window = new byte[VERIFY_WINDOW_BLOCKS * Block.HEADER_SIZE];
+            boolean done = false;
+            while (!done) {
+                int length = readFully(input, window);
+                int count = length / Block.HEADER_SIZE;
+                // A partial header at the end of the file is the end of the valid part.
+                done = count < VERIFY_WINDOW_BLOCKS;
+                HeaderVerifier.Result[] results;
+                try {
+                    results = verifier.verify(window, count);
+                } catch (InterruptedException e) {
+                    throw new BlockStoreException(e);
+                }
+                for (int i = 0; i < count; i++) {
+                    StoredBlock s = connect(results[i], path);
+                    if (s == null) {
+                        done = true;
+                        break;
+                    }
+                    path.add(s);
+                    // Save in memory.
+                    blockMap.put(new Sha256Hash(s.getHeader().getHash()), s);
+                    fileOrder.add(s);
+                    fileChecksum.update(window, i * Block.HEADER_SIZE, Block.HEADER_SIZE);
+                    validLength += Block.HEADER_SIZE;
+                }
+            }
+            long elapsed = System.currentTimeMillis() - now;
+            log.info("Block chain read complete in {}ms, {} blocks verified", elapsed, fileOrder.size() - trusted);
+            if (fileOrder.size() - trusted >= SNAPSHOT_REFRESH_BLOCKS)
+                writeSnapshot();
+        } finally {
+            input.close();
         }
-        long elapsed = System.currentTimeMillis() - now;
-        log.info("Block chain read complete in {}ms", elapsed);
+        return validLength;
     }
 
-    public synchronized void put(StoredBlock block) throws BlockStoreException {
+    private void writeSnapshot() throws IOException {
+        long now = System.currentTimeMillis();
+        ChainStateSnapshot.write(snapshotFile, fileOrder, fileChecksum.getValue());
+        snapshotBlocks = fileOrder.size();
+        log.info("Wrote chain state snapshot of {} blocks in {}ms", fileOrder.size(),
+                System.currentTimeMillis() - now);
+    }
+
+    /**
+     * Works out the height and chain work of the given header by connecting it to a block that has already been
+     * loaded. Returns null if it is not a valid block or does not connect, which means the rest of the file was
+     * not written out properly.
+     */
+    private StoredBlock connect(HeaderVerifier.Result result, List<StoredBlock> path) {
+        Block b = result.header;
+        if (b == null) {
+            log.warn("Corrupted block in file", result.error);
+            return null;
+        }
+        // Look up the previous block it connects to.
+        StoredBlock prev = blockMap.get(new Sha256Hash(b.getPrevBlockHash()));
+        if (prev == null) {
+            // First block in the stored chain has to be treated specially. Don't require it to verify to avoid
+            // upsetting the unit tests.
+            if (blockMap.isEmpty() && b.equals(params.genesisBlock)) {
+                try {
+                    return new StoredBlock(b, params.genesisBlock.getWork(), 0);
+                } catch (VerificationException e) {
+                    throw new RuntimeException(e);  // Cannot happen.
+                }
+            }
+            log.warn("Could not connect {} to {}", Utils.bytesToHexString(b.getHash()),
+                    Utils.bytesToHexString(b.getPrevBlockHash()));
+            return null;
+        }
+        if (result.error != null) {
+            log.warn("Invalid block in file", result.error);
+            return null;
+        }
+        // Calculate its height and total chain work.
+        StoredBlock skip = findSkip(prev, path);
+        return new StoredBlock(b, prev.getChainWork().add(result.work), prev.getHeight() + 1,
+                skip == null ? null : skip.getHeader().getHash());
+    }
+
+    /**
+     * Returns the skip ancestor of a block being loaded on top of prev. The path holds the chain of the last block
+     * loaded, by height, and is moved onto the chain of prev first. Blocks are mostly written in the order they extend
+     * the chain, so this is usually a single lookup and otherwise takes as many steps as the fork is deep. The caller
+     * adds the new block to the end of the path.
+     */
+    private StoredBlock findSkip(StoredBlock prev, List<StoredBlock> path) {
+        int height = prev.getHeight();
+        while (path.size() > height + 1)
+            path.remove(path.size() - 1);
+        while (path.size() < height + 1)
+            path.add(null);
+        StoredBlock cursor = prev;
+        while (cursor != null && !cursor.equals(path.get(cursor.getHeight()))) {
+            path.set(cursor.getHeight(), cursor);
+            cursor = blockMap.get(new Sha256Hash(cursor.getHeader().getPrevBlockHash()));
+        }
+        return path.get(StoredBlock.getSkipHeight(height + 1));
+    }
+
+    // Reads until the buffer is full or the stream ends, returning the number of bytes read.
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = input.read(buffer, total, buffer.length - total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Makes bestChain describe the chain ending at newHead, by dropping entries above it and then walking back from
+     * it until we reach a block that is already in the right place.
+     */
+    private void updateBestChain(StoredBlock newHead) {
+        bestChainLock.writeLock().lock();
         try {
-            Sha256Hash hash = new Sha256Hash(block.getHeader().getHash());
-            assert blockMap.get(hash) == null : "Attempt to insert duplicate";
-            // Append to the end of the file. The other fields in StoredBlock will be recalculated when it's reloaded.
-            byte[] bytes = block.getHeader().bitcoinSerialize();
-            stream.write(bytes);
-            stream.flush();
-            blockMap.put(hash, block);
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
+            int height = newHead.getHeight();
+            while (bestChain.size() > height + 1)
+                bestChain.remove(bestChain.size() - 1);
+            while (bestChain.size() < height + 1)
+                bestChain.add(null);
+            StoredBlock cursor = newHead;
+            while (cursor != null && !cursor.equals(bestChain.get(cursor.getHeight()))) {
+                bestChain.set(cursor.getHeight(), cursor);
+                cursor = blockMap.get(new Sha256Hash(cursor.getHeader().getPrevBlockHash()));
+            }
+        } finally {
+            bestChainLock.writeLock().unlock();
         }
     }
 
-    public synchronized StoredBlock get(byte[] hash) throws BlockStoreException {
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        append(block);
+        maybeCommit();
+    }
+
+    // Queues the block to be appended to the end of the file. The other fields in StoredBlock will be recalculated
+    // when it's reloaded.
+    private void append(StoredBlock block) {
+        Sha256Hash hash = new Sha256Hash(block.getHeader().getHash());
+        assert blockMap.get(hash) == null : "Attempt to insert duplicate";
+        byte[] bytes = block.getHeader().bitcoinSerialize();
+        pending.write(bytes, 0, bytes.length);
+        pendingBlocks++;
+        blockMap.put(hash, block);
+        fileOrder.add(block);
+    }
+
+    public StoredBlock get(byte[] hash) throws BlockStoreException {
         return blockMap.get(new Sha256Hash(hash));
     }
 
-    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+    public StoredBlock getChainHead() throws BlockStoreException {
         return blockMap.get(chainHead);
     }
 
     public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        updateHead(chainHead);
+        maybeCommit();
+    }
+
+    public synchronized void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        for (StoredBlock block : blocks)
+            append(block);
+        updateHead(chainHead);
+        // However many blocks there are, this is one write of the file and one of the head.
+        maybeCommit();
+    }
+
+    private void updateHead(StoredBlock chainHead) {
+        updateBestChain(chainHead);
+        this.chainHead = new Sha256Hash(chainHead.getHeader().getHash());
+        chainHeadDirty = true;
+    }
+
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        bestChainLock.readLock().lock();
+        try {
+            if (height < 0 || height >= bestChain.size())
+                return null;
+            return bestChain.get(height);
+        } finally {
+            bestChainLock.readLock().unlock();
+        }
+    }
+
+    private void maybeCommit() throws BlockStoreException {
+        if (durability == Durability.NONE) {
+            if (pending.size() >= MAX_PENDING_BYTES)
+                commit(false);
+        } else if (commitBlocks <= 1 || pendingBlocks >= commitBlocks) {
+            commit(durability == Durability.FSYNC);
+        }
+    }
+
+    /**
+     * Writes out pending blocks and then the chain head. The blocks are forced to disk before the chain head is
+     * written, if requested, so the chain head never refers to a block that is not in the file.
+     */
+    private void commit(boolean force) throws BlockStoreException {
+        try {
+            if (pending.size() > 0) {
+                // The file pointer is always left at the end of the file.
+                byte[] bytes = pending.toByteArray();
+                file.write(bytes);
+                fileChecksum.update(bytes);
+                pending.reset();
+                pendingBlocks = 0;
+                if (force)
+                    file.getFD().sync();
+            }
+            if (chainHeadDirty) {
+                // Write out new hash to the first 32 bytes of the file past one (first byte is version number).
+                file.getChannel().write(ByteBuffer.wrap(chainHead.hash), 1);
+                chainHeadDirty = false;
+                if (force)
+                    file.getFD().sync();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Commits any pending changes and forces them to the storage device, whatever the {@link Durability} of the
+     * store. The chain state snapshot is only rewritten once enough blocks have been added since the last one, as
+     * writing it costs time in proportion to the length of the chain, it is always brought up to date by
+     * {@link #close()}.
+     */
+    public synchronized void sync() throws BlockStoreException {
+        commit(true);
+        if (fileOrder.size() - snapshotBlocks >= SNAPSHOT_REFRESH_BLOCKS)
+            updateSnapshot();
+    }
+
+    private void updateSnapshot() throws BlockStoreException {
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Syncs the store and closes the file. The store cannot be used afterwards. */
+    public synchronized void close() throws BlockStoreException {
+        if (file == null)
+            return;
+        if (commitTimer != null)
+            commitTimer.cancel();
+        sync();
+        if (fileOrder.size() != snapshotBlocks)
+            updateSnapshot();
         try {
-            byte[] hash = chainHead.getHeader().getHash();
-            this.chainHead = new Sha256Hash(hash);
-            // Write out new hash to the first 32 bytes of the file past one (first byte is version number).
-            stream.getChannel().write(ByteBuffer.wrap(hash), 1);
+            file.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+        file = null;
     }
 }
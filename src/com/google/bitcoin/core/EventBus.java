@@ -0,0 +1,308 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers wallet and chain events to listeners on an executor, so a slow listener does not hold up the thread that
+ * is processing blocks. Listeners registered through the bus are called with coins received, re-organize and dead
+ * transaction events from a {@link Wallet}, and with new best blocks from a {@link BlockChain} in the form of a
+ * {@link ChainHeadSnapshot}.<p>
+ *
+ * Each listener has a queue of its own and receives its events one at a time, in the order they happened, with the
+ * listener object locked as it would be when called directly. Different listeners run in parallel on the executor.
+ * When a listener's queue is full the {@link OverflowPolicy} decides what happens to the next event; the number of
+ * events dropped is available from {@link #getDroppedEvents()}.<p>
+ *
+ * Events are delivered after the wallet or chain has moved on, so listeners must not assume the wallet's state is
+ * what it was when the event happened. The balances passed to
+ * {@link WalletEventListener#onCoinsReceived(Wallet, Transaction, BigInteger, BigInteger)} are those at the time.
+ */
+public class EventBus {
+    private static final Logger log = LoggerFactory.getLogger(EventBus.class);
+
+    /** The number of events each listener may have waiting before the overflow policy applies. */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * What a bus created with {@link #EventBus()} does when a listener falls behind. Events are raised with the wallet
+     * or chain locked, so the default never makes that thread wait.
+     */
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+
+    // A listener with a long backlog gives up its thread after this many events, so listeners sharing a fixed size
+    // executor all make progress.
+    private static final int MAX_EVENTS_PER_RUN = 100;
+
+    /** What to do with an event when the listener's queue is full. */
+    public enum OverflowPolicy {
+        /**
+         * Make the thread raising the event wait for space. Nothing is lost, but block processing slows to the speed
+         * of the listener. The wallet or chain is locked while the thread waits, so this must only be used with
+         * listeners that never call back into them: one that does deadlocks once its queue fills up.
+         */
+        BLOCK,
+        /** Discard the new event. */
+        DROP_NEWEST,
+        /** Discard the oldest waiting event to make room for the new one. */
+        DROP_OLDEST
+    }
+
+    private final Executor executor;
+    // Set when the bus created the executor, so shutdown() can stop it.
+    private final ExecutorService ownedExecutor;
+    private final int queueSize;
+    private final OverflowPolicy policy;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private volatile boolean shutdown;
+
+    // Guarded by this. Keyed by listener identity, as listeners need not implement equals.
+    private final Map<Object, Subscriber> subscribers = new IdentityHashMap<Object, Subscriber>();
+
+    /**
+     * Creates a bus that delivers events on threads of its own, with queues of {@link #DEFAULT_QUEUE_SIZE} events
+     * that drop their oldest event when full, see {@link #DEFAULT_OVERFLOW_POLICY}.
+     */
+    public EventBus() {
+        this(Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Event bus");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true, DEFAULT_QUEUE_SIZE, DEFAULT_OVERFLOW_POLICY);
+    }
+
+    /**
+     * Creates a bus that delivers events using the given executor. Each listener may have up to queueSize events
+     * waiting, after which the policy applies.
+     */
+    public EventBus(Executor executor, int queueSize, OverflowPolicy policy) {
+        this(executor, false, queueSize, policy);
+    }
+
+    private EventBus(Executor executor, boolean owned, int queueSize, OverflowPolicy policy) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException("Queue size must be positive: " + queueSize);
+        this.executor = executor;
+        this.ownedExecutor = owned ? (ExecutorService) executor : null;
+        this.queueSize = queueSize;
+        this.policy = policy;
+    }
+
+    /** Registers a listener for events from the given wallet. */
+    public synchronized void addWalletListener(Wallet wallet, final WalletEventListener listener) {
+        final Subscriber subscriber = subscriberFor(listener);
+        if (subscriber.adapters.containsKey(wallet))
+            return;
+        WalletEventListener adapter = new WalletEventListener() {
+            @Override
+            public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance,
+                                        final BigInteger newBalance) {
+                subscriber.post(new Runnable() {
+                    public void run() {
+                        listener.onCoinsReceived(wallet, tx, prevBalance, newBalance);
+                    }
+                });
+            }
+
+            @Override
+            public void onReorganize() {
+                subscriber.post(new Runnable() {
+                    public void run() {
+                        listener.onReorganize();
+                    }
+                });
+            }
+
+            @Override
+            public void onDeadTransaction(final Transaction deadTx, final Transaction replacementTx) {
+                subscriber.post(new Runnable() {
+                    public void run() {
+                        listener.onDeadTransaction(deadTx, replacementTx);
+                    }
+                });
+            }
+        };
+        subscriber.adapters.put(wallet, adapter);
+        wallet.addEventListener(adapter);
+    }
+
+    /** Stops delivering events from the given wallet to the listener. Events already queued are still delivered. */
+    public synchronized void removeWalletListener(Wallet wallet, WalletEventListener listener) {
+        Object adapter = removeAdapter(wallet, listener);
+        if (adapter != null)
+            wallet.removeEventListener((WalletEventListener) adapter);
+    }
+
+    /** Registers a listener for new best blocks on the given chain. */
+    public synchronized void addChainHeadListener(BlockChain chain, final ChainHeadListener listener) {
+        final Subscriber subscriber = subscriberFor(listener);
+        if (subscriber.adapters.containsKey(chain))
+            return;
+        ChainHeadListener adapter = new ChainHeadListener() {
+            public void onChainHeadChanged(final ChainHeadSnapshot snapshot) {
+                subscriber.post(new Runnable() {
+                    public void run() {
+                        listener.onChainHeadChanged(snapshot);
+                    }
+                });
+            }
+        };
+        subscriber.adapters.put(chain, adapter);
+        chain.addChainHeadListener(adapter);
+    }
+
+    /** Stops delivering new best blocks from the given chain to the listener. */
+    public synchronized void removeChainHeadListener(BlockChain chain, ChainHeadListener listener) {
+        Object adapter = removeAdapter(chain, listener);
+        if (adapter != null)
+            chain.removeChainHeadListener((ChainHeadListener) adapter);
+    }
+
+    private Subscriber subscriberFor(Object listener) {
+        Subscriber subscriber = subscribers.get(listener);
+        if (subscriber == null) {
+            subscriber = new Subscriber(listener);
+            subscribers.put(listener, subscriber);
+        }
+        return subscriber;
+    }
+
+    private Object removeAdapter(Object source, Object listener) {
+        Subscriber subscriber = subscribers.get(listener);
+        if (subscriber == null)
+            return null;
+        Object adapter = subscriber.adapters.remove(source);
+        if (subscriber.adapters.isEmpty())
+            subscribers.remove(listener);
+        return adapter;
+    }
+
+    /** Returns how many events have been discarded because a queue was full or the bus was shut down. */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Stops accepting events. Events already queued are still delivered, and if the bus created its own threads
+     * they are stopped once the queues are empty. Listeners stay registered with their wallets and chains until
+     * removed.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (ownedExecutor != null)
+            ownedExecutor.shutdown();
+    }
+
+    /**
+     * Waits for the bus's own threads to finish after {@link #shutdown()}, returning false on timeout. Returns true
+     * straight away if the bus was given an executor, as that executor belongs to the caller.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return ownedExecutor == null || ownedExecutor.awaitTermination(timeout, unit);
+    }
+
+    /** The queue of events waiting for one listener, and the task that drains it. */
+    private class Subscriber implements Runnable {
+        private final Object listener;
+        private final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        // True while a run of this subscriber is queued or running on the executor, so at most one is.
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // The adapters registered for this listener, keyed by the wallet or chain they are registered with. Guarded
+        // by the bus.
+        private final Map<Object, Object> adapters = new IdentityHashMap<Object, Object>();
+
+        Subscriber(Object listener) {
+            this.listener = listener;
+        }
+
+        void post(Runnable event) {
+            if (shutdown) {
+                droppedEvents.incrementAndGet();
+                return;
+            }
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        queue.put(event);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        droppedEvents.incrementAndGet();
+                        return;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    if (!queue.offer(event)) {
+                        droppedEvents.incrementAndGet();
+                        return;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.offer(event)) {
+                        if (queue.poll() != null)
+                            droppedEvents.incrementAndGet();
+                    }
+                    break;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                int lost = queue.size();
+                queue.clear();
+                droppedEvents.addAndGet(lost);
+                log.warn("Executor rejected event delivery, dropped {} events", lost);
+            }
+        }
+
+        public void run() {
+            for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+                Runnable event = queue.poll();
+                if (event == null)
+                    break;
+                try {
+                    // Keep the guarantee that listeners are called with themselves locked.
+                    synchronized (listener) {
+                        event.run();
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Event listener threw an exception", e);
+                }
+            }
+            scheduled.set(false);
+            // An event may have been posted after the last poll but before scheduled was cleared.
+            if (!queue.isEmpty())
+                schedule();
+        }
+    }
+}
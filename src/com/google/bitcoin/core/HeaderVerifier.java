@@ -0,0 +1,111 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Parses and verifies runs of serialized block headers on the worker threads shared by every chain (see
+ * {@link SharedWorkers}). Proof of work, the timestamp and the work each header represents only depend on the header
+ * itself, so they can be worked out in any order, leaving just the cheap linking of each header to its parent for the
+ * caller to do in sequence.
+ */
+class HeaderVerifier {
+    /** The outcome for one header. */
+    static class Result {
+        /** The parsed header, or null if it could not be parsed. */
+        final Block header;
+        /** The work the header represents, or null if it could not be verified. */
+        final ChainWork work;
+        /** Why the header could not be parsed or verified, or null if it is fine. */
+        final Exception error;
+
+        Result(Block header, ChainWork work, Exception error) {
+            this.header = header;
+            this.work = work;
+            this.error = error;
+        }
+    }
+
+    // Headers handed to a thread at a time. Verifying one costs a few microseconds, so batches keep the overhead of
+    // handing out work small.
+    static final int BATCH_SIZE = 1024;
+
+    private final NetworkParameters params;
+
+    /** Creates a verifier for headers of the given network. With a single processor everything runs on the caller. */
+    HeaderVerifier(NetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Parses and verifies the count headers stored back to back at the start of the given array, returning one
+     * result per header in the same order.
+     */
+    Result[] verify(final byte[] headers, int count) throws InterruptedException {
+        final Result[] results = new Result[count];
+        int batches = (count + BATCH_SIZE - 1) / BATCH_SIZE;
+        if (SharedWorkers.getThreads() <= 1 || batches <= 1) {
+            verifyRange(headers, results, 0, count);
+            return results;
+        }
+        ExecutorService executor = SharedWorkers.get();
+        List<Future<?>> futures = new ArrayList<Future<?>>(batches);
+        try {
+            for (int start = 0; start < count; start += BATCH_SIZE) {
+                final int from = start;
+                final int to = Math.min(count, start + BATCH_SIZE);
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        verifyRange(headers, results, from, to);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // verifyRange catches the exceptions verification throws, so this is a bug.
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            // Only left running if a wait was interrupted.
+            for (Future<?> future : futures)
+                future.cancel(false);
+        }
+        return results;
+    }
+
+    private void verifyRange(byte[] headers, Result[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte[] bytes = Arrays.copyOfRange(headers, i * Block.HEADER_SIZE, (i + 1) * Block.HEADER_SIZE);
+            Block header = null;
+            try {
+                header = new Block(params, bytes);
+                header.verify();
+                results[i] = new Result(header, header.getWork(), null);
+            } catch (ProtocolException e) {
+                results[i] = new Result(header, null, e);
+            } catch (VerificationException e) {
+                results[i] = new Result(header, null, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the block chain in a memory mapped file.<p>
+ *
+ * Records use the same layout as {@link BoundedOverheadBlockStore} (height, chain work, header, skip hash) and are
+ * appended to the file sequentially. The file is grown and mapped in large segments, so reading or writing a record
+ * is a plain memory access served by the operating system page cache, and writing dirty pages back to disk is left
+ * to the operating system. Call {@link #sync()} to force outstanding writes to disk.<p>
+ *
+ * Blocks are located via a hash index kept next to the block file (the same name with ".index" appended), so the
+ * heap usage of this store does not grow with the length of the chain. As with BoundedOverheadBlockStore the index
+ * is rebuilt from the block file if it is missing or stale, together with a Bloom filter (".bloom") that answers
+ * most lookups of blocks we don't have without going to the index.<p>
+ *
+ * The file starts with a version byte, the hash of the chain head and the number of records stored. Because the
+ * file is grown ahead of use, the record count rather than the file size tells us where the data ends. Records carry
+ * a checksum, and any that fail it when the store is opened after a crash are dropped along with the records after
+ * them.<p>
+ *
+ * Lookups only take a shared lock, so any number of threads can read the chain at once while no block is being
+ * stored.
+ */
+public class MappedBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedBlockStore.class);
+    // The first and so far only version. Its records are those of the current BoundedOverheadBlockStore format,
+    // checksum and skip hash included, but the file header differs so the two versions are counted separately.
+    private static final byte FILE_FORMAT_VERSION = 1;
+
+    // Version byte, chain head hash, record count.
+    private static final int HEADER_SIZE = 1 + 32 + 4;
+    private static final int RECORD_SIZE = BoundedOverheadBlockStore.Record.SIZE;
+    // How many records fit in one mapped segment by default, about 12.5MB worth. Segments hold whole records so
+    // none straddles a boundary.
+    private static final int DEFAULT_SEGMENT_RECORDS = 1 << 17;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private int numRecords;
+    private final int segmentRecords;
+    private final long segmentSize;
+
+    // Lookups and sync() hold the read lock, put() and setChainHead() the write lock.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Sha256Hash chainHead;
+    private final NetworkParameters params;
+    // Maps block hashes to the file offset of their record.
+    private BlockHashIndex index;
+    // Answers most lookups of blocks we don't have without touching the index.
+    private BlockBloomFilter filter;
+    // Maps heights on the best chain to the file offset of their record.
+    private BlockHeightIndex heights;
+    private final BlockHeightIndex.Offsets offsets = new BlockHeightIndex.Offsets() {
+        public long offsetOf(StoredBlock block) throws BlockStoreException {
+            try {
+                return index.get(block.getHeader().getHash());
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    };
+
+    public MappedBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_SEGMENT_RECORDS);
+    }
+
+    /** Allows the segment size to be chosen, for unit testing. */
+    MappedBlockStore(NetworkParameters params, File file, int segmentRecords) throws BlockStoreException {
+        this.params = params;
+        this.segmentRecords = segmentRecords;
+        this.segmentSize = (long) segmentRecords * RECORD_SIZE;
+        try {
+            index = new BlockHashIndex(new File(file.getPath() + ".index"));
+            filter = new BlockBloomFilter(new File(file.getPath() + ".bloom"));
+            heights = new BlockHeightIndex(new File(file.getPath() + ".heights"));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        try {
+            load(file);
+        } catch (FileNotFoundException e) {
+            log.info("No block store in {}, creating a new one", file);
+            createNewStore(params, file);
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not load block store from " + file, e);
+        }
+    }
+
+    private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
+        // Create a new block store if the file wasn't found or was empty.
+        try {
+            if (this.file != null)
+                this.file.close();
+            segments.clear();
+            index.clear();
+            filter.clear();
+            heights.truncate(0);
+            file.delete();
+            this.file = new RandomAccessFile(file, "rw");  // Create fresh.
+            this.channel = this.file.getChannel();
+            this.file.setLength(HEADER_SIZE);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.put(0, FILE_FORMAT_VERSION);
+            numRecords = 0;
+            header.putInt(1 + 32, numRecords);
+        } catch (IOException e1) {
+            // We could not load a block store nor could we create a new one!
+            throw new BlockStoreException(e1);
+        }
+        try {
+            // Set up the genesis block. When we start out fresh, it is by definition the top of the chain.
+            Block genesis = params.genesisBlock.cloneAsHeader();
+            StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+            put(storedGenesis);
+            setChainHead(storedGenesis);
+        } catch (VerificationException e1) {
+            throw new RuntimeException(e1);  // Cannot happen.
+        }
+    }
+
+    private void load(File file) throws IOException, BlockStoreException {
+        log.info("Reading block store from {}", file);
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+        if (channel.size() == 0) {
+            // No such file or the file was empty.
+            throw new FileNotFoundException(file.getName() + " does not exist or is empty");
+        }
+        if (channel.size() < HEADER_SIZE)
+            throw new BlockStoreException("File is too short to hold a header: " + channel.size() + " bytes");
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        int version = header.get(0);
+        if (version != FILE_FORMAT_VERSION) {
+            throw new BlockStoreException("Bad version number: " + version);
+        }
+        // Chain head pointer follows the version byte.
+        byte[] chainHeadHash = new byte[32];
+        header.position(1);
+        header.get(chainHeadHash);
+        this.chainHead = new Sha256Hash(chainHeadHash);
+        log.info("Read chain head from disk: {}", this.chainHead);
+        numRecords = header.getInt(1 + 32);
+        if (numRecords <= 0 || channel.size() < recordPosition(numRecords))
+            throw new BlockStoreException("Record count " + numRecords + " does not fit in file of " +
+                    channel.size() + " bytes");
+        int numSegments = (numRecords + segmentRecords - 1) / segmentRecords;
+        for (int i = 0; i < numSegments; i++)
+            mapSegment(i);
+        updateIndex();
+        updateHeights();
+    }
+
+    // Returns the stored block with the most chain work. Only used for recovery so it just reads every record.
+    private StoredBlock findMostWork() throws ProtocolException {
+        StoredBlock best = null;
+        for (int i = 0; i < numRecords; i++) {
+            StoredBlock block = readRecord(recordPosition(i));
+            if (best == null || block.moreWorkThan(best))
+                best = block;
+        }
+        return best;
+    }
+
+    /** Rebuilds the height index if it does not end at the chain head, eg because it is missing. */
+    private void updateHeights() throws IOException, BlockStoreException {
+        StoredBlock head = get(chainHead.hash);
+        if (head == null) {
+            // The records leading up to the chain head were lost, fall back to the best block we still have.
+            try {
+                head = findMostWork();
+            } catch (ProtocolException e) {
+                throw new BlockStoreException(e);
+            }
+            if (head == null)
+                throw new BlockStoreException("Block file contains no records");
+            log.warn("Chain head {} is not in the block file, falling back to {}", chainHead, head);
+            this.chainHead = new Sha256Hash(head.getHeader().getHash());
+            ByteBuffer buf = header.duplicate();
+            buf.position(1);
+            buf.put(chainHead.hash);
+        }
+        if (heights.isConsistent(index.get(chainHead.hash), head.getHeight()))
+            return;
+        log.warn("Height index does not match the chain head, rebuilding");
+        heights.rebuild(this, offsets, head);
+    }
+
+    /**
+     * Adds records written since the index was last updated to it, or rebuilds it entirely if it does not match
+     * the block file.
+     */
+    private void updateIndex() throws IOException, BlockStoreException {
+        long end = recordPosition(numRecords);
+        long covered = index.getCoveredLength();
+        if (filter.getCoveredLength() != covered || (covered != 0 && !indexIsConsistent(covered, end))) {
+            // The Bloom filter is built alongside the index, so they are always rebuilt together.
+            log.warn("Block index is stale, rebuilding");
+            index.clear();
+            filter.clear();
+            covered = 0;
+        }
+        int first = covered == 0 ? 0 : (int) ((covered - HEADER_SIZE) / RECORD_SIZE);
+        long now = System.currentTimeMillis();
+        for (int i = first; i < numRecords; i++) {
+            byte[] hash;
+            try {
+                hash = readRecord(recordPosition(i)).getHeader().getHash();
+            } catch (ProtocolException e) {
+                // The page holding this record never made it to disk. Forget it and everything after it.
+                log.warn("Record {} is corrupt, discarding it and the {} records after it", i, numRecords - i - 1);
+                numRecords = i;
+                header.putInt(1 + 32, numRecords);
+                end = recordPosition(numRecords);
+                break;
+            }
+            index.put(hash, recordPosition(i));
+            filter.add(hash);
+        }
+        index.setCoveredLength(end);
+        filter.setCoveredLength(end);
+        log.info("Indexed {} blocks in {}ms", Math.max(0, numRecords - first), System.currentTimeMillis() - now);
+    }
+
+    private boolean indexIsConsistent(long covered, long end) throws IOException {
+        if (covered > end || covered < HEADER_SIZE + RECORD_SIZE || (covered - HEADER_SIZE) % RECORD_SIZE != 0)
+            return false;
+        long lastPos = covered - RECORD_SIZE;
+        try {
+            return index.get(readRecord(lastPos).getHeader().getHash()) == lastPos;
+        } catch (ProtocolException e) {
+            return false;
+        }
+    }
+
+    private static long recordPosition(int recordNumber) {
+        return HEADER_SIZE + (long) recordNumber * RECORD_SIZE;
+    }
+
+    /** Maps the given segment, growing the file if necessary. */
+    private void mapSegment(int segment) throws IOException {
+        long start = HEADER_SIZE + segment * segmentSize;
+        if (file.length() < start + segmentSize)
+            file.setLength(start + segmentSize);
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start, segmentSize));
+    }
+
+    // Returns a view of the mapped segment holding the record at the given file position, positioned at the record.
+    private ByteBuffer recordBuffer(long position) {
+        long relative = position - HEADER_SIZE;
+        ByteBuffer buf = segments.get((int) (relative / segmentSize)).duplicate();
+        buf.position((int) (relative % segmentSize));
+        return buf;
+    }
+
+    private StoredBlock readRecord(long position) throws ProtocolException {
+        return BoundedOverheadBlockStore.Record.decode(params, recordBuffer(position));
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            if (numRecords % segmentRecords == 0 && numRecords / segmentRecords == segments.size())
+                mapSegment(segments.size());
+            long position = recordPosition(numRecords);
+            BoundedOverheadBlockStore.Record.encode(recordBuffer(position), block);
+            // Only bump the count once the record is in place, so the count never covers a half written record.
+            numRecords++;
+            header.putInt(1 + 32, numRecords);
+            index.put(block.getHeader().getHash(), position);
+            index.setCoveredLength(recordPosition(numRecords));
+            filter.add(block.getHeader().getHash());
+            filter.setCoveredLength(recordPosition(numRecords));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public StoredBlock get(byte[] hash) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            // Definitely not stored, no need to look in the index.
+            if (!filter.mightContain(hash))
+                return null;
+            long position = index.get(hash);
+            if (position < 0)
+                return null;
+            StoredBlock block = readRecord(position);
+            if (!Arrays.equals(block.getHeader().getHash(), hash))
+                throw new BlockStoreException("Block index is corrupt, " + Utils.bytesToHexString(hash) +
+                        " points at the wrong record");
+            return block;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            return get(chainHead.hash);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            for (StoredBlock block : blocks) {
+                if (numRecords % segmentRecords == 0 && numRecords / segmentRecords == segments.size())
+                    mapSegment(segments.size());
+                long position = recordPosition(numRecords);
+                BoundedOverheadBlockStore.Record.encode(recordBuffer(position), block);
+                numRecords++;
+                index.put(block.getHeader().getHash(), position);
+                filter.add(block.getHeader().getHash());
+            }
+            // The record count and covered lengths are only written once, after the last record is in place.
+            header.putInt(1 + 32, numRecords);
+            index.setCoveredLength(recordPosition(numRecords));
+            filter.setCoveredLength(recordPosition(numRecords));
+            setChainHead(chainHead);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        byte[] hash = chainHead.getHeader().getHash();
+        lock.writeLock().lock();
+        try {
+            // Bring the height index in line first, so if we crash before the new hash is written the index no
+            // longer ends at the old chain head and gets rebuilt on the next load.
+            heights.update(this, offsets, chainHead);
+            this.chainHead = new Sha256Hash(hash);
+            // Write out new hash to the first 32 bytes of the file past one (first byte is version number).
+            ByteBuffer buf = header.duplicate();
+            buf.position(1);
+            buf.put(hash);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            long position = heights.get(height);
+            if (position < 0)
+                return null;
+            return readRecord(position);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces all changes made so far to be written to the storage device. Without calling this, changes reach the
+     * disk whenever the operating system decides to write them back.
+     */
+    public void sync() {
+        // Forcing pages out changes nothing readers can see, so only writers need to be kept away.
+        lock.readLock().lock();
+        try {
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+            header.force();
+            filter.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Syncs the store and closes the data file and the files holding the indexes. The store cannot be used
+     * afterwards. The mappings are dropped so they can be released, the JVM unmaps them once they are collected.
+     */
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            if (file == null)
+                return;
+            sync();
+            index.force();
+            heights.force();
+            channel.force(false);
+            index.close();
+            filter.close();
+            heights.close();
+            file.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            file = null;
+            channel = null;
+            header = null;
+            segments.clear();
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -16,26 +16,46 @@
 
 package com.google.bitcoin.core;
 
-import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Keeps {@link StoredBlock}s in memory. Used primarily for unit testing.
+ * Keeps {@link StoredBlock}s in memory. Used primarily for unit testing.<p>
+ *
+ * Blocks are kept in the same fixed size binary form the disk stores use (see {@link BoundedOverheadBlockStore}),
+ * preceded by the block hash, in a direct buffer that is grown by doubling. They are found via an open addressing
+ * hash table of record numbers which lives in a direct buffer as well, so apart from the block being returned no
+ * heap is used per block and lookups don't go through Java serialization. Storing the blocks in serialized form also
+ * ensures we don't have assumptions that would make things harder for disk based implementations.
  */
 public class MemoryBlockStore implements BlockStore {
-    // We use a ByteBuffer to hold hashes here because the Java array equals()/hashcode() methods do not operate on
-    // the contents of the array but just inherit the default Object behavior. ByteBuffer provides the functionality
-    // needed to act as a key in a map.
-    //
-    // The StoredBlocks are also stored as serialized objects to ensure we don't have assumptions that would make
-    // things harder for disk based implementations.
-    private Map<ByteBuffer, byte[]> blockMap;
-    private StoredBlock chainHead;
+    // Hash, then the same layout as a BoundedOverheadBlockStore record.
+    private static final int RECORD_SIZE = 32 + BoundedOverheadBlockStore.Record.SIZE;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final NetworkParameters params;
+    // Records are appended in the order they are put.
+    private ByteBuffer records;
+    private int numRecords;
+    // Open addressing table of record number plus one, zero meaning an empty slot. The size is a power of two.
+    private ByteBuffer table;
+    private int tableSlots;
+    // Record numbers of the blocks on the best chain, indexed by height.
+    private ByteBuffer bestChain;
+    private int bestChainSize;
+    // Read without the lock, so callers can always see the chain head straight away.
+    private volatile StoredBlock chainHead;
+    // Lookups hold the read lock, put() and setChainHead() the write lock.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
     public MemoryBlockStore(NetworkParameters params) {
-        blockMap = new HashMap<ByteBuffer, byte[]>();
+        this.params = params;
+        records = ByteBuffer.allocateDirect(INITIAL_CAPACITY * RECORD_SIZE);
+        tableSlots = INITIAL_CAPACITY * 2;
+        table = ByteBuffer.allocateDirect(tableSlots * 4);
+        bestChain = ByteBuffer.allocateDirect(INITIAL_CAPACITY * 4);
         // Insert the genesis block.
         try {
             Block genesisHeader = params.genesisBlock.cloneAsHeader();
@@ -49,31 +69,40 @@ public class MemoryBlockStore implements BlockStore {
         }
     }
 
-    public synchronized void put(StoredBlock block) throws BlockStoreException {
+    public void put(StoredBlock block) throws BlockStoreException {
         byte[] hash = block.getHeader().getHash();
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        lock.writeLock().lock();
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(block);
-            oos.close();
-            blockMap.put(ByteBuffer.wrap(hash), bos.toByteArray());
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
+            int existing = find(hash);
+            int recordNumber;
+            if (existing >= 0) {
+                recordNumber = existing;
+            } else {
+                if (numRecords == records.capacity() / RECORD_SIZE)
+                    records = grow(records, records.capacity() * 2);
+                if ((numRecords + 1) * 10L > tableSlots * 6L)
+                    rehash(tableSlots * 2);
+                recordNumber = numRecords++;
+                insert(hash, recordNumber);
+            }
+            ByteBuffer buf = records.duplicate();
+            buf.position(recordNumber * RECORD_SIZE);
+            buf.put(hash);
+            BoundedOverheadBlockStore.Record.encode(buf, block);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized StoredBlock get(byte[] hash) throws BlockStoreException {
+    public StoredBlock get(byte[] hash) throws BlockStoreException {
+        lock.readLock().lock();
         try {
-            byte[] serializedBlock = blockMap.get(ByteBuffer.wrap(hash));
-            if (serializedBlock == null)
+            int recordNumber = find(hash);
+            if (recordNumber < 0)
                 return null;
-            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serializedBlock));
-            StoredBlock storedBlock = (StoredBlock) ois.readObject();
-            return storedBlock;
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
-        } catch (ClassNotFoundException e) {
-            throw new BlockStoreException(e);
+            return read(recordNumber);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
@@ -82,6 +111,122 @@ public class MemoryBlockStore implements BlockStore {
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        this.chainHead = chainHead;
+        lock.writeLock().lock();
+        try {
+            // Drop the heights above the new head, then walk back from it until we reach a block that is already in
+            // the right place. That is the point the new chain forks from the old one, if it does.
+            int height = chainHead.getHeight();
+            if (height >= bestChain.capacity() / 4)
+                bestChain = grow(bestChain, Math.max(bestChain.capacity() * 2, (height + 1) * 4));
+            for (int i = bestChainSize; i <= height; i++)
+                bestChain.putInt(i * 4, -1);
+            bestChainSize = height + 1;
+            StoredBlock cursor = chainHead;
+            while (cursor != null) {
+                int recordNumber = find(cursor.getHeader().getHash());
+                if (recordNumber < 0)
+                    throw new BlockStoreException("Chain head " + chainHead + " does not connect to a stored block");
+                if (bestChain.getInt(cursor.getHeight() * 4) == recordNumber)
+                    break;
+                bestChain.putInt(cursor.getHeight() * 4, recordNumber);
+                cursor = cursor.getPrev(this);
+            }
+            this.chainHead = chainHead;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        // Nothing to commit, but readers shouldn't see the blocks without the new head.
+        lock.writeLock().lock();
+        try {
+            for (StoredBlock block : blocks)
+                put(block);
+            setChainHead(chainHead);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            if (height < 0 || height >= bestChainSize)
+                return null;
+            return read(bestChain.getInt(height * 4));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private StoredBlock read(int recordNumber) throws BlockStoreException {
+        ByteBuffer buf = records.duplicate();
+        buf.position(recordNumber * RECORD_SIZE + 32);
+        try {
+            return BoundedOverheadBlockStore.Record.decode(params, buf);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);  // Cannot happen, we wrote the record ourselves.
+        }
+    }
+
+    /**
+     * Returns the slot a hash starts probing from. Block hashes are big endian with the leading bytes being zero
+     * due to the proof of work, so the randomness is taken from the end of the array.
+     */
+    private int startSlot(byte[] hash) {
+        int h = ((hash[28] & 0xFF) << 24) | ((hash[29] & 0xFF) << 16) | ((hash[30] & 0xFF) << 8) | (hash[31] & 0xFF);
+        return h & (tableSlots - 1);
+    }
+
+    // Returns the record number holding the given hash, or -1 if it is not stored.
+    private int find(byte[] hash) {
+        int slot = startSlot(hash);
+        while (true) {
+            int entry = table.getInt(slot * 4);
+            if (entry == 0)
+                return -1;
+            if (hashEquals(entry - 1, hash))
+                return entry - 1;
+            slot = (slot + 1) & (tableSlots - 1);
+        }
+    }
+
+    private boolean hashEquals(int recordNumber, byte[] hash) {
+        int base = recordNumber * RECORD_SIZE;
+        // Compare from the end, where hashes differ.
+        for (int i = 31; i >= 0; i--) {
+            if (records.get(base + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void insert(byte[] hash, int recordNumber) {
+        int slot = startSlot(hash);
+        while (table.getInt(slot * 4) != 0)
+            slot = (slot + 1) & (tableSlots - 1);
+        table.putInt(slot * 4, recordNumber + 1);
+    }
+
+    private void rehash(int newSlots) {
+        tableSlots = newSlots;
+        table = ByteBuffer.allocateDirect(newSlots * 4);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < numRecords; i++) {
+            ByteBuffer buf = records.duplicate();
+            buf.position(i * RECORD_SIZE);
+            buf.get(hash);
+            insert(hash, i);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer old, int newCapacity) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(newCapacity);
+        ByteBuffer src = old.duplicate();
+        src.clear();
+        bigger.put(src);
+        bigger.clear();
+        return bigger;
     }
 }
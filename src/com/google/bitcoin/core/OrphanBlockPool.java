@@ -0,0 +1,161 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds blocks that can't be connected to the chain yet because we don't have their parent, typically because they
+ * were solved while we were still downloading the chain.<p>
+ *
+ * Orphans are indexed by the hash of their parent, so when a block is connected its waiting children can be found
+ * with one lookup rather than by checking every orphan against the block store. The pool is bounded both by the
+ * total size of the blocks it holds and by their age: adding a block first drops any orphans older than the maximum
+ * age, then the oldest ones until the pool fits its memory budget again.<p>
+ *
+ * This class is not thread safe, {@link BlockChain} only uses it while holding its own lock.
+ */
+class OrphanBlockPool {
+    private static final Logger log = LoggerFactory.getLogger(OrphanBlockPool.class);
+
+    /** Default memory budget, enough for a few hundred blocks of 2011 size. */
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    /** Default time after which an orphan is given up on. */
+    static final long DEFAULT_MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+    private static class Entry {
+        final Block block;
+        final Sha256Hash hash;
+        final Sha256Hash prevHash;
+        final long sequence;
+        final long addedTime;
+        final int size;
+
+        Entry(Block block, long sequence, long addedTime, int size) {
+            this.block = block;
+            this.hash = new Sha256Hash(block.getHash());
+            this.prevHash = new Sha256Hash(block.getPrevBlockHash());
+            this.sequence = sequence;
+            this.addedTime = addedTime;
+            this.size = size;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final Map<Sha256Hash, Entry> byHash = new HashMap<Sha256Hash, Entry>();
+    private final Map<Sha256Hash, List<Entry>> byPrevHash = new HashMap<Sha256Hash, List<Entry>>();
+    // Arrival order, so the oldest and newest orphans can be found without a scan.
+    private final TreeMap<Long, Entry> bySequence = new TreeMap<Long, Entry>();
+    private long nextSequence;
+    private long totalBytes;
+
+    OrphanBlockPool() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    OrphanBlockPool(long maxBytes, long maxAgeMillis) {
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Adds an orphan that arrived at the given time, in milliseconds. Adding a block that is already in the pool
+     * does nothing.
+     */
+    void add(Block block, long now) {
+        Sha256Hash hash = new Sha256Hash(block.getHash());
+        if (byHash.containsKey(hash))
+            return;
+        // Blocks that came off the network know their size, others have to be serialized to find out.
+        int size = block.getMessageSize();
+        if (size <= 0)
+            size = block.bitcoinSerialize().length;
+        Entry entry = new Entry(block, nextSequence++, now, size);
+        byHash.put(hash, entry);
+        List<Entry> siblings = byPrevHash.get(entry.prevHash);
+        if (siblings == null) {
+            siblings = new ArrayList<Entry>(1);
+            byPrevHash.put(entry.prevHash, siblings);
+        }
+        siblings.add(entry);
+        bySequence.put(entry.sequence, entry);
+        totalBytes += size;
+        evict(now);
+    }
+
+    private void evict(long now) {
+        int evicted = 0;
+        while (!bySequence.isEmpty()) {
+            Entry oldest = bySequence.firstEntry().getValue();
+            if (now - oldest.addedTime <= maxAgeMillis && totalBytes <= maxBytes)
+                break;
+            remove(oldest);
+            evicted++;
+        }
+        if (evicted > 0)
+            log.info("Dropped {} orphan blocks, {} left", evicted, byHash.size());
+    }
+
+    private void remove(Entry entry) {
+        byHash.remove(entry.hash);
+        bySequence.remove(entry.sequence);
+        List<Entry> siblings = byPrevHash.get(entry.prevHash);
+        siblings.remove(entry);
+        if (siblings.isEmpty())
+            byPrevHash.remove(entry.prevHash);
+        totalBytes -= entry.size;
+    }
+
+    /**
+     * Removes and returns the orphans whose parent is the block with the given hash, in the order they arrived.
+     * Returns an empty list if there are none.
+     */
+    List<Block> removeChildren(byte[] parentHash) {
+        List<Entry> children = byPrevHash.get(new Sha256Hash(parentHash));
+        if (children == null)
+            return Collections.emptyList();
+        List<Block> blocks = new ArrayList<Block>(children.size());
+        for (Entry child : new ArrayList<Entry>(children)) {
+            blocks.add(child.block);
+            remove(child);
+        }
+        return blocks;
+    }
+
+    /** Returns true if the block with the given hash is in the pool. */
+    boolean contains(byte[] hash) {
+        return byHash.containsKey(new Sha256Hash(hash));
+    }
+
+    /** Returns the orphan that arrived most recently, or null if the pool is empty. */
+    Block getNewest() {
+        return bySequence.isEmpty() ? null : bySequence.lastEntry().getValue().block;
+    }
+
+    int size() {
+        return byHash.size();
+    }
+
+    /** Returns the total size of the orphans held, in bytes. */
+    long getTotalBytes() {
+        return totalBytes;
+    }
+}
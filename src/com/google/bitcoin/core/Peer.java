@@ -116,7 +116,8 @@ public class Peer {
                 for (int i = 0; i < pendingGetBlockFutures.size(); i++) {
                     GetDataFuture<Block> f = pendingGetBlockFutures.get(i);
                     if (Arrays.equals(f.getItem().hash, m.getHash())) {
-                        // Yes, it was. So pass it through the future.
+                        // Yes, it was. So pass it through the future, keeping a copy so we needn't ask again.
+                        archive(m);
                         f.setResult(m);
                         // Blocks explicitly requested don't get sent to the block chain.
                         pendingGetBlockFutures.remove(i);
@@ -125,7 +126,7 @@ public class Peer {
                 }
             }
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
-            // This call will synchronize on blockChain.
+            // This call verifies the block and then synchronizes on blockChain to connect it.
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 if (chainCompletionLatch != null) {
@@ -154,6 +155,22 @@ public class Peer {
         }
     }
 
+    // Adds a block that won't go through the block chain to the archive, if there is one.
+    private void archive(Block block) {
+        BlockArchive archive = blockChain.getBlockArchive();
+        if (archive == null)
+            return;
+        try {
+            // Explicitly requested blocks bypass the chain, so nothing has checked this one yet.
+            block.verify();
+            archive.add(block);
+        } catch (VerificationException e) {
+            log.warn("Not archiving block that fails verification", e);
+        } catch (BlockStoreException e) {
+            log.error("Failed to archive block", e);
+        }
+    }
+
     private void processInv(InventoryMessage inv) throws IOException {
         assert Thread.currentThread() == thread;
         // The peer told us about some blocks or transactions they have. For now we only care about blocks.
@@ -188,16 +205,32 @@ public class Peer {
      * Asks the connected peer for the block of the given hash, and returns a Future representing the answer.
      * If you want the block right away and don't mind waiting for it, just call .get() on the result. Your thread
      * will block until the peer answers. You can also use the Future object to wait with a timeout, or just check
-     * whether it's done later.
+     * whether it's done later.<p>
+     *
+     * If the block chain has a {@link BlockArchive} holding the block, it is read from there and the returned Future
+     * is already done.
      *
      * @param blockHash Hash of the block you wareare requesting.
      * @throws IOException
      */
     public Future<Block> getBlock(byte[] blockHash) throws IOException {
-        InventoryMessage getdata = new InventoryMessage(params);
         InventoryItem inventoryItem = new InventoryItem(InventoryItem.Type.Block, blockHash);
-        getdata.items.add(inventoryItem);
         GetDataFuture<Block> future = new GetDataFuture<Block>(inventoryItem);
+        BlockArchive archive = blockChain.getBlockArchive();
+        if (archive != null) {
+            try {
+                Block block = archive.getBlock(blockHash);
+                if (block != null) {
+                    future.complete(block);
+                    return future;
+                }
+            } catch (BlockStoreException e) {
+                // Fall back to asking the peer.
+                log.error("Failed to read block from archive", e);
+            }
+        }
+        InventoryMessage getdata = new InventoryMessage(params);
+        getdata.items.add(inventoryItem);
         // Add to the list of things we're waiting for. It's important this come before the network send to avoid
         // race conditions.
         synchronized (pendingGetBlockFutures) {
@@ -254,6 +287,11 @@ public class Peer {
         /** Called by the Peer when the result has arrived. Completes the task. */
         void setResult(T result) {
             assert Thread.currentThread() == thread;  // Called from peer thread.
+            complete(result);
+        }
+
+        /** Completes the task with a result that didn't come from the network. */
+        void complete(T result) {
             this.result = result;
             // Now release the thread that is waiting. We don't need to synchronize here as the latch establishes
             // a memory barrier.
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Works out which transactions of a block each watched {@link Wallet} needs to see, spreading large blocks over
+ * several threads. A transaction is relevant to a wallet if one of its outputs pays a key in the wallet or, unless it
+ * is a coinbase, one of its inputs is signed by one. Parsing the scripts dominates the cost of connecting a block,
+ * and it only depends on the transaction, so it can run in any order. {@link BlockChain} then hands the relevant
+ * transactions to the wallets one at a time in block order.<p>
+ *
+ * Keys are matched with a single index from public key hash and public key to the wallets holding them, so each
+ * script is looked up once however many wallets are watched. A wallet's keys are only looked at again once it reports
+ * that its keychain changed, see {@link Wallet#keychainChanged()}, and then the keys it has gained are added to the
+ * index. Keychains normally only grow, but they can be edited, so if a key the index holds has been removed or
+ * replaced the whole index is rebuilt.<p>
+ *
+ * This class is not thread safe, {@link BlockChain} only uses it while holding its own lock.
+ */
+class RelevanceScanner {
+    private static final Logger log = LoggerFactory.getLogger(RelevanceScanner.class);
+
+    // Transactions per task. Blocks with fewer than two batches are scanned on the calling thread.
+    static final int BATCH_SIZE = 64;
+
+    // Wraps a byte array so it can be used in a map.
+    private static class Bytes {
+        final byte[] bytes;
+        final int hashCode;
+
+        Bytes(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Bytes && Arrays.equals(bytes, ((Bytes) other).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class Watched {
+        final Wallet wallet;
+        // Position in the watched list, which is the order wallets are told about a transaction.
+        int position;
+        // The wallet's keys that are in the index, in keychain order, and the wallet's count of keychain changes
+        // when they were indexed.
+        final List<ECKey> indexedKeys = new ArrayList<ECKey>();
+        int indexedChanges = -1;
+
+        Watched(Wallet wallet, int position) {
+            this.wallet = wallet;
+            this.position = position;
+        }
+    }
+
+    // With more than one, large blocks are spread over the worker threads shared by every chain (see SharedWorkers),
+    // so scanners don't own any threads themselves.
+    private final int threads;
+    private final List<Watched> watched = new ArrayList<Watched>();
+    private final Map<Bytes, List<Watched>> byPubKeyHash = new HashMap<Bytes, List<Watched>>();
+    private final Map<Bytes, List<Watched>> byPubKey = new HashMap<Bytes, List<Watched>>();
+
+    RelevanceScanner(int threads) {
+        this.threads = threads;
+    }
+
+    /** Starts matching transactions against the given wallet's keys. Adding a wallet twice does nothing. */
+    void addWallet(Wallet wallet) {
+        for (Watched w : watched) {
+            if (w.wallet == wallet)
+                return;
+        }
+        watched.add(new Watched(wallet, watched.size()));
+    }
+
+    /** Stops matching transactions against the given wallet's keys. */
+    void removeWallet(Wallet wallet) {
+        for (int i = 0; i < watched.size(); i++) {
+            if (watched.get(i).wallet != wallet)
+                continue;
+            watched.remove(i);
+            for (int j = 0; j < watched.size(); j++)
+                watched.get(j).position = j;
+            // Rare enough that rebuilding the index is simplest.
+            clearIndex();
+            return;
+        }
+    }
+
+    /** Returns the watched wallets, in the order they were added. */
+    List<Wallet> getWallets() {
+        List<Wallet> wallets = new ArrayList<Wallet>(watched.size());
+        for (Watched w : watched)
+            wallets.add(w.wallet);
+        return wallets;
+    }
+
+    /**
+     * Returns, for each of the given transactions, the wallets that need to see it in the order they were added, or
+     * null if none do.
+     */
+    Wallet[][] scan(final List<Transaction> transactions) throws InterruptedException {
+        updateIndex();
+        final Wallet[][] relevant = new Wallet[transactions.size()][];
+        if (watched.isEmpty())
+            return relevant;
+        int batches = (transactions.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        if (threads <= 1 || batches <= 1) {
+            scanRange(transactions, relevant, 0, transactions.size());
+            return relevant;
+        }
+        ExecutorService executor = SharedWorkers.get();
+        List<Future<?>> futures = new ArrayList<Future<?>>(batches);
+        for (int start = 0; start < transactions.size(); start += BATCH_SIZE) {
+            final int from = start;
+            final int to = Math.min(transactions.size(), start + BATCH_SIZE);
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    scanRange(transactions, relevant, from, to);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // scanRange catches the exceptions parsing throws, so this is a bug.
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return relevant;
+    }
+
+    private void clearIndex() {
+        byPubKeyHash.clear();
+        byPubKey.clear();
+        for (Watched w : watched) {
+            w.indexedKeys.clear();
+            w.indexedChanges = -1;
+        }
+    }
+
+    // Adds any keys the watched wallets gained since the last scan to the index, or rebuilds it if a wallet lost one.
+    // Wallets whose keychain hasn't changed are skipped without taking their locks.
+    private void updateIndex() {
+        for (Watched w : watched) {
+            if (w.wallet.getKeychainChanges() == w.indexedChanges)
+                continue;
+            synchronized (w.wallet) {
+                if (!startsWith(w.wallet.keychain, w.indexedKeys)) {
+                    log.info("A wallet's keychain was changed, rebuilding the key index");
+                    clearIndex();
+                    break;
+                }
+            }
+        }
+        for (Watched w : watched) {
+            if (w.wallet.getKeychainChanges() == w.indexedChanges)
+                continue;
+            synchronized (w.wallet) {
+                List<ECKey> keychain = w.wallet.keychain;
+                for (int i = w.indexedKeys.size(); i < keychain.size(); i++) {
+                    ECKey key = keychain.get(i);
+                    index(byPubKeyHash, key.getPubKeyHash(), w);
+                    index(byPubKey, key.getPubKey(), w);
+                    w.indexedKeys.add(key);
+                }
+                w.indexedChanges = w.wallet.getKeychainChanges();
+            }
+        }
+    }
+
+    // Returns true if the keychain still holds the given keys, as the same objects, at the start.
+    private static boolean startsWith(List<ECKey> keychain, List<ECKey> keys) {
+        if (keychain.size() < keys.size())
+            return false;
+        for (int i = 0; i < keys.size(); i++) {
+            if (keychain.get(i) != keys.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static void index(Map<Bytes, List<Watched>> map, byte[] bytes, Watched w) {
+        Bytes key = new Bytes(bytes);
+        List<Watched> wallets = map.get(key);
+        if (wallets == null) {
+            wallets = new ArrayList<Watched>(1);
+            map.put(key, wallets);
+        }
+        if (!wallets.contains(w))
+            wallets.add(w);
+    }
+
+    private void scanRange(List<Transaction> transactions, Wallet[][] relevant, int from, int to) {
+        for (int i = from; i < to; i++) {
+            try {
+                relevant[i] = findWallets(transactions.get(i));
+            } catch (ScriptException e) {
+                // We don't want scripts we don't understand to break the block chain,
+                // so just note that this tx was not scanned here and continue.
+                log.warn("Failed to parse a script: " + e.toString());
+            }
+        }
+    }
+
+    private Wallet[] findWallets(Transaction tx) throws ScriptException {
+        List<Watched> found = null;
+        for (TransactionOutput output : tx.outputs) {
+            // TODO: Handle more types of outputs, not just regular to address outputs.
+            if (output.getScriptPubKey().isSentToIP())
+                return null;
+            try {
+                found = addMatches(found, byPubKeyHash.get(new Bytes(output.getScriptPubKey().getPubKeyHash())));
+            } catch (ScriptException e) {
+                log.error("Could not parse tx output script: {}", e.toString());
+            }
+        }
+        // Coinbase transactions don't have anything useful in their inputs (as they create coins out of thin air).
+        if (!tx.isCoinBase()) {
+            for (TransactionInput input : tx.inputs)
+                found = addMatches(found, byPubKey.get(new Bytes(input.getScriptSig().getPubKey())));
+        }
+        if (found == null)
+            return null;
+        Collections.sort(found, BY_POSITION);
+        Wallet[] wallets = new Wallet[found.size()];
+        for (int i = 0; i < wallets.length; i++)
+            wallets[i] = found.get(i).wallet;
+        return wallets;
+    }
+
+    private static List<Watched> addMatches(List<Watched> found, List<Watched> matches) {
+        if (matches == null)
+            return found;
+        if (found == null)
+            found = new ArrayList<Watched>(matches.size());
+        for (Watched w : matches) {
+            if (!found.contains(w))
+                found.add(w);
+        }
+        return found;
+    }
+
+    private static final Comparator<Watched> BY_POSITION = new Comparator<Watched>() {
+        public int compare(Watched a, Watched b) {
+            return a.position - b.position;
+        }
+    };
+}
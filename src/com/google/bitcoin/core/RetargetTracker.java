@@ -0,0 +1,68 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the block that starts the current difficulty interval of the best chain, so the block one interval back
+ * is at hand when the next retarget has to be checked rather than being looked up in the store.<p>
+ *
+ * {@link BlockChain} tells the tracker about every new chain head. When the head simply extends the previous one the
+ * window start only changes at interval boundaries, where the new head becomes the start. Any other change of head is
+ * a re-org, and the window start is looked up again on the new chain, which takes a logarithmic number of store
+ * lookups thanks to skip pointers.<p>
+ *
+ * This class is not thread safe, {@link BlockChain} only uses it while holding its own lock.
+ */
+class RetargetTracker {
+    private final int interval;
+    private final BlockStore store;
+    private StoredBlock head;
+    private StoredBlock windowStart;
+
+    RetargetTracker(NetworkParameters params, BlockStore store) {
+        this.interval = params.interval;
+        this.store = store;
+    }
+
+    /** Moves the tracker to a new head of the best chain. */
+    void setChainHead(StoredBlock newHead) throws BlockStoreException {
+        int height = newHead.getHeight();
+        int startHeight = height - height % interval;
+        if (startHeight == height) {
+            windowStart = newHead;
+        } else if (head == null || !extendsHead(newHead)) {
+            windowStart = newHead.getAncestor(store, startHeight);
+        }
+        head = newHead;
+    }
+
+    private boolean extendsHead(StoredBlock block) {
+        return block.getHeight() == head.getHeight() + 1 &&
+                Arrays.equals(block.getHeader().getPrevBlockHash(), head.getHeader().getHash());
+    }
+
+    /**
+     * Returns the first block of the difficulty interval that the given block is part of, if the given block is the
+     * chain head the tracker was last moved to. Returns null for any other block, whose window start has to be
+     * looked up.
+     */
+    StoredBlock getWindowStart(StoredBlock block) {
+        return block.equals(head) ? windowStart : null;
+    }
+}
@@ -134,8 +134,12 @@ public class Script {
         }
     }
     
-    private int readByte() {
-        return 0xFF & program[cursor++];
+    private int readByte() throws ScriptException {
+        try {
+            return 0xFF & program[cursor++];
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ScriptException("Failed read of 1 byte", e);
+        }
     }
     
     /**
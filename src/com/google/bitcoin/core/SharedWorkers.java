@@ -0,0 +1,52 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A pool of daemon threads, one per processor, shared by every {@link BlockChain} in the process for work that can be
+ * spread over several cores, such as verifying a run of blocks. Tasks must not wait for other tasks on the pool, only
+ * threads outside it may wait for results.
+ */
+class SharedWorkers {
+    private static ExecutorService executor;
+
+    private SharedWorkers() {
+    }
+
+    /** Returns the number of threads in the pool. */
+    static int getThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Returns the pool, creating it on first use. */
+    static synchronized ExecutorService get() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(getThreads(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Block worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
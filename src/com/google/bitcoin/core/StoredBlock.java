@@ -16,6 +16,11 @@
 
 package com.google.bitcoin.core;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.math.BigInteger;
 
@@ -31,14 +36,33 @@ import java.math.BigInteger;
 public class StoredBlock implements Serializable {
     private static final long serialVersionUID = -6097565241243701771L;
 
+    // The serialized form predates ChainWork and keeps chainWork as a BigInteger, so wallets saved by older versions
+    // (which serialize the blocks their transactions appear in) can still be loaded and vice versa.
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("header", Block.class),
+        new ObjectStreamField("chainWork", BigInteger.class),
+        new ObjectStreamField("height", Integer.TYPE),
+        new ObjectStreamField("skipHash", byte[].class)
+    };
+
     private Block header;
-    private BigInteger chainWork;
+    private ChainWork chainWork;
     private int height;
+    // Hash of the ancestor at getSkipHeight(height), or null if not known.
+    private byte[] skipHash;
+
+    public StoredBlock(Block header, ChainWork chainWork, int height) {
+        this(header, chainWork, height, null);
+    }
 
-    public StoredBlock(Block header, BigInteger chainWork, int height) {
+    /**
+     * Creates a StoredBlock that also knows the hash of its skip ancestor, see {@link #getSkipHash()}.
+     */
+    public StoredBlock(Block header, ChainWork chainWork, int height, byte[] skipHash) {
         this.header = header;
         this.chainWork = chainWork;
         this.height = height;
+        this.skipHash = skipHash;
     }
 
 
@@ -54,7 +78,7 @@ public class StoredBlock implements Serializable {
      * many tries are needed to solve a block. If the target is set to cover 10% of the total hash value space,
      * then the work represented by a block is 10.
      */
-    public BigInteger getChainWork() {
+    public ChainWork getChainWork() {
         return chainWork;
     }
 
@@ -65,6 +89,75 @@ public class StoredBlock implements Serializable {
         return height;
     }
 
+    /**
+     * The hash of this blocks ancestor at height {@link #getSkipHeight(int)}, or null if it was not worked out when
+     * the block was stored. Following skip pointers rather than prev pointers lets
+     * {@link #getAncestor(BlockStore, int)} reach any ancestor in O(log n) lookups.
+     */
+    public byte[] getSkipHash() {
+        return skipHash;
+    }
+
+    /**
+     * Returns the height the skip pointer of a block at the given height points to. This is the same scheme the
+     * reference client uses: the height with its lowest set bits cleared, adjusted for odd heights so that walking
+     * back from any block to any ancestor takes a logarithmic number of hops.
+     */
+    public static int getSkipHeight(int height) {
+        if (height < 2)
+            return 0;
+        return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+    }
+
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    /**
+     * Returns the ancestor of this block at the given height, this block itself if the height is its own, or null if
+     * the height is above this block or the chain can't be followed that far back in the store.
+     */
+    public StoredBlock getAncestor(BlockStore store, int height) throws BlockStoreException {
+        if (height > this.height || height < 0)
+            return null;
+        StoredBlock cursor = this;
+        while (cursor != null && cursor.height > height) {
+            int skipHeight = getSkipHeight(cursor.height);
+            int prevSkipHeight = getSkipHeight(cursor.height - 1);
+            // Take the skip pointer when it doesn't overshoot, unless the previous block's skip pointer gets closer
+            // to the target for the cost of one extra hop.
+            if (cursor.skipHash != null && (skipHeight == height || (skipHeight > height &&
+                    !(prevSkipHeight < skipHeight - 2 && prevSkipHeight >= height)))) {
+                cursor = store.get(cursor.skipHash);
+            } else {
+                cursor = cursor.getPrev(store);
+            }
+        }
+        return cursor;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("header", header);
+        fields.put("chainWork", chainWork.toBigInteger());
+        fields.put("height", height);
+        fields.put("skipHash", skipHash);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        header = (Block) fields.get("header", null);
+        BigInteger work = (BigInteger) fields.get("chainWork", null);
+        try {
+            chainWork = ChainWork.valueOf(work);
+        } catch (RuntimeException e) {
+            throw new InvalidObjectException("Bad chain work in serialized block: " + work);
+        }
+        height = fields.get("height", 0);
+        skipHash = (byte[]) fields.get("skipHash", null);
+    }
+
     /** Returns true if this objects chainWork is higher than the others. */
     public boolean moreWorkThan(StoredBlock other) {
         return chainWork.compareTo(other.chainWork) > 0;
@@ -85,16 +178,43 @@ public class StoredBlock implements Serializable {
 
 
     /**
-     * Creates a new StoredBlock, calculating the additional fields by adding to the values in this block.
+     * Creates a new StoredBlock, calculating the additional fields by adding to the values in this block. The new
+     * block has no skip pointer, use {@link #build(Block, BlockStore)} to get one.
      */
     public StoredBlock build(Block block) throws VerificationException {
         // Stored blocks track total work done in this chain, because the canonical chain is the one that represents
         // the largest amount of work done not the tallest.
-        BigInteger chainWork = this.chainWork.add(block.getWork());
+        ChainWork chainWork = this.chainWork.add(block.getWork());
         int height = this.height + 1;
         return new StoredBlock(block.cloneAsHeader(), chainWork, height);
     }
 
+    /**
+     * Creates a new StoredBlock as {@link #build(Block)} does, also finding its skip ancestor by looking back from
+     * this block in the given store.
+     */
+    public StoredBlock build(Block block, BlockStore store) throws VerificationException, BlockStoreException {
+        StoredBlock built = build(block);
+        StoredBlock skip = getAncestor(store, getSkipHeight(built.height));
+        if (skip != null)
+            built.skipHash = skip.getHeader().getHash();
+        return built;
+    }
+
+    /**
+     * Creates a new StoredBlock as {@link #build(Block)} does, with the given block as its skip ancestor. The skip
+     * block must be the ancestor of the new block at {@link #getSkipHeight(int)}, callers that can look it up by height
+     * use this to avoid walking back through the store.
+     */
+    public StoredBlock build(Block block, StoredBlock skip) throws VerificationException {
+        StoredBlock built = build(block);
+        if (skip != null) {
+            assert skip.height == getSkipHeight(built.height) : "Wrong skip ancestor";
+            built.skipHash = skip.getHeader().getHash();
+        }
+        return built;
+    }
+
     /**
      * Given a block store, looks up the previous block in this chain. Convenience method for doing
      * <tt>store.get(this.getHeader().getPrevBlockHash())</tt>.
@@ -123,13 +123,33 @@ public class Wallet implements Serializable {
      */
     private Map<Sha256Hash, Transaction> dead;
 
-    /** A list of public/private EC keys owned by this user. */
+    /**
+     * A list of public/private EC keys owned by this user. Add keys with {@link #addKey(ECKey)}. If you edit the list
+     * directly call {@link #keychainChanged()} afterwards, so block chains watching the wallet see the new keys.
+     */
     public final ArrayList<ECKey> keychain;
 
+    // Counts changes to the keychain, so indexes of its keys know when to look at it again.
+    private transient volatile int keychainChanges;
+
     private final NetworkParameters params;
 
     transient private ArrayList<WalletEventListener> eventListeners;
 
+    /**
+     * The transactions recorded against each block they appeared in, in block order. This is the reverse of
+     * {@link Transaction#getAppearsIn()} and acts as the undo record for re-orgs: a block can be disconnected or
+     * connected again by looking at its own transactions, without checking every transaction in the wallet. It holds
+     * one entry per recorded appearance, so it grows with the wallet rather than the chain, and is rebuilt from the
+     * transactions when the wallet is loaded.
+     */
+    transient private Map<StoredBlock, List<Transaction>> blockTransactions;
+
+    // Transactions taken off the best chain by the re-org in progress that no block of the new chain has put back yet,
+    // and whether the re-org has changed anything so far. See disconnectBlock().
+    transient private Map<Sha256Hash, Transaction> reorgDisconnected;
+    transient private boolean reorgAffected;
+
     /**
      * Creates a new, empty wallet with no keys and no transactions. If you want to restore a wallet from disk instead,
      * see loadFromFile.
@@ -143,6 +163,8 @@ public class Wallet implements Serializable {
         pending = new HashMap<Sha256Hash, Transaction>();
         dead = new HashMap<Sha256Hash, Transaction>();
         eventListeners = new ArrayList<WalletEventListener>();
+        blockTransactions = new HashMap<StoredBlock, List<Transaction>>();
+        reorgDisconnected = new LinkedHashMap<Sha256Hash, Transaction>();
     }
 
     /**
@@ -187,6 +209,43 @@ public class Wallet implements Serializable {
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         eventListeners = new ArrayList<WalletEventListener>();
+        blockTransactions = new HashMap<StoredBlock, List<Transaction>>();
+        reorgDisconnected = new LinkedHashMap<Sha256Hash, Transaction>();
+        Map<Sha256Hash, Transaction> all = new HashMap<Sha256Hash, Transaction>();
+        all.putAll(unspent);
+        all.putAll(spent);
+        all.putAll(inactive);
+        all.putAll(pending);
+        all.putAll(dead);
+        for (Transaction tx : all.values()) {
+            Set<StoredBlock> appearsIn = tx.getAppearsIn();
+            if (appearsIn == null) continue;
+            for (StoredBlock block : appearsIn)
+                indexBlockAppearance(tx, block);
+        }
+    }
+
+    /**
+     * Marks the transaction as appearing in the given block and records it against that block so a later re-org can
+     * find it.
+     */
+    private void addBlockAppearance(Transaction tx, StoredBlock block) {
+        Set<StoredBlock> appearsIn = tx.getAppearsIn();
+        if (appearsIn != null && appearsIn.contains(block))
+            return;
+        tx.addBlockAppearance(block);
+        indexBlockAppearance(tx, block);
+    }
+
+    private void indexBlockAppearance(Transaction tx, StoredBlock block) {
+        // Unit tests receive transactions without a block.
+        if (block == null) return;
+        List<Transaction> txns = blockTransactions.get(block);
+        if (txns == null) {
+            txns = new ArrayList<Transaction>(1);
+            blockTransactions.put(block, txns);
+        }
+        txns.add(tx);
     }
 
     /**
@@ -239,7 +298,7 @@ public class Wallet implements Serializable {
             // accepted by the network.
             //
             // Mark the tx as appearing in this block so we can find it later after a re-org.
-            wtx.addBlockAppearance(block);
+            addBlockAppearance(wtx, block);
             if (bestChain) {
                 if (valueSentToMe.equals(BigInteger.ZERO)) {
                     // There were no change transactions so this tx is fully spent.
@@ -271,7 +330,7 @@ public class Wallet implements Serializable {
         } else {
             if (!reorg) {
                 // Mark the tx as appearing in this block so we can find it later after a re-org.
-                tx.addBlockAppearance(block);
+                addBlockAppearance(tx, block);
             }
             // This TX didn't originate with us. It could be sending us coins and also spending our own coins if keys
             // are being shared between different wallets.
@@ -376,12 +435,21 @@ public class Wallet implements Serializable {
      *
      * Threading: Event listener methods are dispatched on library provided threads and the both the wallet and the
      * listener objects are locked during dispatch, so your listeners do not have to be thread safe. However they
-     * should not block as the Peer will be unresponsive to network traffic whilst your listener is running.
+     * should not block as the Peer will be unresponsive to network traffic whilst your listener is running. Use an
+     * {@link EventBus} to have slow listeners called on threads of their own.
      */
     public synchronized void addEventListener(WalletEventListener listener) {
         eventListeners.add(listener);
     }
 
+    /**
+     * Removes a listener added by {@link #addEventListener(WalletEventListener)}. Returns false if it was not
+     * registered.
+     */
+    public synchronized boolean removeEventListener(WalletEventListener listener) {
+        return eventListeners.remove(listener);
+    }
+
     /**
      * Call this when we have successfully transmitted the send tx to the network, to update the wallet.
      */
@@ -508,6 +576,20 @@ public class Wallet implements Serializable {
     public synchronized void addKey(ECKey key) {
         assert !keychain.contains(key);
         keychain.add(key);
+        keychainChanges++;
+    }
+
+    /**
+     * Tells the wallet that {@link #keychain} was edited directly rather than through {@link #addKey(ECKey)}. Block
+     * chains only look at the keys of a wallet again after one of the two.
+     */
+    public synchronized void keychainChanged() {
+        keychainChanges++;
+    }
+
+    /** Returns a number that changes whenever the keychain does. Doesn't need the wallet lock. */
+    int getKeychainChanges() {
+        return keychainChanges;
     }
 
     /**
@@ -627,132 +709,85 @@ public class Wallet implements Serializable {
     }
 
     /**
-     * Called by the {@link BlockChain} when the best chain (representing total work done) has changed. In this case,
-     * we need to go through our transactions and find out if any have become invalid. It's possible for our balance
-     * to go down in this case: money we thought we had can suddenly vanish if the rest of the network agrees it
-     * should be so.<p>
+     * Called by the {@link BlockChain} when the best chain (representing total work done) has changed, once for each
+     * block of the old chain that is no longer part of it, from the top down to the split. In this case we need to
+     * take the transactions of the block back out of the spent and unspent pools: it's possible for our balance to go
+     * down, as money we thought we had can suddenly vanish if the rest of the network agrees it should be so.<p>
      *
-     * The oldBlocks/newBlocks lists are ordered height-wise from top first to bottom last.
+     * A re-org is made of calls to this method, then to {@link #connectBlock(StoredBlock)} for each block of the new
+     * chain from the bottom up, then to {@link #endReorganize()}. The wallet is only locked for one block at a time, so
+     * other threads may see the wallet part way through a re-org.
      */
-    synchronized void reorganize(List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
+    synchronized void disconnectBlock(StoredBlock block) {
         // This runs on any peer thread with the block chain synchronized.
         //
         // The reorganize functionality of the wallet is tested in ChainSplitTests.
-        //
-        // For each transaction we track which blocks they appeared in. Once a re-org takes place we have to find all
-        // transactions in the old branch, all transactions in the new branch and find the difference of those sets.
-        //
-        // receive() has been called on the block that is triggering the re-org before this is called.
-
-        log.info("  Old part of chain (top to bottom):");
-        for (StoredBlock b : oldBlocks) log.info("    {}", b.getHeader().getHashAsString());
-        log.info("  New part of chain (top to bottom):");
-        for (StoredBlock b : newBlocks) log.info("    {}", b.getHeader().getHashAsString());
-
-        // Transactions that appear in the old chain segment.
-        Map<Sha256Hash, Transaction> oldChainTransactions = new HashMap<Sha256Hash, Transaction>();
-        // Transactions that appear in the old chain segment and NOT the new chain segment.
-        Map<Sha256Hash, Transaction> onlyOldChainTransactions = new HashMap<Sha256Hash, Transaction>();
-        // Transactions that appear in the new chain segment.
-        Map<Sha256Hash, Transaction> newChainTransactions = new HashMap<Sha256Hash, Transaction>();
-        // Transactions that don't appear in either the new or the old section, ie, the shared trunk.
-        Map<Sha256Hash, Transaction> commonChainTransactions = new HashMap<Sha256Hash, Transaction>();
-
-        Map<Sha256Hash, Transaction> all = new HashMap<Sha256Hash, Transaction>();
-        all.putAll(unspent);
-        all.putAll(spent);
-        all.putAll(inactive);
-        for (Transaction tx : all.values()) {
-            Set<StoredBlock> appearsIn = tx.getAppearsIn();
-            assert appearsIn != null;
-            // If the set of blocks this transaction appears in is disjoint with one of the chain segments it means
-            // the transaction was never incorporated by a miner into that side of the chain.
-            boolean inOldSection = !Collections.disjoint(appearsIn, oldBlocks);
-            boolean inNewSection = !Collections.disjoint(appearsIn, newBlocks);
-            boolean inCommonSection = !inNewSection && !inOldSection;
-
-            if (inCommonSection) {
-                boolean alreadyPresent = commonChainTransactions.put(tx.getHash(), tx) != null;
-                assert !alreadyPresent : "Transaction appears twice in common chain segment";
-            } else {
-                if (inOldSection) {
-                    boolean alreadyPresent = oldChainTransactions.put(tx.getHash(), tx) != null;
-                    assert !alreadyPresent : "Transaction appears twice in old chain segment";
-                    if (!inNewSection) {
-                        alreadyPresent = onlyOldChainTransactions.put(tx.getHash(), tx) != null;
-                        assert !alreadyPresent : "Transaction appears twice in only-old map";
-                    }
-                }
-                if (inNewSection) {
-                    boolean alreadyPresent = newChainTransactions.put(tx.getHash(), tx) != null;
-                    assert !alreadyPresent : "Transaction appears twice in new chain segment";
+        List<Transaction> txns = blockTransactions.get(block);
+        if (txns == null)
+            return;
+        log.info("Disconnecting block {}", block.getHeader().getHashAsString());
+        // Later transactions in a block can spend earlier ones, so undo them last first. Transactions in blocks above
+        // this one were disconnected already, so nothing on the chain still spends the outputs of these.
+        for (int i = txns.size() - 1; i >= 0; i--) {
+            Sha256Hash hash = txns.get(i).getHash();
+            // The index may hold copies that were since replaced in the pools, only the pooled object counts.
+            Transaction tx = unspent.remove(hash);
+            if (tx == null) tx = spent.remove(hash);
+            if (tx == null) continue;
+            log.info("  TX {}: ->inactive", tx.getHashAsString());
+            for (TransactionInput input : tx.inputs) {
+                Transaction parent = input.outpoint.fromTx;
+                if (!input.disconnect()) continue;
+                // The output this transaction spent is ours to spend again.
+                if (spent.get(parent.getHash()) == parent &&
+                        !parent.getValueSentToMe(this, false).equals(BigInteger.ZERO)) {
+                    log.info("  prevtx {}: <-spent ->unspent", parent.getHashAsString());
+                    spent.remove(parent.getHash());
+                    unspent.put(parent.getHash(), parent);
                 }
             }
+            // It stays recorded against this block, which is now on a side chain.
+            inactive.put(hash, tx);
+            reorgDisconnected.put(hash, tx);
+            reorgAffected = true;
         }
+    }
 
-        // If there is no difference it means we have nothing we need to do and the user does not care.
-        boolean affectedUs = !oldChainTransactions.equals(newChainTransactions);
-        log.info(affectedUs ? "Re-org affected our transactions" : "Re-org had no effect on our transactions");
-        if (!affectedUs) return;
-
-        // For simplicity we will reprocess every transaction to ensure it's in the right bucket and has the right
-        // connections. Attempting to update each one with minimal work is possible but complex and was leading to
-        // edge cases that were hard to fix. As re-orgs are rare the amount of work this implies should be manageable
-        // unless the user has an enormous wallet. As an optimization fully spent transactions buried deeper than
-        // 1000 blocks could be put into yet another bucket which we never touch and assume re-orgs cannot affect.
-
-        for (Transaction tx : onlyOldChainTransactions.values()) log.info("  Only Old: {}", tx.getHashAsString());
-        for (Transaction tx : oldChainTransactions.values()) log.info("  Old: {}", tx.getHashAsString());
-        for (Transaction tx : newChainTransactions.values()) log.info("  New: {}", tx.getHashAsString());
-
-        // Break all the existing connections.
-        for (Transaction tx : all.values())
-            tx.disconnectInputs();
-        for (Transaction tx : pending.values())
-            tx.disconnectInputs();
-        // Reconnect the transactions in the common part of the chain.
-        for (Transaction tx : commonChainTransactions.values()) {
-            TransactionInput badInput = tx.connectInputs(all, false);
-            assert badInput == null : "Failed to connect " + tx.getHashAsString() + ", " + badInput.toString();
-        }
-        // Recalculate the unspent/spent buckets for the transactions the re-org did not affect.
-        unspent.clear();
-        spent.clear();
-        inactive.clear();
-        for (Transaction tx : commonChainTransactions.values()) {
-            int unspentOutputs = 0;
-            for (TransactionOutput output : tx.outputs) {
-                if (output.isAvailableForSpending()) unspentOutputs++;
-            }
-            if (unspentOutputs > 0) {
-                log.info("  TX {}: ->unspent", tx.getHashAsString());
-                unspent.put(tx.getHash(), tx);
-            } else {
-                log.info("  TX {}: ->spent", tx.getHashAsString());
-                spent.put(tx.getHash(), tx);
+    /**
+     * Called by the {@link BlockChain} during a re-org for each block of the new best chain above the split, from the
+     * bottom up. The transactions of the block were received when it was on a side chain and are now made active.
+     */
+    synchronized void connectBlock(StoredBlock block) throws VerificationException {
+        List<Transaction> txns = blockTransactions.get(block);
+        if (txns == null)
+            return;
+        log.info("Connecting block {}", block.getHeader().getHashAsString());
+        for (Transaction t : txns) {
+            // Transactions seen on a side chain wait in the inactive pool, and the pooled object is the one to use.
+            Transaction tx = inactive.remove(t.getHash());
+            if (tx == null) continue;
+            log.info("  containing tx {}", tx.getHashAsString());
+            if (reorgDisconnected.remove(tx.getHash()) == null)
+                reorgAffected = true;
+            try {
+                receive(tx, block, BlockChain.NewBlockType.BEST_CHAIN, true);
+            } catch (ScriptException e) {
+                throw new RuntimeException(e);  // Cannot happen as these blocks were already verified.
             }
         }
-        // Now replay the act of receiving the blocks that were previously in a side chain. This will:
-        //   - Move any transactions that were pending and are now accepted into the right bucket.
-        //   - Connect the newly active transactions.
-        Collections.reverse(newBlocks);  // Need bottom-to-top but we get top-to-bottom.
-        for (StoredBlock b : newBlocks) {
-            log.info("Replaying block {}", b.getHeader().getHashAsString());
-            Set<Transaction> txns = new HashSet<Transaction>();
-            for (Transaction tx : newChainTransactions.values()) {
-                if (tx.appearsIn.contains(b)) {
-                    txns.add(tx);
-                    log.info("  containing tx {}", tx.getHashAsString());
-                }
-            }
-            for (Transaction t : txns) {
-                try {
-                    receive(t, b, BlockChain.NewBlockType.BEST_CHAIN, true);
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e);  // Cannot happen as these blocks were already verified.
-                }
-            }
+    }
+
+    /**
+     * Called by the {@link BlockChain} once every block of a re-org has been disconnected or connected. Sorts out the
+     * transactions the new chain did not include and tells the event listeners if anything changed.
+     */
+    synchronized void endReorganize() {
+        if (!reorgAffected) {
+            log.info("Re-org had no effect on our transactions");
+            return;
         }
+        reorgAffected = false;
+        log.info("Re-org affected our transactions");
 
         // Find the transactions that didn't make it into the new chain yet. For each input, try to connect it to the
         // transactions that are in {spent,unspent,pending}. Check the status of each input. For inactive
@@ -760,13 +795,16 @@ public class Wallet implements Serializable {
         // another re-org or re-inclusion into the main chain. For inactive transactions where we spent money we must
         // put them back into the pending pool if we can reconnect them, so we don't create a double spend whilst the
         // network heals itself.
-        Map<Sha256Hash, Transaction> pool = new HashMap<Sha256Hash, Transaction>();
-        pool.putAll(unspent);
-        pool.putAll(spent);
-        pool.putAll(pending);
-        Map<Sha256Hash, Transaction> toReprocess = new HashMap<Sha256Hash, Transaction>();
-        toReprocess.putAll(onlyOldChainTransactions);
-        toReprocess.putAll(pending);
+        List<Transaction> toReprocess = new ArrayList<Transaction>(reorgDisconnected.values());
+        for (Transaction tx : toReprocess)
+            inactive.remove(tx.getHash());
+        reorgDisconnected.clear();
+        // Pending transactions may spend outputs of transactions that were disconnected, so break their connections
+        // and let reprocessing make them again.
+        for (Transaction tx : pending.values()) {
+            tx.disconnectInputs();
+            toReprocess.add(tx);
+        }
         log.info("Reprocessing:");
         // Note, we must reprocess dead transactions first. The reason is that if there is a double spend across
         // chains from our own coins we get a complicated situation:
@@ -779,10 +817,10 @@ public class Wallet implements Serializable {
         //
         // This only occurs when we are double spending our own coins.
         for (Transaction tx : dead.values()) {
-            reprocessTxAfterReorg(pool, tx);
+            reprocessTxAfterReorg(tx);
         }
-        for (Transaction tx : toReprocess.values()) {
-            reprocessTxAfterReorg(pool, tx);
+        for (Transaction tx : toReprocess) {
+            reprocessTxAfterReorg(tx);
         }
 
         log.info("post-reorg balance is {}", Utils.bitcoinValueToFriendlyString(getBalance()));
@@ -797,7 +835,17 @@ public class Wallet implements Serializable {
         }
     }
 
-    private void reprocessTxAfterReorg(Map<Sha256Hash, Transaction> pool, Transaction tx) {
+    // Connects the input to the unspent, spent or pending transaction it spends, if there is one.
+    private TransactionInput.ConnectionResult connectToPools(TransactionInput input) {
+        TransactionInput.ConnectionResult result = input.connect(unspent, false);
+        if (result == TransactionInput.ConnectionResult.NO_SUCH_TX)
+            result = input.connect(spent, false);
+        if (result == TransactionInput.ConnectionResult.NO_SUCH_TX)
+            result = input.connect(pending, false);
+        return result;
+    }
+
+    private void reprocessTxAfterReorg(Transaction tx) {
         log.info("  TX {}", tx.getHashAsString());
         int numInputs = tx.inputs.size();
         int noSuchTx = 0;
@@ -809,7 +857,7 @@ public class Wallet implements Serializable {
                 noSuchTx++;
                 continue;
             }
-            TransactionInput.ConnectionResult result = input.connect(pool, false);
+            TransactionInput.ConnectionResult result = connectToPools(input);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 success++;
             } else if (result == TransactionInput.ConnectionResult.NO_SUCH_TX) {
@@ -819,7 +867,9 @@ public class Wallet implements Serializable {
                 // This transaction was replaced by a double spend on the new chain. Did you just reverse
                 // your own transaction? I hope not!!
                 log.info("   ->dead, will not confirm now unless there's another re-org", tx.getHashAsString());
-                TransactionOutput doubleSpent = input.getConnectedOutput(pool);
+                TransactionOutput doubleSpent = input.getConnectedOutput(unspent);
+                if (doubleSpent == null) doubleSpent = input.getConnectedOutput(spent);
+                if (doubleSpent == null) doubleSpent = input.getConnectedOutput(pending);
                 Transaction replacement = doubleSpent.getSpentBy().parentTransaction;
                 dead.put(tx.getHash(), tx);
                 // Inform the event listeners of the newly dead tx.
@@ -42,7 +42,7 @@ public class PingService {
             wallet = Wallet.loadFromFile(walletFile);
         } catch (IOException e) {
             wallet = new Wallet(params);
-            wallet.keychain.add(new ECKey());
+            wallet.addKey(new ECKey());
             wallet.saveToFile(walletFile);
         }
         // Fetch the first key in the wallet (should be the only key).
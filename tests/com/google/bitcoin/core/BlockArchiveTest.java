@@ -0,0 +1,195 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BlockArchiveTest {
+    private NetworkParameters params;
+    private Address to;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        to = new ECKey().toAddress(params);
+        dir = File.createTempFile("bitcoinj-test", null, null);
+        dir.delete();
+        dir.deleteOnExit();
+    }
+
+    private Block[] buildBlocks(int count) {
+        Block[] blocks = new Block[count];
+        Block prev = params.genesisBlock;
+        for (int i = 0; i < count; i++) {
+            blocks[i] = prev.createNextBlock(to);
+            prev = blocks[i];
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testReadBack() throws Exception {
+        BlockArchive archive = new BlockArchive(params, dir);
+        Block[] blocks = buildBlocks(5);
+        for (Block block : blocks)
+            archive.add(block);
+        // Adding twice doesn't store a second copy.
+        archive.add(blocks[2]);
+
+        for (Block block : blocks) {
+            assertTrue(archive.contains(block.getHash()));
+            assertEquals(block, archive.getBlock(block.getHash()));
+            ByteBuffer raw = archive.getRawBlock(block.getHash());
+            assertArrayEquals(block.bitcoinSerialize(), raw.array());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(raw.remaining(), archive.transferTo(block.getHash(), Channels.newChannel(out)));
+            assertArrayEquals(block.bitcoinSerialize(), out.toByteArray());
+        }
+        byte[] missing = blocks[4].createNextBlock(to).getHash();
+        assertFalse(archive.contains(missing));
+        assertNull(archive.getBlock(missing));
+        assertEquals(-1, archive.transferTo(missing, Channels.newChannel(new ByteArrayOutputStream())));
+        archive.close();
+
+        archive = new BlockArchive(params, dir);
+        for (Block block : blocks)
+            assertEquals(block, archive.getBlock(block.getHash()));
+        archive.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        BlockArchive archive = new BlockArchive(params, dir);
+        Block[] blocks = buildBlocks(3);
+        archive.add(blocks[0]);
+        archive.add(blocks[1]);
+        archive.close();
+
+        // Append a block the index never heard of, followed by half of another one, as a crash might leave it.
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "blk00000.dat"), "rw");
+        long goodLength = raf.length();
+        byte[] bytes = blocks[2].bitcoinSerialize();
+        raf.seek(goodLength);
+        raf.writeInt(bytes.length);
+        raf.write(bytes);
+        raf.writeInt(bytes.length);
+        raf.write(bytes, 0, bytes.length / 2);
+        raf.close();
+
+        archive = new BlockArchive(params, dir);
+        assertEquals(blocks[2], archive.getBlock(blocks[2].getHash()));
+        assertEquals(goodLength + 4 + bytes.length, new File(dir, "blk00000.dat").length());
+        archive.close();
+
+        // Losing the index just means it gets rebuilt.
+        new File(dir, "blocks.index").delete();
+        archive = new BlockArchive(params, dir);
+        for (Block block : blocks)
+            assertEquals(block, archive.getBlock(block.getHash()));
+        archive.close();
+    }
+
+    // Writes the given records as a data file, each preceded by its length.
+    private void writeDataFile(String name, byte[]... records) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, name), "rw");
+        for (byte[] record : records) {
+            raf.writeInt(record.length);
+            raf.write(record);
+        }
+        raf.close();
+    }
+
+    @Test
+    public void testDamageDoesNotDeleteData() throws Exception {
+        dir.mkdirs();
+        Block[] blocks = buildBlocks(4);
+        // A record that is framed correctly but does not parse sits between two good blocks in the first file.
+        byte[] garbage = new byte[50];
+        writeDataFile("blk00000.dat", blocks[0].bitcoinSerialize(), garbage, blocks[1].bitcoinSerialize());
+        writeDataFile("blk00001.dat", blocks[2].bitcoinSerialize());
+        long firstLength = new File(dir, "blk00000.dat").length();
+
+        BlockArchive archive = new BlockArchive(params, dir);
+        for (int i = 0; i < 3; i++)
+            assertEquals(blocks[i], archive.getBlock(blocks[i].getHash()));
+        assertEquals(firstLength, new File(dir, "blk00000.dat").length());
+        archive.close();
+
+        // Now damage the framing at the end of the first file. Only the blocks before it in that file are indexed,
+        // and nothing is removed.
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "blk00000.dat"), "rw");
+        raf.seek(firstLength);
+        raf.writeInt(1000000);
+        raf.close();
+        new File(dir, "blocks.index").delete();
+        archive = new BlockArchive(params, dir);
+        for (int i = 0; i < 3; i++)
+            assertEquals(blocks[i], archive.getBlock(blocks[i].getHash()));
+        assertEquals(firstLength + 4, new File(dir, "blk00000.dat").length());
+        assertTrue(new File(dir, "blk00001.dat").exists());
+        // New blocks still go on the end of the newest file.
+        archive.add(blocks[3]);
+        archive.close();
+        archive = new BlockArchive(params, dir);
+        assertEquals(blocks[3], archive.getBlock(blocks[3].getHash()));
+        archive.close();
+    }
+
+    @Test
+    public void testChainFeedsArchive() throws Exception {
+        BlockArchive archive = new BlockArchive(params, dir);
+        Wallet wallet = new Wallet(params);
+        BlockChain chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+        chain.setBlockArchive(archive);
+        Block[] blocks = buildBlocks(3);
+        for (Block block : blocks)
+            assertTrue(chain.add(block));
+        for (Block block : blocks)
+            assertEquals(block, archive.getBlock(block.getHash()));
+        archive.close();
+    }
+
+    @Test
+    public void testArchiveFailureDoesNotStopChain() throws Exception {
+        // An archive that can't be written to only costs us the archived copies, the chain keeps moving.
+        BlockArchive archive = new BlockArchive(params, dir) {
+            @Override
+            public void add(Block block) throws BlockStoreException {
+                throw new BlockStoreException("disk full");
+            }
+        };
+        Wallet wallet = new Wallet(params);
+        BlockChain chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+        chain.setBlockArchive(archive);
+        Block[] blocks = buildBlocks(3);
+        assertTrue(chain.add(blocks[0]));
+        assertEquals(2, chain.addAll(Arrays.asList(blocks[1], blocks[2])));
+        assertEquals(blocks[2].cloneAsHeader(), chain.getChainHead().getHeader());
+        assertFalse(archive.contains(blocks[0].getHash()));
+        archive.close();
+    }
+}
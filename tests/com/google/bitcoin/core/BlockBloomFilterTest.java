@@ -0,0 +1,66 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockBloomFilterTest {
+    @Test
+    public void testAddAndReopen() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        BlockBloomFilter filter = new BlockBloomFilter(temp);
+        Random random = new Random(1);
+        // Enough hashes to need a second layer.
+        byte[][] hashes = new byte[100000][32];
+        for (byte[] hash : hashes) {
+            random.nextBytes(hash);
+            filter.add(hash);
+        }
+        filter.setCoveredLength(1234);
+        for (byte[] hash : hashes)
+            assertTrue(filter.mightContain(hash));
+
+        // Hashes that were never added are almost always rejected.
+        int falsePositives = 0;
+        byte[] other = new byte[32];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(other);
+            if (filter.mightContain(other))
+                falsePositives++;
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 50);
+
+        // The contents survive reopening.
+        filter.close();
+        filter = new BlockBloomFilter(temp);
+        assertEquals(1234, filter.getCoveredLength());
+        for (byte[] hash : hashes)
+            assertTrue(filter.mightContain(hash));
+
+        filter.clear();
+        assertEquals(0, filter.getCoveredLength());
+        assertFalse(filter.mightContain(hashes[0]));
+        filter.close();
+    }
+}
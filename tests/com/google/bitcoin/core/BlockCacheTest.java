@@ -0,0 +1,132 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BlockCacheTest {
+    private StoredBlock[] blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        blocks = new StoredBlock[30];
+        StoredBlock prev = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            prev = blocks[i];
+        }
+    }
+
+    private static Sha256Hash hash(StoredBlock block) {
+        return new Sha256Hash(block.getHeader().getHash());
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        BlockCache cache = new BlockCache(10 * BlockCache.ESTIMATED_ENTRY_BYTES);
+        assertEquals(10, cache.getMaxEntries());
+        for (int i = 0; i < 12; i++)
+            cache.put(hash(blocks[i]), blocks[i]);
+        assertEquals(10, cache.size());
+        assertEquals(2, cache.getEvictions());
+        // The two oldest entries went.
+        assertNull(cache.get(hash(blocks[0])));
+        assertNull(cache.get(hash(blocks[1])));
+        assertSame(blocks[11], cache.get(hash(blocks[11])));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testScanResistance() throws Exception {
+        BlockCache cache = new BlockCache(10 * BlockCache.ESTIMATED_ENTRY_BYTES);
+        // Blocks that are requested twice get protected.
+        for (int i = 0; i < 5; i++) {
+            cache.put(hash(blocks[i]), blocks[i]);
+            cache.get(hash(blocks[i]));
+        }
+        // A scan over many blocks that are only seen once does not push them out.
+        for (int i = 5; i < blocks.length; i++)
+            cache.put(hash(blocks[i]), blocks[i]);
+        for (int i = 0; i < 5; i++)
+            assertSame(blocks[i], cache.get(hash(blocks[i])));
+        assertSame(blocks[blocks.length - 1], cache.get(hash(blocks[blocks.length - 1])));
+        assertNull(cache.get(hash(blocks[5])));
+    }
+
+    @Test
+    public void testShardedFromManyThreads() throws Exception {
+        // Big enough to be split into shards.
+        final BlockCache cache = new BlockCache(4096L * BlockCache.ESTIMATED_ENTRY_BYTES);
+        assertEquals(4096, cache.getMaxEntries());
+        final int perThread = 2000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        Sha256Hash key = key(id, i);
+                        cache.put(key, blocks[i % blocks.length]);
+                        cache.get(key);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        int total = threads.length * perThread;
+        assertEquals(total, cache.getHits() + cache.getMisses());
+        assertTrue(cache.size() <= cache.getMaxEntries());
+        assertEquals(total - cache.size(), cache.getEvictions());
+    }
+
+    private static Sha256Hash key(int thread, int i) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) thread;
+        bytes[30] = (byte) (i >> 8);
+        bytes[31] = (byte) i;
+        return new Sha256Hash(bytes);
+    }
+
+    @Test
+    public void testCachingBlockStore() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        CachingBlockStore store = new CachingBlockStore(new MemoryBlockStore(params),
+                new BlockCache(BlockCache.ESTIMATED_ENTRY_BYTES * 100));
+        StoredBlock genesis = store.getChainHead();
+        store.put(blocks[0]);
+        store.setChainHead(blocks[0]);
+        assertSame(blocks[0], store.get(blocks[0].getHeader().getHash()));
+        assertEquals(1, store.getCache().getHits());
+        // Misses fall through to the underlying store and are cached from then on.
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        assertEquals(1, store.getCache().getMisses());
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        assertEquals(2, store.getCache().getHits());
+        assertNull(store.get(blocks[1].getHeader().getHash()));
+    }
+}
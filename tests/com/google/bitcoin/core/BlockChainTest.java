@@ -21,6 +21,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -86,6 +89,172 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void testAddAll() throws Exception {
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        // b3 and b4 arrive before b2, so they are connected by the pass over unconnected blocks at the end.
+        assertEquals(2, chain.addAll(Arrays.asList(b1, b3, b4, b2)));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(chain.getChainHead(), chain.blockStore.getChainHead());
+        assertNull(chain.getUnconnectedBlock());
+    }
+
+    @Test
+    public void testAddAllVerifiesOutsideLock() throws Exception {
+        final boolean[] verifiedUnderLock = new boolean[1];
+        BlockChain chain = new BlockChain(unitTestParams, new MemoryBlockStore(unitTestParams)) {
+            @Override
+            void verify(Block block) throws VerificationException {
+                if (Thread.holdsLock(this))
+                    verifiedUnderLock[0] = true;
+                super.verify(block);
+            }
+        };
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        assertEquals(3, chain.addAll(Arrays.asList(b1, b2, b3)));
+        assertEquals(1, chain.addAll(Arrays.asList(b3.createNextBlock(coinbaseTo))));
+        assertFalse(verifiedUnderLock[0]);
+        assertEquals(4, chain.getChainHead().getHeight());
+    }
+
+    @Test
+    public void testAddAllCommitsOnce() throws Exception {
+        // Counts writes to the store, not counting the ones putAll makes itself.
+        final int[] puts = new int[1];
+        final int[] headChanges = new int[1];
+        final List<Integer> batches = new ArrayList<Integer>();
+        MemoryBlockStore store = new MemoryBlockStore(unitTestParams) {
+            private boolean inPutAll;
+
+            @Override
+            public void put(StoredBlock block) throws BlockStoreException {
+                if (!inPutAll)
+                    puts[0]++;
+                super.put(block);
+            }
+
+            @Override
+            public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+                if (!inPutAll)
+                    headChanges[0]++;
+                super.setChainHead(chainHead);
+            }
+
+            @Override
+            public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+                batches.add(blocks.size());
+                inPutAll = true;
+                try {
+                    super.putAll(blocks, chainHead);
+                } finally {
+                    inPutAll = false;
+                }
+            }
+        };
+        BlockChain chain = new BlockChain(unitTestParams, wallet, store);
+        puts[0] = headChanges[0] = 0;
+        // The batch re-organizes onto c2 and c3 part way through.
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block c2 = b1.createNextBlock(someOtherGuy);
+        Block c3 = c2.createNextBlock(someOtherGuy);
+        assertEquals(4, chain.addAll(Arrays.asList(b1, b2, c2, c3)));
+        assertEquals(0, puts[0]);
+        assertEquals(0, headChanges[0]);
+        assertEquals(Arrays.asList(4), batches);
+        assertEquals(c3.cloneAsHeader(), store.getChainHead().getHeader());
+        assertEquals(c2.cloneAsHeader(), store.getByHeight(2).getHeader());
+        assertEquals(b1.cloneAsHeader(), store.getByHeight(1).getHeader());
+        assertEquals(b2.cloneAsHeader(), store.get(b2.getHash()).getHeader());
+        // Single blocks still go straight through.
+        assertTrue(chain.add(c3.createNextBlock(coinbaseTo)));
+        assertEquals(1, puts[0]);
+        assertEquals(1, headChanges[0]);
+    }
+
+    @Test
+    public void testAddAllStopsAtInvalidBlock() throws Exception {
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block bad = b2.createNextBlock(coinbaseTo);
+        bad.setMerkleRoot(new byte[32]);
+        bad.solve();
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        try {
+            chain.addAll(Arrays.asList(b1, b2, bad, b3));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The blocks before the bad one were committed, the ones after it were not added.
+        assertEquals(b2.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(chain.getChainHead(), chain.blockStore.getChainHead());
+        assertNull(chain.blockStore.get(b3.getHash()));
+        assertTrue(chain.add(b3));
+    }
+
+    @Test
+    public void testChainHeadSnapshot() throws Exception {
+        final List<Integer> heights = new ArrayList<Integer>();
+        chain.addChainHeadListener(new ChainHeadListener() {
+            public void onChainHeadChanged(ChainHeadSnapshot snapshot) {
+                heights.add(snapshot.getHeight());
+            }
+        });
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block c2 = b1.createNextBlock(someOtherGuy);
+        Block c3 = c2.createNextBlock(someOtherGuy);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        ChainHeadSnapshot before = chain.getSnapshot();
+        assertEquals(2, before.getHeight());
+        assertEquals(Arrays.asList(unitTestParams.genesisBlock.cloneAsHeader(), b1.cloneAsHeader(), b2.cloneAsHeader()),
+                before.getRecentHeaders());
+        // A re-organize onto the c chain publishes a new snapshot, the old one is unchanged.
+        assertTrue(chain.add(c2));
+        assertTrue(chain.add(c3));
+        ChainHeadSnapshot after = chain.getSnapshot();
+        assertEquals(3, after.getHeight());
+        assertEquals(chain.getChainHead(), after.getHead());
+        assertEquals(after.getHead().getChainWork(), after.getChainWork());
+        assertEquals(Arrays.asList(unitTestParams.genesisBlock.cloneAsHeader(), b1.cloneAsHeader(), c2.cloneAsHeader(),
+                c3.cloneAsHeader()), after.getRecentHeaders());
+        assertEquals(2, before.getHeight());
+        assertEquals(Arrays.asList(1, 2, 3), heights);
+        // What the snapshot hands out can be changed without changing the snapshot or the chain.
+        after.getHead().getHeader().setNonce(12345);
+        after.getRecentHeaders().get(3).setNonce(12345);
+        assertEquals(c3.cloneAsHeader(), after.getHead().getHeader());
+        assertEquals(c3.cloneAsHeader(), after.getRecentHeaders().get(3));
+        assertEquals(c3.cloneAsHeader(), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void testMultipleWallets() throws Exception {
+        Wallet wallet2 = new Wallet(unitTestParams);
+        wallet2.addKey(new ECKey());
+        chain.addWallet(wallet2);
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(wallet2.keychain.get(0).toAddress(unitTestParams));
+        Block b3 = b2.createNextBlock(someOtherGuy);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        // Each wallet only got the coinbase paying it.
+        assertEquals(Utils.toNanoCoins(50, 0), wallet.getBalance());
+        assertEquals(Utils.toNanoCoins(50, 0), wallet2.getBalance());
+        chain.removeWallet(wallet);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        assertTrue(chain.add(b3));
+        assertTrue(chain.add(b4));
+        assertEquals(Utils.toNanoCoins(50, 0), wallet.getBalance());
+    }
+
     @Test
     public void testDifficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
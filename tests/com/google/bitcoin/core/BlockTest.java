@@ -25,7 +25,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.math.BigInteger;
 import java.util.Arrays;
 
 import static org.junit.Assert.*;
@@ -44,11 +43,11 @@ public class BlockTest {
 
     @Test
     public void testWork() throws Exception {
-        BigInteger work = params.genesisBlock.getWork();
+        ChainWork work = params.genesisBlock.getWork();
         // This number is printed by the official client at startup as the calculated value of chainWork on testnet:
         //
         // SetBestChain: new best=00000007199508e34a9f  height=0  work=536879104
-        assertEquals(BigInteger.valueOf(536879104L), work);
+        assertEquals(new ChainWork(0, 536879104L), work);
     }
 
     @Test
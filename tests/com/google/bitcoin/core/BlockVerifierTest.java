@@ -0,0 +1,123 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BlockVerifierTest {
+    private NetworkParameters params;
+    private Address to;
+    private BlockChain chain;
+    private BlockVerifier verifier;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        to = new ECKey().toAddress(params);
+        chain = new BlockChain(params, new Wallet(params), new MemoryBlockStore(params));
+        verifier = new BlockVerifier(chain);
+    }
+
+    @Test
+    public void testConnectsInArrivalOrder() throws Exception {
+        // Fewer than a difficulty interval of the unit test network.
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = params.genesisBlock;
+        for (int i = 0; i < 8; i++) {
+            prev = prev.createNextBlock(to);
+            blocks.add(prev);
+        }
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        // The second block arrives before the first, so it has to wait as an orphan.
+        results.add(verifier.submit(blocks.get(1)));
+        results.add(verifier.submit(blocks.get(0)));
+        for (int i = 2; i < blocks.size(); i++)
+            results.add(verifier.submit(blocks.get(i)));
+        // A block sent twice is only connected once.
+        results.add(verifier.submit(blocks.get(3)));
+        verifier.shutdown();
+        assertTrue(verifier.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertFalse(results.get(0).get());
+        for (int i = 1; i < results.size(); i++)
+            assertTrue(results.get(i).get());
+        assertEquals(8, chain.getChainHead().getHeight());
+        assertArrayEquals(blocks.get(7).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void testConnectsOnCallingThreads() throws Exception {
+        final List<Thread> connectedOn = new ArrayList<Thread>();
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params)) {
+            @Override
+            boolean addVerified(Block block) throws VerificationException, ScriptException {
+                connectedOn.add(Thread.currentThread());
+                return super.addVerified(block);
+            }
+        };
+        BlockVerifier verifier = new BlockVerifier(chain);
+        Block b1 = params.genesisBlock.createNextBlock(to);
+        Block b2 = b1.createNextBlock(to);
+        verifier.submit(b1);
+        Future<Boolean> r2 = verifier.submit(b2);
+        // Waiting for the second block connects the first one too.
+        assertTrue(r2.get());
+        assertEquals(2, chain.getChainHead().getHeight());
+        assertEquals(2, connectedOn.size());
+        for (Thread thread : connectedOn)
+            assertSame(Thread.currentThread(), thread);
+        verifier.shutdown();
+        try {
+            verifier.submit(b2.createNextBlock(to));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testBadBlock() throws Exception {
+        Block b1 = params.genesisBlock.createNextBlock(to);
+        Block bad = b1.createNextBlock(to);
+        bad.setMerkleRoot(new byte[32]);
+        bad.solve();
+        Block b2 = b1.createNextBlock(to);
+        Future<Boolean> r1 = verifier.submit(b1);
+        Future<Boolean> rBad = verifier.submit(bad);
+        Future<Boolean> r2 = verifier.submit(b2);
+        assertTrue(r1.get());
+        try {
+            rBad.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        // Blocks after the bad one are still connected.
+        assertTrue(r2.get());
+        assertArrayEquals(b2.getHash(), chain.getChainHead().getHeader().getHash());
+        verifier.shutdown();
+    }
+}
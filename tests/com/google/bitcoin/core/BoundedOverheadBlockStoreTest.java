@@ -15,16 +15,45 @@
  */
 package com.google.bitcoin.core;
 
+import org.junit.After;
 import org.junit.Test;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class BoundedOverheadBlockStoreTest {
+    // Block files made by the test. The store keeps its indexes next to them, and they are deleted along with them.
+    private final List<File> tempFiles = new ArrayList<File>();
+
+    private File createTempFile() throws IOException {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        tempFiles.add(temp);
+        return temp;
+    }
+
+    @After
+    public void tearDown() {
+        for (File temp : tempFiles) {
+            for (String suffix : new String[] {"", ".index", ".bloom", ".heights", ".upgrade"})
+                new File(temp.getPath() + suffix).delete();
+        }
+    }
+
     @Test
     public void testStorage() throws Exception {
-        File temp = File.createTempFile("bitcoinj-test", null, null);
+        File temp = createTempFile();
         System.out.println(temp.getAbsolutePath());
-        temp.deleteOnExit();
 
         NetworkParameters params = NetworkParameters.unitTests();
         Address to = new ECKey().toAddress(params);
@@ -44,4 +73,257 @@ public class BoundedOverheadBlockStoreTest {
         // Check the chain head was stored correctly also.
         assertEquals(b1, store.getChainHead());
     }
+
+    @Test
+    public void testPutAll() throws Exception {
+        File temp = createTempFile();
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredBlock b3 = b2.build(b2.getHeader().createNextBlock(to).cloneAsHeader());
+        store.putAll(Arrays.asList(b1, b2, b3), b3);
+        assertEquals(b3, store.getChainHead());
+        assertEquals(b2, store.getByHeight(2));
+
+        // All three records made it to the file and the index.
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(b3, store.getChainHead());
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b2, store.get(b2.getHeader().getHash()));
+        assertEquals(b1, store.getByHeight(1));
+    }
+
+    @Test
+    public void testIndexRebuild() throws Exception {
+        File temp = createTempFile();
+        File indexFile = new File(temp.getPath() + ".index");
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b2);
+        store.setChainHead(b2);
+
+        // Throw away the index. It should be rebuilt from the block file when the store is reopened.
+        assertEquals(true, indexFile.delete());
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b2, store.getChainHead());
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+
+        // Blocks we never stored are not found.
+        Block unknown = b2.getHeader().createNextBlock(to);
+        assertNull(store.get(unknown.getHash()));
+    }
+
+    @Test
+    public void testGetByHeight() throws Exception {
+        File temp = createTempFile();
+        File heightsFile = new File(temp.getPath() + ".heights");
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        StoredBlock genesis = store.getChainHead();
+        //    genesis -> b1 -> b2
+        //           \--> c1 -> c2 -> c3
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b2);
+        store.setChainHead(b2);
+        assertEquals(genesis, store.getByHeight(0));
+        assertEquals(b1, store.getByHeight(1));
+        assertEquals(b2, store.getByHeight(2));
+        assertNull(store.getByHeight(3));
+
+        StoredBlock c1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(c1);
+        StoredBlock c2 = c1.build(c1.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(c2);
+        StoredBlock c3 = c2.build(c2.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(c3);
+        store.setChainHead(c3);
+        assertEquals(genesis, store.getByHeight(0));
+        assertEquals(c1, store.getByHeight(1));
+        assertEquals(c3, store.getByHeight(3));
+
+        // Moving back to a shorter chain drops the heights above it.
+        store.setChainHead(b2);
+        assertEquals(b1, store.getByHeight(1));
+        assertNull(store.getByHeight(3));
+
+        // A missing height index is rebuilt when the store is reopened.
+        store.setChainHead(c3);
+        assertEquals(true, heightsFile.delete());
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(c2, store.getByHeight(2));
+        assertEquals(c3, store.getByHeight(3));
+    }
+
+    private static StoredBlock[] buildChain(StoredBlock genesis, Address to, int length) throws Exception {
+        StoredBlock[] blocks = new StoredBlock[length];
+        StoredBlock prev = genesis;
+        for (int i = 0; i < length; i++) {
+            blocks[i] = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            prev = blocks[i];
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testTornWriteRecovery() throws Exception {
+        File temp = createTempFile();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        StoredBlock[] blocks = buildChain(store.getChainHead(), to, 3);
+        for (StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks[2]);
+
+        // Corrupt the last record and leave half a record after it, as a crash part way through writing might.
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        long lastRecord = raf.length() - BoundedOverheadBlockStore.Record.SIZE;
+        raf.seek(lastRecord + 10);
+        raf.write(0x55);
+        raf.seek(raf.length());
+        raf.write(new byte[BoundedOverheadBlockStore.Record.SIZE / 2]);
+        raf.close();
+
+        // The store comes back with the records before the damage, and the best of them as the chain head.
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(lastRecord, temp.length());
+        assertEquals(blocks[1], store.getChainHead());
+        assertEquals(blocks[0], store.get(blocks[0].getHeader().getHash()));
+        assertNull(store.get(blocks[2].getHeader().getHash()));
+        assertEquals(blocks[1], store.getByHeight(2));
+        assertNull(store.getByHeight(3));
+        // And carries on from there.
+        store.put(blocks[2]);
+        store.setChainHead(blocks[2]);
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(blocks[2], store.getChainHead());
+    }
+
+    @Test
+    public void testRepair() throws Exception {
+        File temp = createTempFile();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        StoredBlock[] blocks = buildChain(store.getChainHead(), to, 4);
+        for (StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks[3]);
+        BlockStoreRepair.Report report = BlockStoreRepair.check(params, temp, false);
+        assertTrue(report.toString(), report.isHealthy());
+        assertEquals(5, report.goodRecords);
+
+        // Damage the record of blocks[1], in the middle of the file.
+        long bad = BoundedOverheadBlockStore.FILE_PROLOGUE_BYTES + 2 * BoundedOverheadBlockStore.Record.SIZE;
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        raf.seek(bad + 50);
+        raf.write(0x55);
+        raf.close();
+        report = BlockStoreRepair.check(params, temp, false);
+        assertFalse(report.isHealthy());
+        assertNotNull(report.problem);
+        assertEquals(2, report.goodRecords);
+        assertEquals(bad, report.goodLength);
+
+        report = BlockStoreRepair.check(params, temp, true);
+        assertTrue(report.repaired);
+        assertEquals(bad, temp.length());
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(blocks[0], store.getChainHead());
+        assertNull(store.get(blocks[1].getHeader().getHash()));
+        assertTrue(BlockStoreRepair.check(params, temp, false).isHealthy());
+    }
+
+    @Test
+    public void testUpgradeFromVersion1() throws Exception {
+        File temp = createTempFile();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        Block genesisHeader = params.genesisBlock.cloneAsHeader();
+        StoredBlock genesis = new StoredBlock(genesisHeader, genesisHeader.getWork(), 0);
+        StoredBlock[] blocks = buildChain(genesis, to, 2);
+
+        // Write a file in the oldest format, whose records have neither checksums nor skip hashes.
+        FileOutputStream stream = new FileOutputStream(temp);
+        stream.write(1);
+        stream.write(blocks[1].getHeader().getHash());
+        for (StoredBlock block : new StoredBlock[] {genesis, blocks[0], blocks[1]}) {
+            ByteBuffer buf = ByteBuffer.allocate(BoundedOverheadBlockStore.Record.SIZE);
+            BoundedOverheadBlockStore.Record.encode(buf, block);
+            stream.write(buf.array(), 0, BoundedOverheadBlockStore.Record.LEGACY_PAYLOAD_SIZE);
+        }
+        stream.close();
+
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(BoundedOverheadBlockStore.FILE_PROLOGUE_BYTES + 3 * BoundedOverheadBlockStore.Record.SIZE,
+                temp.length());
+        assertEquals(blocks[1], store.getChainHead());
+        assertEquals(blocks[0], store.getByHeight(1));
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        File temp = createTempFile();
+        final NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        // A tiny cache, so the readers go to disk.
+        final BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp, new BlockCache(0));
+        final StoredBlock[] blocks = buildChain(store.getChainHead(), to, 300);
+        final Throwable[] failure = new Throwable[1];
+        final boolean[] done = new boolean[1];
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            synchronized (done) {
+                                if (done[0]) return;
+                            }
+                            StoredBlock head = store.getChainHead();
+                            assertEquals(head, store.get(head.getHeader().getHash()));
+                            // The chain only grows, so the block at the head's height never changes.
+                            assertEquals(head, store.getByHeight(head.getHeight()));
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (StoredBlock block : blocks) {
+            store.put(block);
+            store.setChainHead(block);
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (Thread reader : readers)
+            reader.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        assertEquals(blocks[blocks.length - 1], store.getChainHead());
+    }
 }
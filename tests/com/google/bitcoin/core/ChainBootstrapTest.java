@@ -0,0 +1,147 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChainBootstrapTest {
+    // Fewer than a difficulty interval of the unit test network.
+    private static final int BLOCKS = 8;
+
+    private NetworkParameters params;
+    private MemoryBlockStore store;
+    private BlockChain chain;
+    private BlockArchive archive;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        File dir = File.createTempFile("bitcoinj-test", null, null);
+        dir.delete();
+        dir.deleteOnExit();
+        archive = new BlockArchive(params, dir);
+        store = new MemoryBlockStore(params);
+        chain = new BlockChain(params, new Wallet(params), store);
+        chain.setBlockArchive(archive);
+        Address to = new ECKey().toAddress(params);
+        Block prev = params.genesisBlock;
+        for (int i = 0; i < BLOCKS; i++) {
+            Block block = prev.createNextBlock(to);
+            assertTrue(chain.add(block));
+            prev = block;
+        }
+    }
+
+    private byte[] export() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(BLOCKS, ChainBootstrap.export(params, store, archive, Channels.newChannel(bytes)));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] bootstrap = export();
+        MemoryBlockStore newStore = new MemoryBlockStore(params);
+        BlockChain newChain = new BlockChain(params, new Wallet(params), newStore);
+        assertEquals(BLOCKS, ChainBootstrap.importBlocks(newChain, new ByteArrayInputStream(bootstrap)));
+        assertEquals(chain.getChainHead(), newChain.getChainHead());
+        for (int height = 0; height <= BLOCKS; height++)
+            assertEquals(store.getByHeight(height), newStore.getByHeight(height));
+
+        // Importing again skips the blocks the chain already has.
+        assertEquals(0, ChainBootstrap.importBlocks(newChain, new ByteArrayInputStream(bootstrap)));
+    }
+
+    @Test
+    public void testTruncatedFile() throws Exception {
+        byte[] bootstrap = export();
+        byte[] truncated = Arrays.copyOf(bootstrap, bootstrap.length - 10);
+        BlockChain newChain = new BlockChain(params, new Wallet(params), new MemoryBlockStore(params));
+        assertEquals(BLOCKS - 1, ChainBootstrap.importBlocks(newChain, new ByteArrayInputStream(truncated)));
+        assertEquals(BLOCKS - 1, newChain.getChainHead().getHeight());
+    }
+
+    // Returns the offset in the bootstrap file of the block at the given height.
+    private static int offsetOf(byte[] bootstrap, int height) {
+        int offset = 0;
+        for (int i = 1; i < height; i++)
+            offset += 8 + (int) Utils.readUint32(bootstrap, offset + 4);
+        return offset + 8;
+    }
+
+    @Test
+    public void testSmallBatches() throws Exception {
+        // Several batches pass through the queue between the reader and the chain.
+        byte[] bootstrap = export();
+        BlockChain newChain = new BlockChain(params, new Wallet(params), new MemoryBlockStore(params));
+        assertEquals(BLOCKS, ChainBootstrap.importBlocks(newChain, new ByteArrayInputStream(bootstrap), 2));
+        assertEquals(chain.getChainHead(), newChain.getChainHead());
+    }
+
+    @Test
+    public void testInvalidBlockStopsImport() throws Exception {
+        byte[] bootstrap = export();
+        // Break the merkle root of block 5, the first of the third batch. The reader is stopped once it is found.
+        bootstrap[offsetOf(bootstrap, 5) + 36] ^= 1;
+        BlockChain newChain = new BlockChain(params, new Wallet(params), new MemoryBlockStore(params));
+        try {
+            ChainBootstrap.importBlocks(newChain, new ByteArrayInputStream(bootstrap), 2);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(4, newChain.getChainHead().getHeight());
+    }
+
+    @Test
+    public void testReadFailureAfterSomeBatches() throws Exception {
+        byte[] bootstrap = export();
+        // Corrupt the magic in front of block 6. The batches before it are still connected.
+        bootstrap[offsetOf(bootstrap, 6) - 8] ^= 1;
+        BlockChain newChain = new BlockChain(params, new Wallet(params), new MemoryBlockStore(params));
+        try {
+            ChainBootstrap.importBlocks(newChain, new ByteArrayInputStream(bootstrap), 2);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(4, newChain.getChainHead().getHeight());
+    }
+
+    @Test
+    public void testWrongNetwork() throws Exception {
+        byte[] bootstrap = export();
+        bootstrap[0] ^= 1;
+        BlockChain newChain = new BlockChain(params, new Wallet(params), new MemoryBlockStore(params));
+        try {
+            ChainBootstrap.importBlocks(newChain, new ByteArrayInputStream(bootstrap));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, newChain.getChainHead().getHeight());
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChainMetricsTest {
+    @Test
+    public void testHistogramBuckets() throws Exception {
+        // Every value lands in a bucket whose range includes it, and buckets are in order.
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE};
+        int lastBucket = -1;
+        for (long value : values) {
+            int bucket = ChainMetrics.Histogram.bucketOf(value);
+            assertTrue(bucket >= lastBucket);
+            assertTrue(value <= ChainMetrics.Histogram.highestValueIn(bucket));
+            if (bucket > 0)
+                assertTrue(value > ChainMetrics.Histogram.highestValueIn(bucket - 1));
+            lastBucket = bucket;
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        ChainMetrics.Histogram histogram = new ChainMetrics.Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMean());
+        assertEquals(1000000, histogram.getMax());
+        // Accurate to within an eighth.
+        long median = histogram.getPercentile(0.5);
+        assertTrue(median >= 500000 && median <= 500000 * 9 / 8);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void testChainRecords() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        BlockChain chain = new BlockChain(params, new Wallet(params), new MemoryBlockStore(params));
+        Address to = new ECKey().toAddress(params);
+        Block b1 = params.genesisBlock.createNextBlock(to);
+        Block b2 = b1.createNextBlock(to);
+        assertFalse(chain.add(b2));
+        ChainMetrics metrics = chain.getMetrics();
+        assertEquals(1, metrics.getUnconnectedBlocks());
+        assertEquals(0, metrics.getBlocksConnected());
+        assertTrue(chain.add(b1));
+        assertEquals(0, metrics.getUnconnectedBlocks());
+        assertEquals(2, metrics.getBlocksConnected());
+        assertEquals(2, metrics.verifyTime.getCount());
+        assertEquals(2, metrics.connectTime.getCount());
+        assertEquals(2, metrics.storePutTime.getCount());
+        assertEquals(0, metrics.getReorganizes());
+
+        metrics.registerMBeans("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(2L, server.getAttribute(
+                    new ObjectName("com.google.bitcoin:type=BlockChain,name=\"test\",metric=counters"),
+                    "BlocksConnected"));
+            assertEquals(2L, server.getAttribute(
+                    new ObjectName("com.google.bitcoin:type=BlockChain,name=\"test\",metric=verifyTime"), "Count"));
+        } finally {
+            metrics.unregisterMBeans("test");
+        }
+    }
+}
@@ -19,6 +19,10 @@ package com.google.bitcoin.core;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 
 import static org.junit.Assert.assertEquals;
@@ -120,6 +124,30 @@ public class ChainSplitTests {
         assertEquals("50.00", Utils.bitcoinValueToFriendlyString(wallet.getBalance()));
     }
 
+    @Test
+    public void testForkingAfterWalletReload() throws Exception {
+        // Check that a wallet loaded from disk still knows which blocks its side chain transactions appeared in.
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(someOtherGuy);
+        Block b2 = b1.createNextBlock(someOtherGuy);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        //     genesis -> b1 -> b2
+        //                  \-> b3 -> b4
+        Block b3 = b1.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(someOtherGuy);
+        assertTrue(chain.add(b3));
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(wallet);
+        oos.close();
+        Wallet reloaded = (Wallet) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+        chain.removeWallet(wallet);
+        chain.addWallet(reloaded);
+        assertTrue(chain.add(b4));
+        assertEquals("50.00", Utils.bitcoinValueToFriendlyString(reloaded.getBalance()));
+    }
+
     @Test
     public void testForking3() throws Exception {
         // Check that we can handle our own spends being rolled back by a fork.
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChainWorkTest {
+    @Test
+    public void testAddCarries() {
+        ChainWork a = new ChainWork(0, -1L);  // 2^64 - 1
+        ChainWork sum = a.add(new ChainWork(0, 1));
+        assertEquals(new ChainWork(1, 0), sum);
+        assertEquals(BigInteger.ONE.shiftLeft(64), sum.toBigInteger());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testAddOverflow() {
+        new ChainWork(-1L, -1L).add(new ChainWork(0, 1));
+    }
+
+    @Test
+    public void testCompareIsUnsigned() {
+        ChainWork big = new ChainWork(0, Long.MIN_VALUE);  // 2^63
+        ChainWork small = new ChainWork(0, Long.MAX_VALUE);
+        assertTrue(big.compareTo(small) > 0);
+        assertTrue(small.compareTo(big) < 0);
+        assertTrue(new ChainWork(-1L, 0).compareTo(new ChainWork(1, -1L)) > 0);
+        assertEquals(0, big.compareTo(new ChainWork(0, Long.MIN_VALUE)));
+    }
+
+    @Test
+    public void testConversions() {
+        BigInteger value = new BigInteger("fedcba9876543210f0e1d2c3b4a59687", 16);
+        ChainWork work = ChainWork.valueOf(value);
+        assertEquals(value, work.toBigInteger());
+        assertEquals(value.toString(), work.toString());
+
+        ByteBuffer buf = ByteBuffer.allocate(ChainWork.BYTES);
+        work.write(buf);
+        assertArrayEquals(value.toByteArray(), concat(new byte[] {0}, buf.array()));
+        buf.flip();
+        assertEquals(work, ChainWork.read(buf));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLarge() {
+        ChainWork.valueOf(BigInteger.ONE.shiftLeft(128));
+    }
+
+    @Test
+    public void testBlockWork() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        Block block = params.genesisBlock.createNextBlock(new ECKey().toAddress(params));
+        BigInteger expected = BigInteger.ONE.shiftLeft(256)
+                .divide(block.getDifficultyTargetAsInteger().add(BigInteger.ONE));
+        assertEquals(expected, block.getWork().toBigInteger());
+        // The second call comes from the cache.
+        assertSame(block.getWork(), block.getWork());
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -17,7 +17,14 @@ package com.google.bitcoin.core;
 
 import org.junit.Test;
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class DiskBlockStoreTest {
     @Test
@@ -44,4 +51,169 @@ public class DiskBlockStoreTest {
         // Check the chain head was stored correctly also.
         assertEquals(b1, store.getChainHead());
     }
+
+    @Test
+    public void testBatchedCommits() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        DiskBlockStore store = new DiskBlockStore(params, temp, DiskBlockStore.Durability.FLUSH, 3, 0);
+        StoredBlock genesis = store.getChainHead();
+        long initialLength = temp.length();
+
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b2);
+        store.setChainHead(b2);
+        // Nothing has been written yet.
+        assertEquals(initialLength, temp.length());
+        assertEquals(b2, store.getChainHead());
+
+        StoredBlock b3 = b2.build(b2.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b3);
+        // The third block triggered a commit, which wrote the chain head of the time along with the blocks.
+        assertEquals(initialLength + 3 * Block.HEADER_SIZE, temp.length());
+        assertEquals(b2, new DiskBlockStore(params, temp).getChainHead());
+
+        store.setChainHead(b3);
+        store.close();
+        store = new DiskBlockStore(params, temp);
+        assertEquals(b3, store.getChainHead());
+        assertEquals(b1, store.getByHeight(1));
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        DiskBlockStore store = new DiskBlockStore(params, temp);
+        StoredBlock genesis = store.getChainHead();
+        long initialLength = temp.length();
+
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredBlock b3 = b2.build(b2.getHeader().createNextBlock(to).cloneAsHeader());
+        store.putAll(Arrays.asList(b1, b2, b3), b3);
+        // Committed together, even though this store otherwise commits every block.
+        assertEquals(initialLength + 3 * Block.HEADER_SIZE, temp.length());
+        assertEquals(b3, store.getChainHead());
+        assertEquals(b2, store.getByHeight(2));
+        store = new DiskBlockStore(params, temp);
+        assertEquals(b3, store.getChainHead());
+        assertEquals(b1, store.getByHeight(1));
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        DiskBlockStore store = new DiskBlockStore(params, temp);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b2);
+        store.setChainHead(b2);
+        store.close();
+
+        // Simulate a crash that wrote the chain head but only part of the last block.
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        raf.setLength(raf.length() - 30);
+        raf.close();
+        store = new DiskBlockStore(params, temp);
+        assertEquals(b1, store.getChainHead());
+        assertNull(store.get(b2.getHeader().getHash()));
+
+        // The torn block was cut off, so new blocks can be appended and read back.
+        store.put(b2);
+        store.setChainHead(b2);
+        store.close();
+        store = new DiskBlockStore(params, temp);
+        assertEquals(b2, store.getChainHead());
+        assertEquals(b1, store.getByHeight(1));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        File snapshot = new File(temp.getPath() + ".snapshot");
+        snapshot.deleteOnExit();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        DiskBlockStore store = new DiskBlockStore(params, temp);
+        StoredBlock prev = store.getChainHead();
+        StoredBlock[] blocks = new StoredBlock[5];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+            prev = blocks[i];
+        }
+        store.setChainHead(blocks[3]);
+        // A few new blocks aren't worth rewriting the snapshot for on every sync, but close brings it up to date.
+        store.sync();
+        assertFalse(snapshot.exists());
+        store.close();
+        assertTrue(snapshot.exists());
+
+        // Blocks come back from the snapshot with the same height and chain work.
+        store = new DiskBlockStore(params, temp);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(blocks[4].getChainWork(), store.get(blocks[4].getHeader().getHash()).getChainWork());
+        assertEquals(blocks[3], store.getChainHead());
+        store.close();
+
+        // A snapshot that covers more blocks than the file holds is not trusted.
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        raf.setLength(raf.length() - Block.HEADER_SIZE);
+        raf.close();
+        store = new DiskBlockStore(params, temp);
+        assertEquals(blocks[3], store.getChainHead());
+        assertNull(store.get(blocks[4].getHeader().getHash()));
+        assertEquals(blocks[2], store.getByHeight(3));
+    }
+
+    @Test
+    public void testSkipPointersAfterReload() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        File snapshot = new File(temp.getPath() + ".snapshot");
+        snapshot.deleteOnExit();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        DiskBlockStore store = new DiskBlockStore(params, temp);
+        // A chain of six blocks and a fork of three off the second one.
+        StoredBlock[] blocks = new StoredBlock[9];
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            if (i == 6)
+                prev = blocks[1];
+            blocks[i] = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader(), store);
+            store.put(blocks[i]);
+            prev = blocks[i];
+        }
+        store.setChainHead(blocks[5]);
+        store.close();
+
+        // Loaded from the snapshot, then verified from the file, the blocks get the same skip pointers back.
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1)
+                assertTrue(snapshot.delete());
+            store = new DiskBlockStore(params, temp);
+            for (StoredBlock block : blocks) {
+                StoredBlock loaded = store.get(block.getHeader().getHash());
+                assertArrayEquals(block.getSkipHash(), loaded.getSkipHash());
+            }
+            assertEquals(blocks[0], store.get(blocks[8].getHeader().getHash()).getAncestor(store, 1));
+            store.close();
+        }
+    }
 }
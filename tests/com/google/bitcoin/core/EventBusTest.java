@@ -0,0 +1,203 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventBusTest {
+    private NetworkParameters unitTestParams;
+    private Wallet wallet;
+    private BlockChain chain;
+    private Address coinbaseTo;
+
+    @Before
+    public void setUp() {
+        unitTestParams = NetworkParameters.unitTests();
+        wallet = new Wallet(unitTestParams);
+        wallet.addKey(new ECKey());
+        chain = new BlockChain(unitTestParams, wallet, new MemoryBlockStore(unitTestParams));
+        coinbaseTo = wallet.keychain.get(0).toAddress(unitTestParams);
+    }
+
+    // Records every event it sees as a string.
+    private static class RecordingListener extends WalletEventListener implements ChainHeadListener {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+            events.add("coins " + Utils.bitcoinValueToFriendlyString(newBalance));
+        }
+
+        public void onChainHeadChanged(ChainHeadSnapshot snapshot) {
+            events.add("head " + snapshot.getHeight());
+        }
+    }
+
+    // Holds on to tasks until told to run them.
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.remove(0).run();
+        }
+    }
+
+    private void addBlocks(int count, Address to) throws Exception {
+        Block block = chain.getChainHead().getHeader();
+        for (int i = 0; i < count; i++) {
+            block = block.createNextBlock(to);
+            assertTrue(chain.add(block));
+        }
+    }
+
+    @Test
+    public void testDeliversInOrder() throws Exception {
+        EventBus bus = new EventBus();
+        RecordingListener listener = new RecordingListener();
+        bus.addWalletListener(wallet, listener);
+        bus.addChainHeadListener(chain, listener);
+        addBlocks(3, coinbaseTo);
+        bus.shutdown();
+        assertTrue(bus.awaitTermination(10, TimeUnit.SECONDS));
+        // The chain moves its head to a block before passing the block's transactions to the wallet.
+        assertEquals(6, listener.events.size());
+        assertEquals("head 1", listener.events.get(0));
+        assertEquals("coins 50.00", listener.events.get(1));
+        assertEquals("head 2", listener.events.get(2));
+        assertEquals("coins 100.00", listener.events.get(3));
+        assertEquals("head 3", listener.events.get(4));
+        assertEquals("coins 150.00", listener.events.get(5));
+        assertEquals(0, bus.getDroppedEvents());
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        EventBus bus = new EventBus(executor, 2, EventBus.OverflowPolicy.DROP_NEWEST);
+        RecordingListener listener = new RecordingListener();
+        bus.addChainHeadListener(chain, listener);
+        addBlocks(5, new ECKey().toAddress(unitTestParams));
+        assertEquals(3, bus.getDroppedEvents());
+        executor.runAll();
+        assertEquals(2, listener.events.size());
+        assertEquals("head 1", listener.events.get(0));
+        assertEquals("head 2", listener.events.get(1));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        EventBus bus = new EventBus(executor, 2, EventBus.OverflowPolicy.DROP_OLDEST);
+        RecordingListener listener = new RecordingListener();
+        bus.addChainHeadListener(chain, listener);
+        addBlocks(5, new ECKey().toAddress(unitTestParams));
+        assertEquals(3, bus.getDroppedEvents());
+        executor.runAll();
+        assertEquals(2, listener.events.size());
+        assertEquals("head 4", listener.events.get(0));
+        assertEquals("head 5", listener.events.get(1));
+    }
+
+    @Test
+    public void testRemoveListener() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        EventBus bus = new EventBus(executor, 10, EventBus.OverflowPolicy.BLOCK);
+        RecordingListener listener = new RecordingListener();
+        bus.addWalletListener(wallet, listener);
+        bus.addChainHeadListener(chain, listener);
+        bus.removeWalletListener(wallet, listener);
+        addBlocks(1, coinbaseTo);
+        bus.removeChainHeadListener(chain, listener);
+        addBlocks(1, coinbaseTo);
+        executor.runAll();
+        assertEquals(1, listener.events.size());
+        assertEquals("head 1", listener.events.get(0));
+    }
+
+    private Transaction createFakeTx(BigInteger nanocoins, Address to) {
+        Transaction t = new Transaction(unitTestParams);
+        t.addOutput(new TransactionOutput(unitTestParams, t, nanocoins, to));
+        Transaction prevTx = new Transaction(unitTestParams);
+        TransactionOutput prevOut = new TransactionOutput(unitTestParams, prevTx, nanocoins, to);
+        prevTx.addOutput(prevOut);
+        t.addInput(prevOut);
+        return t;
+    }
+
+    @Test
+    public void testListenerCallingBackWithFullQueue() throws Exception {
+        // A listener that calls into the wallet while the wallet raises more events than its queue holds must not
+        // deadlock the thread raising them.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        EventBus bus = new EventBus(executor, 1, EventBus.DEFAULT_OVERFLOW_POLICY);
+        final CountDownLatch delivering = new CountDownLatch(1);
+        final List<BigInteger> balances = Collections.synchronizedList(new ArrayList<BigInteger>());
+        bus.addWalletListener(wallet, new WalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                delivering.countDown();
+                balances.add(wallet.getBalance());
+            }
+        });
+        final Throwable[] failure = new Throwable[1];
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (wallet) {
+                        wallet.receive(createFakeTx(Utils.toNanoCoins(1, 0), coinbaseTo), null,
+                                BlockChain.NewBlockType.BEST_CHAIN);
+                        // The listener is now waiting for the wallet, so the queue fills up behind it.
+                        assertTrue(delivering.await(10, TimeUnit.SECONDS));
+                        for (int i = 2; i <= 4; i++)
+                            wallet.receive(createFakeTx(Utils.toNanoCoins(i, 0), coinbaseTo), null,
+                                    BlockChain.NewBlockType.BEST_CHAIN);
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        receiver.start();
+        receiver.join(10000);
+        assertFalse("Deadlocked raising events", receiver.isAlive());
+        assertNull(failure[0]);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // The first event and the newest one got through, the two in between were dropped.
+        assertEquals(2, bus.getDroppedEvents());
+        assertEquals(2, balances.size());
+        assertEquals(Utils.toNanoCoins(10, 0), balances.get(1));
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class HeaderVerifierTest {
+    @Test
+    public void testParallelVerify() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        // Enough headers for several batches.
+        int count = HeaderVerifier.BATCH_SIZE * 3 + 10;
+        byte[] headers = new byte[count * Block.HEADER_SIZE];
+        Block[] blocks = new Block[count];
+        Block prev = params.genesisBlock;
+        for (int i = 0; i < count; i++) {
+            blocks[i] = prev.createNextBlock(to).cloneAsHeader();
+            System.arraycopy(blocks[i].bitcoinSerialize(), 0, headers, i * Block.HEADER_SIZE, Block.HEADER_SIZE);
+            prev = blocks[i];
+        }
+        // Push the timestamp of one header far into the future so it fails verification.
+        int bad = HeaderVerifier.BATCH_SIZE + 5;
+        for (int i = 68; i < 72; i++)
+            headers[bad * Block.HEADER_SIZE + i] = (byte) 0xFF;
+
+        HeaderVerifier verifier = new HeaderVerifier(params);
+        // The same verifier serves any number of calls.
+        for (int round = 0; round < 2; round++) {
+            HeaderVerifier.Result[] results = verifier.verify(headers, count);
+            assertEquals(count, results.length);
+            for (int i = 0; i < count; i++) {
+                if (i == bad) {
+                    assertNotNull(results[i].error);
+                    assertNull(results[i].work);
+                } else {
+                    assertNull(results[i].error);
+                    assertEquals(blocks[i], results[i].header);
+                    assertEquals(blocks[i].getWork(), results[i].work);
+                }
+            }
+        }
+    }
+}
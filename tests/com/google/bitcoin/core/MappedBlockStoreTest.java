@@ -0,0 +1,98 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import org.junit.After;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MappedBlockStoreTest {
+    // Block files made by the test. The store keeps its indexes next to them, and they are deleted along with them.
+    private final List<File> tempFiles = new ArrayList<File>();
+
+    private File createTempFile() throws IOException {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        tempFiles.add(temp);
+        return temp;
+    }
+
+    @After
+    public void tearDown() {
+        for (File temp : tempFiles) {
+            for (String suffix : new String[] {"", ".index", ".bloom", ".heights", ".upgrade"})
+                new File(temp.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void testStorage() throws Exception {
+        File temp = createTempFile();
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        MappedBlockStore store = new MappedBlockStore(params, temp);
+        // Check the first block in a new store is the genesis block.
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.genesisBlock, genesis.getHeader());
+
+        // Build a new block.
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.close();
+        // Check we can get it back out again if we rebuild the store object.
+        store = new MappedBlockStore(params, temp);
+        StoredBlock b2 = store.get(b1.getHeader().getHash());
+        assertEquals(b1, b2);
+        // Check the chain head was stored correctly also.
+        assertEquals(b1, store.getChainHead());
+        store.close();
+        // Closing twice does nothing.
+        store.close();
+    }
+
+    @Test
+    public void testSegmentGrowth() throws Exception {
+        File temp = createTempFile();
+        File indexFile = new File(temp.getPath() + ".index");
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        // Use tiny segments so the file has to grow several times.
+        MappedBlockStore store = new MappedBlockStore(params, temp, 2);
+        StoredBlock[] blocks = new StoredBlock[7];
+        blocks[0] = store.getChainHead();
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+        }
+        store.close();
+        // Reopen without the index, forcing it to be rebuilt from the mapped records.
+        assertEquals(true, indexFile.delete());
+        store = new MappedBlockStore(params, temp, 2);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(blocks[blocks.length - 1], store.getChainHead());
+        assertNull(store.get(blocks[6].getHeader().createNextBlock(to).getHash()));
+        store.close();
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MemoryBlockStoreTest {
+    @Test
+    public void testGrowth() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        MemoryBlockStore store = new MemoryBlockStore(params);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.genesisBlock, genesis.getHeader());
+
+        // Store enough blocks that both the record buffer and the hash table have to grow.
+        StoredBlock[] blocks = new StoredBlock[2500];
+        StoredBlock prev = genesis;
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+            prev = blocks[i];
+        }
+        store.setChainHead(prev);
+        for (int i = 0; i < blocks.length; i++) {
+            assertEquals(blocks[i], store.get(blocks[i].getHeader().getHash()));
+            assertEquals(blocks[i], store.getByHeight(i + 1));
+        }
+        assertEquals(genesis, store.getByHeight(0));
+        assertEquals(prev, store.getChainHead());
+        assertNull(store.get(prev.getHeader().createNextBlock(to).getHash()));
+
+        // Putting a block twice does not store a second copy.
+        store.put(blocks[7]);
+        assertEquals(blocks[7], store.get(blocks[7].getHeader().getHash()));
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OrphanBlockPoolTest {
+    private NetworkParameters params;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        to = new ECKey().toAddress(params);
+    }
+
+    @Test
+    public void testChildrenReleasedByParent() throws Exception {
+        OrphanBlockPool pool = new OrphanBlockPool();
+        Block b1 = params.genesisBlock.createNextBlock(to);
+        Block b2 = b1.createNextBlock(to);
+        Block b2a = b1.createNextBlock(to);
+        Block b3 = b2.createNextBlock(to);
+        pool.add(b3, 0);
+        pool.add(b2, 0);
+        pool.add(b2a, 0);
+        // Adding a block twice is ignored.
+        pool.add(b2, 0);
+        assertEquals(3, pool.size());
+        assertEquals(b2a, pool.getNewest());
+
+        assertTrue(pool.removeChildren(params.genesisBlock.getHash()).isEmpty());
+        List<Block> children = pool.removeChildren(b1.getHash());
+        assertEquals(2, children.size());
+        assertEquals(b2, children.get(0));
+        assertEquals(b2a, children.get(1));
+        assertFalse(pool.contains(b2.getHash()));
+        assertTrue(pool.contains(b3.getHash()));
+        assertEquals(b3, pool.getNewest());
+
+        assertEquals(b3, pool.removeChildren(b2.getHash()).get(0));
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.getTotalBytes());
+        assertNull(pool.getNewest());
+    }
+
+    @Test
+    public void testAgeEviction() throws Exception {
+        OrphanBlockPool pool = new OrphanBlockPool(Long.MAX_VALUE, 1000);
+        Block b1 = params.genesisBlock.createNextBlock(to);
+        Block b2 = b1.createNextBlock(to);
+        Block b3 = b2.createNextBlock(to);
+        pool.add(b2, 0);
+        pool.add(b3, 500);
+        assertEquals(2, pool.size());
+        // The first orphan is now too old, the second is not.
+        pool.add(b1, 1200);
+        assertFalse(pool.contains(b2.getHash()));
+        assertTrue(pool.contains(b3.getHash()));
+        assertTrue(pool.contains(b1.getHash()));
+        assertTrue(pool.removeChildren(b1.getHash()).isEmpty());
+    }
+
+    @Test
+    public void testMemoryCap() throws Exception {
+        Block b1 = params.genesisBlock.createNextBlock(to);
+        Block b2 = b1.createNextBlock(to);
+        Block b3 = b2.createNextBlock(to);
+        int size = b1.bitcoinSerialize().length;
+        // Room for two blocks but not three.
+        OrphanBlockPool pool = new OrphanBlockPool(size * 2 + size / 2, Long.MAX_VALUE);
+        pool.add(b1, 0);
+        pool.add(b2, 0);
+        pool.add(b3, 0);
+        assertEquals(2, pool.size());
+        assertFalse(pool.contains(b1.getHash()));
+        assertTrue(pool.getTotalBytes() <= size * 2 + size / 2);
+        assertEquals(b3, pool.getNewest());
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RelevanceScannerTest {
+    private NetworkParameters params;
+    private Wallet wallet;
+    private Wallet otherWallet;
+    private Address other;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        wallet = new Wallet(params);
+        wallet.addKey(new ECKey());
+        otherWallet = new Wallet(params);
+        otherWallet.addKey(new ECKey());
+        other = new ECKey().toAddress(params);
+        fund(wallet);
+        fund(otherWallet);
+    }
+
+    // Gives the wallet a coin to spend. The funding transaction isn't valid but the wallet doesn't check.
+    private void fund(Wallet w) throws Exception {
+        Address to = w.keychain.get(0).toAddress(params);
+        BigInteger value = Utils.toNanoCoins(10, 0);
+        Transaction prevTx = new Transaction(params);
+        TransactionOutput prevOut = new TransactionOutput(params, prevTx, value, to);
+        prevTx.addOutput(prevOut);
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, value, to));
+        tx.addInput(prevOut);
+        w.receive(tx, null, BlockChain.NewBlockType.BEST_CHAIN);
+    }
+
+    @Test
+    public void testParallelScanMatchesSequential() throws Exception {
+        // Enough transactions for several batches: payments between our wallets, payments to strangers from each.
+        Address me = wallet.keychain.get(0).toAddress(params);
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        Wallet[][] expected = new Wallet[RelevanceScanner.BATCH_SIZE * 3 + 5][];
+        for (int i = 0; i < expected.length; i++) {
+            BigInteger value = Utils.toNanoCoins(0, 1 + i % 50);
+            switch (i % 3) {
+                case 0:
+                    transactions.add(otherWallet.createSend(me, value));
+                    expected[i] = new Wallet[] {wallet, otherWallet};
+                    break;
+                case 1:
+                    transactions.add(otherWallet.createSend(other, value));
+                    expected[i] = new Wallet[] {otherWallet};
+                    break;
+                default:
+                    transactions.add(wallet.createSend(other, value));
+                    expected[i] = new Wallet[] {wallet};
+            }
+        }
+        for (int threads : new int[] {4, 1}) {
+            RelevanceScanner scanner = new RelevanceScanner(threads);
+            scanner.addWallet(wallet);
+            scanner.addWallet(new Wallet(params));
+            scanner.addWallet(otherWallet);
+            assertTrue(Arrays.deepEquals(expected, scanner.scan(transactions)));
+        }
+    }
+
+    @Test
+    public void testWalletChanges() throws Exception {
+        RelevanceScanner scanner = new RelevanceScanner(1);
+        scanner.addWallet(wallet);
+        scanner.addWallet(wallet);
+        List<Transaction> transactions = Arrays.asList(otherWallet.createSend(other, Utils.toNanoCoins(1, 0)));
+        assertNull(scanner.scan(transactions)[0]);
+        // The payment was from a key the wallet has only now gained.
+        for (ECKey key : new ArrayList<ECKey>(otherWallet.keychain))
+            wallet.addKey(key);
+        assertArrayEquals(new Wallet[] {wallet}, scanner.scan(transactions)[0]);
+
+        scanner.addWallet(otherWallet);
+        assertArrayEquals(new Wallet[] {wallet, otherWallet}, scanner.scan(transactions)[0]);
+        scanner.removeWallet(wallet);
+        assertArrayEquals(new Wallet[] {otherWallet}, scanner.scan(transactions)[0]);
+        assertEquals(Arrays.asList(otherWallet), scanner.getWallets());
+    }
+
+    @Test
+    public void testKeychainEdits() throws Exception {
+        RelevanceScanner scanner = new RelevanceScanner(1);
+        scanner.addWallet(wallet);
+        List<Transaction> transactions = Arrays.asList(otherWallet.createSend(other, Utils.toNanoCoins(1, 0)));
+        ECKey otherKey = otherWallet.keychain.get(0);
+        wallet.addKey(otherKey);
+        assertArrayEquals(new Wallet[] {wallet}, scanner.scan(transactions)[0]);
+        // Direct edits are only looked at once the wallet is told about them, scans don't check every key.
+        wallet.keychain.remove(otherKey);
+        assertArrayEquals(new Wallet[] {wallet}, scanner.scan(transactions)[0]);
+        // A removed key stops matching.
+        wallet.keychainChanged();
+        assertNull(scanner.scan(transactions)[0]);
+        // A key put in place of one already indexed, leaving the size unchanged, is picked up.
+        ECKey ownKey = wallet.keychain.set(0, otherKey);
+        wallet.keychainChanged();
+        assertArrayEquals(new Wallet[] {wallet}, scanner.scan(transactions)[0]);
+        wallet.keychain.set(0, ownKey);
+        wallet.keychainChanged();
+        assertNull(scanner.scan(transactions)[0]);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetargetTrackerTest {
+    private NetworkParameters params;
+    private Address to;
+    private MemoryBlockStore store;
+    private StoredBlock genesis;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        to = new ECKey().toAddress(params);
+        store = new MemoryBlockStore(params);
+        genesis = store.getChainHead();
+    }
+
+    // Builds and stores count blocks on top of prev, returning them with prev at index zero.
+    private StoredBlock[] extend(StoredBlock prev, int count) throws Exception {
+        StoredBlock[] blocks = new StoredBlock[count + 1];
+        blocks[0] = prev;
+        for (int i = 1; i <= count; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(to).cloneAsHeader(), store);
+            store.put(blocks[i]);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testExtendAndReorganize() throws Exception {
+        // The unit test network retargets every 10 blocks.
+        assertEquals(10, params.interval);
+        StoredBlock[] main = extend(genesis, 25);
+        RetargetTracker tracker = new RetargetTracker(params, store);
+        for (int i = 0; i <= 25; i++) {
+            tracker.setChainHead(main[i]);
+            assertEquals(main[i - i % 10], tracker.getWindowStart(main[i]));
+        }
+        // Only the head's window is known.
+        assertNull(tracker.getWindowStart(main[19]));
+
+        // A side chain forking below the last boundary takes over.
+        StoredBlock[] side = extend(main[17], 12);
+        tracker.setChainHead(side[12]);
+        assertEquals(29, side[12].getHeight());
+        assertEquals(side[3], tracker.getWindowStart(side[12]));
+        tracker.setChainHead(side[11]);
+        assertEquals(side[3], tracker.getWindowStart(side[11]));
+        // And back again, to a head whose window starts on the shared part of the chain.
+        tracker.setChainHead(main[15]);
+        assertEquals(main[10], tracker.getWindowStart(main[15]));
+    }
+
+    @Test
+    public void testStartsMidInterval() throws Exception {
+        StoredBlock[] main = extend(genesis, 14);
+        RetargetTracker tracker = new RetargetTracker(params, store);
+        tracker.setChainHead(main[14]);
+        assertEquals(main[10], tracker.getWindowStart(main[14]));
+    }
+}
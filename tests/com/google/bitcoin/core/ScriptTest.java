@@ -22,6 +22,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ScriptTest {
     // From tx 05e04c26c12fe408a3c1b71aa7996403f6acad1045252b1c62e055496f4d2cb1 on the testnet.
@@ -69,4 +70,16 @@ public class ScriptTest {
         s.setTracing(true);
         assertTrue(s.isSentToIP());
     }
+
+    @Test
+    public void testTruncatedPush() throws Exception {
+        // OP_PUSHDATA1 with the length byte missing.
+        byte[] bytes = new byte[] { (byte) Script.OP_PUSHDATA1 };
+        try {
+            new Script(params, bytes, 0, bytes.length);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
 }
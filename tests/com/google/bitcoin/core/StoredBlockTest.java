@@ -0,0 +1,173 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.google.bitcoin.bouncycastle.util.encoders.Hex;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StoredBlockTest {
+    // The unit test genesis block as a StoredBlock serialized by the version before ChainWork, when chain work was
+    // held in a BigInteger field.
+    private static final String OLD_SERIALIZED_GENESIS =
+            "aced000573720023636f6d2e676f6f676c652e626974636f696e2e636f72652e53746f726564426c6f636bab6118b828e66d" +
+            "f50200034900066865696768744c0009636861696e576f726b7400164c6a6176612f6d6174682f426967496e74656765723b" +
+            "4c000668656164657274001f4c636f6d2f676f6f676c652f626974636f696e2f636f72652f426c6f636b3b78700000000073" +
+            "7200146a6176612e6d6174682e426967496e74656765728cfc9f1fa93bfb1d030006490008626974436f756e744900096269" +
+            "744c656e67746849001366697273744e6f6e7a65726f427974654e756d49000c6c6f77657374536574426974490006736967" +
+            "6e756d5b00096d61676e69747564657400025b42787200106a6176612e6c616e672e4e756d62657286ac951d0b94e08b0200" +
+            "007870fffffffffffffffffffffffefffffffe00000001757200025b42acf317f8060854e002000078700000000102787372" +
+            "001d636f6d2e676f6f676c652e626974636f696e2e636f72652e426c6f636b260258973c1591510200074a00106469666669" +
+            "63756c74795461726765744a00056e6f6e63654a000474696d654a000776657273696f6e5b000a6d65726b6c65526f6f7471" +
+            "007e00055b000d70726576426c6f636b4861736871007e00054c000c7472616e73616374696f6e737400104c6a6176612f75" +
+            "74696c2f4c6973743b7872001f636f6d2e676f6f676c652e626974636f696e2e636f72652e4d657373616765ce9498be6c2d" +
+            "aba10200014c0006706172616d7374002b4c636f6d2f676f6f676c652f626974636f696e2f636f72652f4e6574776f726b50" +
+            "6172616d65746572733b787073720029636f6d2e676f6f676c652e626974636f696e2e636f72652e4e6574776f726b506172" +
+            "616d6574657273000000000000000302000849000d6164647265737348656164657249001664756d70656450726976617465" +
+            "4b6579486561646572490008696e74657276616c4a000b7061636b65744d61676963490004706f727449000e746172676574" +
+            "54696d657370616e4c000c67656e65736973426c6f636b71007e00024c001070726f6f664f66576f726b4c696d697471007e" +
+            "000178700000006f000000ef0000000a00000000fabfb5da0000479d0bebc2007371007e000a71007e001000000000207fff" +
+            "ff0000000016ec0bff000000004d49e5da00000000000000017571007e0008000000204a5e1e4baab89f3a32518a88c31bc8" +
+            "7f618f76673e2cc77ab2127b7afdeda33b7571007e0008000000200000000000000000000000000000000000000000000000" +
+            "000000000000000000737200136a6176612e7574696c2e41727261794c6973747881d21d99c7619d03000149000473697a65" +
+            "78700000000177040000000173720023636f6d2e676f6f676c652e626974636f696e2e636f72652e5472616e73616374696f" +
+            "6e8919f56f628455bc0200054a00086c6f636b54696d654a000776657273696f6e4c000961707065617273496e74000f4c6a" +
+            "6176612f7574696c2f5365743b4c0006696e707574737400154c6a6176612f7574696c2f41727261794c6973743b4c00076f" +
+            "75747075747371007e00187871007e000c71007e001000000000000000000000000000000001707371007e00140000000177" +
+            "040000000173720028636f6d2e676f6f676c652e626974636f696e2e636f72652e5472616e73616374696f6e496e70757400" +
+            "000000000000020200044a000873657175656e63654c00086f7574706f696e7474002d4c636f6d2f676f6f676c652f626974" +
+            "636f696e2f636f72652f5472616e73616374696f6e4f7574506f696e743b4c0011706172656e745472616e73616374696f6e" +
+            "7400254c636f6d2f676f6f676c652f626974636f696e2f636f72652f5472616e73616374696f6e3b5b000b73637269707442" +
+            "7974657371007e00057871007e000c71007e001000000000ffffffff7372002b636f6d2e676f6f676c652e626974636f696e" +
+            "2e636f72652e5472616e73616374696f6e4f7574506f696e74a847b88c83d271cd0200034a0005696e6465784c000666726f" +
+            "6d547871007e001d5b00046861736871007e00057871007e000c71007e0010ffffffffffffffff707571007e000800000020" +
+            "000000000000000000000000000000000000000000000000000000000000000071007e00197571007e00080000004d04ffff" +
+            "001d0104455468652054696d65732030332f4a616e2f32303039204368616e63656c6c6f72206f6e206272696e6b206f6620" +
+            "7365636f6e64206261696c6f757420666f722062616e6b73787371007e00140000000177040000000173720029636f6d2e67" +
+            "6f6f676c652e626974636f696e2e636f72652e5472616e73616374696f6e4f7574707574f7ceb7bcbe9d12080200055a0014" +
+            "617661696c61626c65466f725370656e64696e674c0011706172656e745472616e73616374696f6e71007e001d5b000b7363" +
+            "72697074427974657371007e00054c00077370656e74427974002a4c636f6d2f676f6f676c652f626974636f696e2f636f72" +
+            "652f5472616e73616374696f6e496e7075743b4c000576616c756571007e00017871007e000c71007e001001707571007e00" +
+            "08000000434104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f35504" +
+            "e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac707371007e0004fffffffffffffffffffffffefffffffe0000000175" +
+            "71007e000800000005012a05f2007878787371007e0004fffffffffffffffffffffffefffffffe000000017571007e000800" +
+            "000020ffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7800000000207fffff0000000016ec" +
+            "0bff000000004d49e5da00000000000000017571007e0008000000204a5e1e4baab89f3a32518a88c31bc87f618f76673e2c" +
+            "c77ab2127b7afdeda33b7571007e000800000020000000000000000000000000000000000000000000000000000000000000" +
+            "000070";
+
+    @Test
+    public void testSkipHeight() {
+        assertEquals(0, StoredBlock.getSkipHeight(0));
+        assertEquals(0, StoredBlock.getSkipHeight(1));
+        assertEquals(0, StoredBlock.getSkipHeight(2));
+        assertEquals(1, StoredBlock.getSkipHeight(3));
+        assertEquals(0, StoredBlock.getSkipHeight(4));
+        assertEquals(8, StoredBlock.getSkipHeight(12));
+        assertEquals(1, StoredBlock.getSkipHeight(13));
+        for (int height = 1; height < 5000; height++)
+            assertTrue(StoredBlock.getSkipHeight(height) < height);
+    }
+
+    @Test
+    public void testGetAncestor() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        final int[] lookups = new int[1];
+        MemoryBlockStore store = new MemoryBlockStore(params) {
+            @Override
+            public StoredBlock get(byte[] hash) throws BlockStoreException {
+                lookups[0]++;
+                return super.get(hash);
+            }
+        };
+        StoredBlock[] blocks = new StoredBlock[1000];
+        blocks[0] = store.getChainHead();
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(to).cloneAsHeader(), store);
+            store.put(blocks[i]);
+        }
+
+        StoredBlock head = blocks[blocks.length - 1];
+        assertNull(head.getAncestor(store, blocks.length));
+        assertEquals(head, head.getAncestor(store, head.getHeight()));
+        for (int height = 0; height < blocks.length; height++) {
+            lookups[0] = 0;
+            assertEquals(blocks[height], head.getAncestor(store, height));
+            // Walking prev pointers would take up to 999 lookups.
+            assertTrue("Took " + lookups[0] + " lookups to reach " + height, lookups[0] < 40);
+        }
+        // Blocks built without a store have no skip pointer, but ancestors can still be found by walking back.
+        StoredBlock next = head.build(head.getHeader().createNextBlock(to).cloneAsHeader());
+        assertNull(next.getSkipHash());
+        assertEquals(blocks[500], next.getAncestor(store, 500));
+    }
+
+    @Test
+    public void testSkipHashIsStored() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        // The store's indexes go next to the block file.
+        for (String suffix : new String[] {".index", ".bloom", ".heights"})
+            new File(temp.getPath() + suffix).deleteOnExit();
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 20; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader(), store);
+            store.put(prev);
+        }
+        store.setChainHead(prev);
+
+        store = new BoundedOverheadBlockStore(params, temp);
+        StoredBlock head = store.getChainHead();
+        assertArrayEquals(prev.getSkipHash(), head.getSkipHash());
+        StoredBlock skip = store.get(head.getSkipHash());
+        assertEquals(StoredBlock.getSkipHeight(20), skip.getHeight());
+        assertEquals(skip, head.getAncestor(store, skip.getHeight()));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        Block genesis = params.genesisBlock.cloneAsHeader();
+        StoredBlock expected = new StoredBlock(genesis, genesis.getWork(), 0);
+
+        // Streams written before chain work became a ChainWork still load.
+        byte[] old = Hex.decode(OLD_SERIALIZED_GENESIS);
+        StoredBlock loaded = (StoredBlock) new ObjectInputStream(new ByteArrayInputStream(old)).readObject();
+        assertEquals(expected, loaded);
+
+        // And the current form round trips, including the skip hash.
+        StoredBlock block = new StoredBlock(genesis, genesis.getWork(), 5, genesis.getHash());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(block);
+        oos.close();
+        loaded = (StoredBlock) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+        assertEquals(block, loaded);
+        assertArrayEquals(genesis.getHash(), loaded.getSkipHash());
+    }
+}
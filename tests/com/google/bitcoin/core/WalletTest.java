@@ -247,4 +247,53 @@ public class WalletTest {
         assertEquals(send1, eventDead[0]);
         assertEquals(send2, eventReplacement[0]);
     }
+
+    private StoredBlock createBlockAtHeight(int height) {
+        Block b = params.genesisBlock.createNextBlock(new ECKey().toAddress(params));
+        return new StoredBlock(b, ChainWork.valueOf(BigInteger.ONE), height);
+    }
+
+    @Test
+    public void testReorganizeBlockByBlock() throws Exception {
+        // A re-org is applied one block at a time from each block's own transactions.
+        final int[] reorgs = new int[1];
+        wallet.addEventListener(new WalletEventListener() {
+            @Override
+            public void onReorganize() {
+                reorgs[0]++;
+            }
+        });
+        BigInteger v1 = Utils.toNanoCoins(1, 0);
+        Transaction t1 = createFakeTx(v1, myAddress);
+        StoredBlock b1 = createBlockAtHeight(1);
+        wallet.receive(t1, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        BigInteger v2 = Utils.toNanoCoins(2, 0);
+        Transaction t2 = createFakeTx(v2, myAddress);
+        StoredBlock b2 = createBlockAtHeight(1);
+        wallet.receive(t2, b2, BlockChain.NewBlockType.SIDE_CHAIN);
+        assertEquals(v1, wallet.getBalance());
+
+        // Replace b1 with b2.
+        wallet.disconnectBlock(b1);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        wallet.connectBlock(b2);
+        assertEquals(v2, wallet.getBalance());
+        wallet.endReorganize();
+        assertEquals(v2, wallet.getBalance());
+        assertEquals(1, reorgs[0]);
+
+        // And back again, through a block that has none of our transactions.
+        wallet.disconnectBlock(b2);
+        wallet.connectBlock(b1);
+        wallet.connectBlock(createBlockAtHeight(2));
+        wallet.endReorganize();
+        assertEquals(v1, wallet.getBalance());
+        assertEquals(2, reorgs[0]);
+
+        // Blocks that have none of our transactions leave the wallet alone.
+        wallet.disconnectBlock(createBlockAtHeight(2));
+        wallet.connectBlock(createBlockAtHeight(2));
+        wallet.endReorganize();
+        assertEquals(2, reorgs[0]);
+    }
 }